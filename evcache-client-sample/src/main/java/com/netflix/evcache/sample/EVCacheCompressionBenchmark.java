@@ -0,0 +1,128 @@
+package com.netflix.evcache.sample;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.netflix.evcache.EVCacheCompression;
+import com.netflix.evcache.EVCacheTranscoder;
+import com.netflix.evcache.EVCacheZstdDictionaries;
+import com.netflix.evcache.EVCacheZstdDictionaryTrainer;
+
+import net.spy.memcached.CachedData;
+
+/**
+ * Compares the compression codecs of EVCacheTranscoder on a few payloads
+ * that are typical of what is stored in EVCache. For each codec and payload
+ * it prints the compressed size and the time it takes to encode and decode
+ * the value, which is the work done on the caller thread for a set and a get.
+ * The last rows compare a zstd dictionary trained on similar small values.
+ *
+ * This does not need memcached. Run it using
+ *
+ *   gradle :evcache-client-sample:runCompressionBenchmark
+ *
+ * The number of iterations can be changed using the first argument.
+ */
+public class EVCacheCompressionBenchmark {
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) {
+        final int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+        final Map<String, Object> payloads = createPayloads();
+
+        System.out.println(String.format("%-24s %-10s %10s %10s %12s %12s", "payload", "codec", "size", "stored", "encode(us)", "decode(us)"));
+        for (Map.Entry<String, Object> payload : payloads.entrySet()) {
+            for (EVCacheCompression compression : EVCacheCompression.values()) {
+                if (compression == EVCacheCompression.ZSTD_DICT) continue;
+                print(payload.getKey(), new EVCacheTranscoder(Integer.MAX_VALUE, 120, compression), payload.getValue(), iterations);
+            }
+        }
+
+        // dictionaries help with small values that are similar to each other
+        final Random random = new Random(7);
+        final EVCacheZstdDictionaryTrainer trainer = new EVCacheZstdDictionaryTrainer(1024 * 1024, 16 * 1024);
+        for (int i = 0; i < 5000; i++) {
+            trainer.addSample(createDocument(random));
+        }
+        final EVCacheZstdDictionaries dictionaries = new EVCacheZstdDictionaries(Collections.singletonMap(Integer.valueOf(1), trainer.train()), 1, 1);
+        final String document = createDocument(random);
+        print("document (300B)", new EVCacheTranscoder(Integer.MAX_VALUE, 120, EVCacheCompression.GZIP), document, iterations);
+        print("document (300B)", new EVCacheTranscoder(Integer.MAX_VALUE, 120, EVCacheCompression.ZSTD), document, iterations);
+        print("document (300B)", new EVCacheTranscoder(Integer.MAX_VALUE, 120, EVCacheCompression.ZSTD_DICT, dictionaries), document, iterations);
+    }
+
+    private static void print(String name, EVCacheTranscoder transcoder, Object value, int iterations) {
+        final CachedData cd = transcoder.encode(value);
+        final int size = new EVCacheTranscoder(Integer.MAX_VALUE, Integer.MAX_VALUE, EVCacheCompression.GZIP).encode(value).getData().length;
+
+        // warm up before measuring
+        run(transcoder, value, cd, iterations / 2);
+        final long[] times = run(transcoder, value, cd, iterations);
+        System.out.println(String.format("%-24s %-10s %10d %10d %12.2f %12.2f", name, transcoder.getCompression(), size,
+                cd.getData().length, times[0] / 1000.0 / iterations, times[1] / 1000.0 / iterations));
+    }
+
+    private static long[] run(EVCacheTranscoder transcoder, Object value, CachedData cd, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink = transcoder.encode(value);
+        }
+        final long encode = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink = transcoder.decode(cd);
+        }
+        final long decode = System.nanoTime() - start;
+        return new long[] { encode, decode };
+    }
+
+    private static Map<String, Object> createPayloads() {
+        final Random random = new Random(42);
+        final String[] words = { "title", "movie", "show", "season", "episode", "artwork", "rating", "genre", "en-US", "true", "false", "null" };
+        final Map<String, Object> payloads = new LinkedHashMap<String, Object>();
+
+        // spymemcached does not compress strings that start with { or [
+        final StringBuilder string = new StringBuilder();
+        for (int i = 0; string.length() < 1024; i++) {
+            string.append(words[random.nextInt(words.length)]).append(i).append('=')
+                    .append(words[random.nextInt(words.length)]).append(random.nextInt(100000)).append(';');
+        }
+        payloads.put("string (1KB)", string.toString());
+
+        final List<Map<String, Object>> list = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < 200; i++) {
+            final Map<String, Object> map = new HashMap<String, Object>();
+            map.put("id", Long.valueOf(random.nextInt(1000000)));
+            map.put("name", words[random.nextInt(words.length)] + "_" + random.nextInt(1000));
+            map.put("score", Double.valueOf(random.nextDouble()));
+            list.add(map);
+        }
+        payloads.put("serialized list", list);
+
+        final StringBuilder text = new StringBuilder();
+        while (text.length() < 100 * 1024) {
+            text.append(words[random.nextInt(words.length)]).append(' ').append(random.nextInt(1000)).append(' ');
+        }
+        payloads.put("text bytes (100KB)", text.toString().getBytes());
+
+        final byte[] bytes = new byte[16 * 1024];
+        random.nextBytes(bytes);
+        payloads.put("random bytes (16KB)", bytes);
+        return payloads;
+    }
+
+    private static String createDocument(Random random) {
+        return "id=" + random.nextInt(1000000) + ";type=" + (random.nextBoolean() ? "movie" : "show") + ";title=title " + random.nextInt(10000)
+                + ";rating=" + random.nextInt(5) + ";genres=drama,comedy,action;locale=en-US;maturity=" + random.nextInt(18)
+                + ";artwork=https://example.com/artwork/" + random.nextInt(100000) + ".jpg;available=" + random.nextBoolean()
+                + ";runtime=" + random.nextInt(200) + ";year=" + (1950 + random.nextInt(70)) + ";director=director " + random.nextInt(1000)
+                + ";cast=actor " + random.nextInt(1000) + ",actor " + random.nextInt(1000) + ",actor " + random.nextInt(1000);
+    }
+}
@@ -0,0 +1,111 @@
+package com.netflix.evcache.sample;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.netflix.evcache.EVCacheCompression;
+import com.netflix.evcache.EVCacheTranscoder;
+
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+
+/**
+ * Prints the bytes allocated on the caller thread to encode a value for a set,
+ * using SerializingTranscoder, which allocates a new stream and arrays for
+ * every value, and EVCacheTranscoder, which serializes and compresses in to
+ * buffers reused by the thread. The size of the stored value is printed for
+ * comparison, as that array is the only one EVCacheTranscoder has to allocate.
+ *
+ * This needs a JVM that can measure the allocations of a thread, such as
+ * HotSpot, but not memcached. Run it using
+ *
+ *   gradle :evcache-client-sample:runEncodeAllocationBenchmark
+ *
+ * The number of iterations can be changed using the first argument.
+ */
+public class EVCacheEncodeAllocationBenchmark {
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) {
+        final int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean) || !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            System.err.println("This JVM can not measure the memory allocated by a thread");
+            System.exit(1);
+        }
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        final SerializingTranscoder serializing = new SerializingTranscoder(Integer.MAX_VALUE);
+        serializing.setCompressionThreshold(120);
+
+        System.out.println(String.format("%-24s %-28s %10s %16s", "payload", "transcoder", "stored", "allocated/set"));
+        for (Map.Entry<String, Object> payload : createPayloads().entrySet()) {
+            print(threads, payload.getKey(), "SerializingTranscoder", serializing, payload.getValue(), iterations);
+            for (EVCacheCompression compression : EVCacheCompression.values()) {
+                if (compression == EVCacheCompression.ZSTD_DICT) continue;
+                print(threads, payload.getKey(), "EVCacheTranscoder " + compression, new EVCacheTranscoder(Integer.MAX_VALUE, 120, compression), payload.getValue(), iterations);
+            }
+        }
+    }
+
+    private static void print(com.sun.management.ThreadMXBean threads, String name, String transcoderName, Transcoder<Object> transcoder, Object value, int iterations) {
+        final int stored = transcoder.encode(value).getData().length;
+
+        // warm up before measuring
+        run(transcoder, value, iterations / 2);
+        final long id = Thread.currentThread().getId();
+        final long start = threads.getThreadAllocatedBytes(id);
+        run(transcoder, value, iterations);
+        final long allocated = threads.getThreadAllocatedBytes(id) - start;
+        System.out.println(String.format("%-24s %-28s %10d %16d", name, transcoderName, stored, allocated / iterations));
+    }
+
+    private static void run(Transcoder<Object> transcoder, Object value, int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            sink = transcoder.encode(value);
+        }
+    }
+
+    private static Map<String, Object> createPayloads() {
+        final Random random = new Random(42);
+        final String[] words = { "title", "movie", "show", "season", "episode", "artwork", "rating", "genre", "en-US", "true", "false", "null" };
+        final Map<String, Object> payloads = new LinkedHashMap<String, Object>();
+
+        final StringBuilder string = new StringBuilder();
+        for (int i = 0; string.length() < 1024; i++) {
+            string.append(words[random.nextInt(words.length)]).append(i).append('=')
+                    .append(words[random.nextInt(words.length)]).append(random.nextInt(100000)).append(';');
+        }
+        payloads.put("string (1KB)", string.toString());
+
+        final List<Map<String, Object>> list = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < 200; i++) {
+            final Map<String, Object> map = new HashMap<String, Object>();
+            map.put("id", Long.valueOf(random.nextInt(1000000)));
+            map.put("name", words[random.nextInt(words.length)] + "_" + random.nextInt(1000));
+            map.put("score", Double.valueOf(random.nextDouble()));
+            list.add(map);
+        }
+        payloads.put("serialized list", list);
+
+        final ArrayList<String> small = new ArrayList<String>();
+        for (int i = 0; i < 5; i++) {
+            small.add(words[random.nextInt(words.length)]);
+        }
+        payloads.put("small list", small);
+
+        final StringBuilder text = new StringBuilder();
+        while (text.length() < 16 * 1024) {
+            text.append(words[random.nextInt(words.length)]).append(' ').append(random.nextInt(1000)).append(' ');
+        }
+        payloads.put("text bytes (16KB)", text.toString().getBytes());
+        return payloads;
+    }
+}
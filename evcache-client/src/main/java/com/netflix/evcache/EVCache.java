@@ -1,5 +1,7 @@
 package com.netflix.evcache;
 
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Locale;
 import java.util.Map;
@@ -252,6 +254,47 @@ public interface EVCache {
     <T> EVCacheLatch set(String key, T value, Transcoder<T> tc, int timeToLive, EVCacheLatch.Policy policy)
             throws EVCacheException;
 
+    /**
+     * Set a value of <code>length</code> bytes read from the given stream
+     * regardless of any existing value. The value is always stored in
+     * chunks, each chunk is written to all the replicas as soon as it is read
+     * so the whole value is never held in memory. The value becomes visible
+     * once all its chunks are written and is read back as a
+     * <code>byte[]</code> by the default Transcoder. Chunking should be
+     * enabled for this app.
+     *
+     * @param key
+     *            the key under which this object should be added. Ensure the
+     *            key is properly encoded and does not contain whitespace or
+     *            control characters.
+     * @param in
+     *            the stream to read the value from
+     * @param length
+     *            the number of bytes to read from the stream
+     * @param timeToLive
+     *            the expiration of this object i.e. less than 30 days in
+     *            seconds or the exact expiry time as UNIX time
+     * @param policy
+     *            The Latch will be returned based on the Policy. The Latch can
+     *            then be used to await until the count down has reached to 0 or
+     *            the specified time has elapsed.
+     * @return the Latch representing the processing of this operation across
+     *         all the replicas
+     * @throws EVCacheException
+     *             if chunking is not enabled, the stream ends before
+     *             <code>length</code> bytes are read or any IO Related issues
+     */
+    EVCacheLatch set(String key, InputStream in, int length, int timeToLive, EVCacheLatch.Policy policy)
+            throws EVCacheException;
+
+    /**
+     * Set the remaining bytes of the given buffer as the value of the key.
+     * See {@link #set(String, InputStream, int, int, EVCacheLatch.Policy)}.
+     * The position of the buffer is not changed.
+     */
+    EVCacheLatch set(String key, ByteBuffer buffer, int timeToLive, EVCacheLatch.Policy policy)
+            throws EVCacheException;
+
     /**
      * Replace an existing object in the EVCACHE using the default Transcoder &
      * default TTL. If the object does not exist in EVCACHE then the value is
@@ -489,6 +532,41 @@ public interface EVCache {
      */
     <T> T get(String key, Transcoder<T> tc) throws EVCacheException;
 
+    /**
+     * Retrieve the value for the given key without decoding it. The value is
+     * decoded using the default Transcoder the first time
+     * {@link EVCacheLazyValue#get()} is called.
+     *
+     * @param key
+     *            key to get. Ensure the key is properly encoded and does not
+     *            contain whitespace or control characters.
+     * @return the lazily decoded Value for the given key from the cache (null
+     *         if there is none).
+     * @throws EVCacheException
+     *             in the rare circumstance where queue is too full to accept
+     *             any more requests or any IO Related issues
+     */
+    <T> EVCacheLazyValue<T> getLazy(String key) throws EVCacheException;
+
+    /**
+     * Retrieve the value for the given key without decoding it. The value is
+     * decoded using the given Transcoder the first time
+     * {@link EVCacheLazyValue#get()} is called. The in memory cache is not
+     * used.
+     *
+     * @param key
+     *            key to get. Ensure the key is properly encoded and does not
+     *            contain whitespace or control characters.
+     * @param tc
+     *            the Transcoder to deserialize the data
+     * @return the lazily decoded Value for the given key from the cache (null
+     *         if there is none).
+     * @throws EVCacheException
+     *             in the rare circumstance where queue is too full to accept
+     *             any more requests or any IO Related issues
+     */
+    <T> EVCacheLazyValue<T> getLazy(String key, Transcoder<T> tc) throws EVCacheException;
+
     /**
      * Retrieve the value for the given a key using the specified Transcoder for
      * deserialization.
@@ -650,6 +728,39 @@ public interface EVCache {
      */
     <T> Map<String, T> getBulk(Collection<String> keys, Transcoder<T> tc) throws EVCacheException;
 
+    /**
+     * Retrieve the values for the collection of keys without decoding them.
+     * Each value is decoded using the default Transcoder the first time
+     * {@link EVCacheLazyValue#get()} is called on it.
+     *
+     * @param keys
+     *            The collection of keys for which we need the values
+     * @return a map of the lazily decoded values, as returned by
+     *         {@link #getBulk(Collection)}
+     * @throws EVCacheException
+     *             in the rare circumstance where queue is too full to accept
+     *             any more requests or any IO Related issues
+     */
+    <T> Map<String, EVCacheLazyValue<T>> getBulkLazy(Collection<String> keys) throws EVCacheException;
+
+    /**
+     * Retrieve the values for the collection of keys without decoding them.
+     * Each value is decoded using the given Transcoder the first time
+     * {@link EVCacheLazyValue#get()} is called on it. The in memory cache is
+     * not used.
+     *
+     * @param keys
+     *            The collection of keys for which we need the values
+     * @param tc
+     *            the transcoder to use for deserialization
+     * @return a map of the lazily decoded values, as returned by
+     *         {@link #getBulk(Collection, Transcoder)}
+     * @throws EVCacheException
+     *             in the rare circumstance where queue is too full to accept
+     *             any more requests or any IO Related issues
+     */
+    <T> Map<String, EVCacheLazyValue<T>> getBulkLazy(Collection<String> keys, Transcoder<T> tc) throws EVCacheException;
+
     /**
      * Retrieve the value for the collection of keys, using the specified
      * Transcoder for deserialization.
@@ -1063,7 +1174,8 @@ public interface EVCache {
 
         /**
          * The default {@link Transcoder} to be used for serializing and
-         * de-serializing items in {@link EVCache}.
+         * de-serializing items in {@link EVCache}. See
+         * {@link EVCacheKryoTranscoder} to store objects using Kryo.
          *
          * @param transcoder
          * @return this {@code Builder} object
@@ -0,0 +1,155 @@
+package com.netflix.evcache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.netflix.config.ChainedDynamicProperty;
+import com.netflix.evcache.metrics.EVCacheMetricsFactory;
+import com.netflix.evcache.util.EVCacheConfig;
+import com.netflix.servo.monitor.Counter;
+import com.netflix.servo.monitor.LongGauge;
+import com.netflix.servo.tag.BasicTagList;
+
+/**
+ * Decides which values {@link EVCacheTranscoder} compresses from the
+ * compression ratios it has seen, instead of compressing every value over
+ * the compression threshold. The values are grouped in buckets by their type
+ * and their size rounded down to a power of 2. Compression is turned off for
+ * a bucket when it saves less than
+ * <code>compression.adaptive.min.savings.percent</code> of the bytes and
+ * turned back on when the values that are still sampled would save more.
+ *
+ * This is enabled using <code>&lt;app&gt;.compression.adaptive</code> or
+ * <code>default.evcache.compression.adaptive</code>. The decision of each
+ * bucket is exported as the gauge COMPRESSION_ENABLED and the bytes saved as
+ * the counter COMPRESSION_SAVED_BYTES, tagged with the type and size.
+ */
+class EVCacheAdaptiveCompression {
+
+    private static final Logger log = LoggerFactory.getLogger(EVCacheAdaptiveCompression.class);
+    private static final int MAX_BUCKETS = 1000;
+    private static final ConcurrentHashMap<String, EVCacheAdaptiveCompression> INSTANCES = new ConcurrentHashMap<String, EVCacheAdaptiveCompression>();
+
+    private final String name;
+    private final ChainedDynamicProperty.BooleanProperty enabled;
+    private final ChainedDynamicProperty.IntProperty minSize;
+    private final ChainedDynamicProperty.IntProperty minSavingsPercent;
+    private final ChainedDynamicProperty.IntProperty samplePercent;
+    private final ChainedDynamicProperty.IntProperty window;
+    private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+
+    /**
+     * Returns the instance of the given app, which is shared by all its
+     * transcoders.
+     */
+    static EVCacheAdaptiveCompression getInstance(String name) {
+        EVCacheAdaptiveCompression instance = INSTANCES.get(name);
+        if (instance == null) {
+            instance = new EVCacheAdaptiveCompression(name);
+            final EVCacheAdaptiveCompression existing = INSTANCES.putIfAbsent(name, instance);
+            if (existing != null) instance = existing;
+        }
+        return instance;
+    }
+
+    private EVCacheAdaptiveCompression(String name) {
+        this.name = name;
+        final EVCacheConfig config = EVCacheConfig.getInstance();
+        this.enabled = config.getChainedBooleanProperty(name + ".compression.adaptive", "default.evcache.compression.adaptive", Boolean.FALSE);
+        this.minSize = config.getChainedIntProperty(name + ".compression.adaptive.min.size", "default.evcache.compression.adaptive.min.size", 64);
+        this.minSavingsPercent = config.getChainedIntProperty(name + ".compression.adaptive.min.savings.percent", "default.evcache.compression.adaptive.min.savings.percent", 10);
+        this.samplePercent = config.getChainedIntProperty(name + ".compression.adaptive.sample.percent", "default.evcache.compression.adaptive.sample.percent", 1);
+        this.window = config.getChainedIntProperty(name + ".compression.adaptive.window", "default.evcache.compression.adaptive.window", 100);
+    }
+
+    boolean isEnabled() {
+        return enabled.get();
+    }
+
+    /**
+     * Returns the bucket of the given value that is <code>length</code> bytes
+     * once encoded, or null if it is too small to be compressed.
+     */
+    Bucket getBucket(Object value, int length) {
+        if (length < minSize.get()) return null;
+        final String type = (value == null) ? "null" : value.getClass().getName();
+        final int size = Integer.highestOneBit(length);
+        final String key = type + ":" + size;
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            // do not track an unbounded number of types
+            if (buckets.size() >= MAX_BUCKETS) return getBucket("other", size, "other:" + size);
+            bucket = getBucket(type, size, key);
+        }
+        return bucket;
+    }
+
+    private Bucket getBucket(String type, int size, String key) {
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new Bucket(type, size);
+            final Bucket existing = buckets.putIfAbsent(key, bucket);
+            if (existing != null) bucket = existing;
+        }
+        return bucket;
+    }
+
+    class Bucket {
+        private final String type;
+        private final int size;
+        private final AtomicLong samples = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong compressedBytes = new AtomicLong();
+        private final LongGauge gauge;
+        private final Counter savedBytes;
+        private volatile boolean compress = true;
+
+        Bucket(String type, int size) {
+            this.type = type;
+            this.size = size;
+            final BasicTagList tags = BasicTagList.of("APP", name, "TYPE", type, "SIZE", String.valueOf(size));
+            this.gauge = EVCacheMetricsFactory.getLongGauge(name + "-COMPRESSION_ENABLED", tags);
+            this.savedBytes = EVCacheMetricsFactory.getCounter(name + "-COMPRESSION_SAVED_BYTES", tags);
+            gauge.set(Long.valueOf(1));
+        }
+
+        /**
+         * Returns true if the value should be compressed. While compression
+         * is off for this bucket a few values are still compressed to follow
+         * the ratio.
+         */
+        boolean shouldCompress() {
+            return compress || ThreadLocalRandom.current().nextInt(100) < samplePercent.get();
+        }
+
+        /**
+         * Records the size of a value before and after it was compressed and
+         * decides again once enough values were seen.
+         */
+        void record(int length, int compressedLength) {
+            if (compressedLength < length) savedBytes.increment(length - compressedLength);
+            bytes.addAndGet(length);
+            compressedBytes.addAndGet(compressedLength);
+            if (samples.incrementAndGet() < window.get()) return;
+
+            synchronized (this) {
+                if (samples.get() < window.get()) return;
+                final long total = bytes.getAndSet(0);
+                final long compressed = compressedBytes.getAndSet(0);
+                samples.set(0);
+                final boolean shouldCompress = (total - compressed) * 100 >= total * minSavingsPercent.get();
+                if (shouldCompress != compress) {
+                    if (log.isDebugEnabled()) log.debug("Compression of " + type + " values of " + size + " bytes for " + name + " : " + shouldCompress
+                            + "; ratio : " + ((total == 0) ? 0 : (double) compressed / total));
+                    EVCacheMetricsFactory.increment(name + (shouldCompress ? "-COMPRESSION_ON" : "-COMPRESSION_OFF"));
+                    compress = shouldCompress;
+                    gauge.set(Long.valueOf(shouldCompress ? 1 : 0));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package com.netflix.evcache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.github.luben.zstd.Zstd;
+import com.google.common.io.ByteStreams;
+import com.netflix.config.ConfigurationManager;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+
+import org.iq80.snappy.Snappy;
+
+/**
+ * The codecs {@link EVCacheTranscoder} can compress values with. The codec of
+ * a value is stored in bits 4 to 6 of its flags, next to the compressed flag
+ * of SerializingTranscoder, so values written with different codecs can be
+ * read by the same client. GZIP has the id 0 so the values written before the
+ * codecs were added are read as GZIP.
+ *
+ * The codec used for writing is selected per app using
+ * <code>&lt;app&gt;.compression.codec</code> or
+ * <code>default.evcache.compression.codec</code>. All the clients that read
+ * an app must support the codec before it is enabled.
+ */
+public enum EVCacheCompression {
+
+    GZIP(0) {
+        @Override
+        public byte[] compress(byte[] in) throws IOException {
+            final ByteArrayOutputStream bos = new ByteArrayOutputStream(in.length);
+            try (GZIPOutputStream gz = new GZIPOutputStream(bos)) {
+                gz.write(in);
+            }
+            return bos.toByteArray();
+        }
+
+        @Override
+        void compress(byte[] in, int off, int len, EVCacheEncodeBuffer out) {
+            Gzip.compress(in, off, len, out);
+        }
+
+        @Override
+        public byte[] decompress(byte[] in) throws IOException {
+            return ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(in)));
+        }
+    },
+
+    /*
+     * The LZ4 block is prefixed with the length of the uncompressed data.
+     */
+    LZ4(1) {
+        @Override
+        public byte[] compress(byte[] in) {
+            return Lz4.compress(in);
+        }
+
+        @Override
+        void compress(byte[] in, int off, int len, EVCacheEncodeBuffer out) {
+            Lz4.compress(in, off, len, out);
+        }
+
+        @Override
+        public byte[] decompress(byte[] in) throws IOException {
+            return Lz4.decompress(in);
+        }
+    },
+
+    SNAPPY(2) {
+        @Override
+        public byte[] compress(byte[] in) {
+            return Snappy.compress(in);
+        }
+
+        @Override
+        void compress(byte[] in, int off, int len, EVCacheEncodeBuffer out) {
+            final byte[] buf = out.ensureCapacity(out.size() + Snappy.maxCompressedLength(len));
+            out.setSize(out.size() + Snappy.compress(in, off, len, buf, out.size()));
+        }
+
+        @Override
+        public byte[] decompress(byte[] in) throws IOException {
+            try {
+                return Snappy.uncompress(in, 0, in.length);
+            } catch (RuntimeException e) {
+                throw new IOException("Invalid snappy data", e);
+            }
+        }
+    },
+
+    /*
+     * The zstd frame has the length of the uncompressed data. The level is set
+     * using default.evcache.compression.zstd.level.
+     */
+    ZSTD(3) {
+        @Override
+        public byte[] compress(byte[] in) {
+            return Zstd.compress(in, ZstdLevel.LEVEL);
+        }
+
+        @Override
+        void compress(byte[] in, int off, int len, EVCacheEncodeBuffer out) throws IOException {
+            final int max = (int) Zstd.compressBound(len);
+            final byte[] buf = out.ensureCapacity(out.size() + max);
+            final long size = Zstd.compressByteArray(buf, out.size(), max, in, off, len, ZstdLevel.LEVEL);
+            if (Zstd.isError(size)) throw new IOException("Error compressing with zstd : " + Zstd.getErrorName(size));
+            out.setSize(out.size() + (int) size);
+        }
+
+        @Override
+        public byte[] decompress(byte[] in) throws IOException {
+            final long size = Zstd.getFrameContentSize(in);
+            if (size <= 0 || size > Integer.MAX_VALUE) throw new IOException("Invalid zstd frame content size " + size);
+            try {
+                return Zstd.decompress(in, (int) size);
+            } catch (RuntimeException e) {
+                throw new IOException("Invalid zstd data", e);
+            }
+        }
+    },
+
+    /*
+     * Zstd with a dictionary trained for the app. The transcoder compresses
+     * with the dictionaries of its app, see EVCacheZstdDictionaries.
+     */
+    ZSTD_DICT(4) {
+        @Override
+        public byte[] compress(byte[] in) throws IOException {
+            throw new IOException("Zstd dictionary compression needs the dictionaries of the app");
+        }
+
+        @Override
+        void compress(byte[] in, int off, int len, EVCacheEncodeBuffer out) throws IOException {
+            throw new IOException("Zstd dictionary compression needs the dictionaries of the app");
+        }
+
+        @Override
+        public byte[] decompress(byte[] in) throws IOException {
+            throw new IOException("Zstd dictionary compression needs the dictionaries of the app");
+        }
+    };
+
+    static final int SHIFT = 4;
+    static final int MASK = 0x7 << SHIFT;
+
+    private final int id;
+
+    private EVCacheCompression(int id) {
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public abstract byte[] compress(byte[] in) throws IOException;
+
+    public abstract byte[] decompress(byte[] in) throws IOException;
+
+    /**
+     * Compresses <code>len</code> bytes of <code>in</code> the same way as
+     * {@link #compress(byte[])} and appends them to <code>out</code>.
+     */
+    abstract void compress(byte[] in, int off, int len, EVCacheEncodeBuffer out) throws IOException;
+
+    /**
+     * Returns the flags with the bits of this codec set.
+     */
+    int toFlags(int flags) {
+        return (flags & ~MASK) | (id << SHIFT);
+    }
+
+    /**
+     * Returns the codec of a compressed value with the given flags or null if
+     * it is not known.
+     */
+    public static EVCacheCompression fromFlags(int flags) {
+        final int id = (flags & MASK) >>> SHIFT;
+        for (EVCacheCompression compression : values()) {
+            if (compression.id == id) return compression;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the codec with the given name or GZIP if it is not known.
+     */
+    public static EVCacheCompression fromName(String name) {
+        if (name != null) {
+            for (EVCacheCompression compression : values()) {
+                if (compression.name().equalsIgnoreCase(name)) return compression;
+            }
+        }
+        return GZIP;
+    }
+
+    /*
+     * The libraries of the codecs are only loaded when the codec is used.
+     */
+    private static class Lz4 {
+        private static final LZ4Factory FACTORY = LZ4Factory.fastestInstance();
+
+        static byte[] compress(byte[] in) {
+            final LZ4Compressor compressor = FACTORY.fastCompressor();
+            final int max = compressor.maxCompressedLength(in.length);
+            final byte[] out = new byte[max + 4];
+            writeLength(out, in.length);
+            final int len = compressor.compress(in, 0, in.length, out, 4, max);
+            final byte[] rv = new byte[len + 4];
+            System.arraycopy(out, 0, rv, 0, rv.length);
+            return rv;
+        }
+
+        static void compress(byte[] in, int off, int len, EVCacheEncodeBuffer out) {
+            final LZ4Compressor compressor = FACTORY.fastCompressor();
+            final int max = compressor.maxCompressedLength(len);
+            final int start = out.size();
+            final byte[] buf = out.ensureCapacity(start + max + 4);
+            buf[start] = (byte) (len >>> 24);
+            buf[start + 1] = (byte) (len >>> 16);
+            buf[start + 2] = (byte) (len >>> 8);
+            buf[start + 3] = (byte) len;
+            out.setSize(start + 4 + compressor.compress(in, off, len, buf, start + 4, max));
+        }
+
+        static byte[] decompress(byte[] in) throws IOException {
+            if (in.length < 4) throw new IOException("Invalid lz4 data of " + in.length + " bytes");
+            final int len = (in[0] & 0xff) << 24 | (in[1] & 0xff) << 16 | (in[2] & 0xff) << 8 | (in[3] & 0xff);
+            if (len < 0) throw new IOException("Invalid lz4 length " + len);
+            final byte[] out = new byte[len];
+            try {
+                final int read = FACTORY.safeDecompressor().decompress(in, 4, in.length - 4, out, 0);
+                if (read != len) throw new IOException("Expected " + len + " bytes of lz4 data but got " + read);
+            } catch (RuntimeException e) {
+                throw new IOException("Invalid lz4 data", e);
+            }
+            return out;
+        }
+
+        private static void writeLength(byte[] out, int len) {
+            out[0] = (byte) (len >>> 24);
+            out[1] = (byte) (len >>> 16);
+            out[2] = (byte) (len >>> 8);
+            out[3] = (byte) len;
+        }
+    }
+
+    /*
+     * Writes the same gzip format as GZIPOutputStream using a pool of
+     * deflaters, as each GZIPOutputStream allocates a deflater and its
+     * buffers.
+     */
+    private static class Gzip {
+        private static final byte[] HEADER = { (byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+        private static final BlockingQueue<Deflater> DEFLATERS = new ArrayBlockingQueue<Deflater>(Runtime.getRuntime().availableProcessors() * 2);
+
+        static void compress(byte[] in, int off, int len, EVCacheEncodeBuffer out) {
+            Deflater deflater = DEFLATERS.poll();
+            if (deflater == null) deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                out.write(HEADER, 0, HEADER.length);
+                deflater.setInput(in, off, len);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    final byte[] buf = out.ensureCapacity(out.size() + Math.max(512, len >>> 2));
+                    out.setSize(out.size() + deflater.deflate(buf, out.size(), buf.length - out.size()));
+                }
+            } finally {
+                deflater.reset();
+                if (!DEFLATERS.offer(deflater)) deflater.end();
+            }
+
+            final CRC32 crc = new CRC32();
+            crc.update(in, off, len);
+            writeInt(out, (int) crc.getValue());
+            writeInt(out, len);
+        }
+
+        // gzip uses little endian
+        private static void writeInt(EVCacheEncodeBuffer out, int value) {
+            out.write(value);
+            out.write(value >>> 8);
+            out.write(value >>> 16);
+            out.write(value >>> 24);
+        }
+    }
+
+    private static class ZstdLevel {
+        private static final int LEVEL = ConfigurationManager.getConfigInstance().getInt("default.evcache.compression.zstd.level", 1);
+    }
+}
@@ -0,0 +1,103 @@
+package com.netflix.evcache;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.netflix.config.ConfigurationManager;
+
+/**
+ * A growable buffer {@link EVCacheTranscoder} serializes and compresses values
+ * in to, so that encoding a value allocates only the exact-size array that is
+ * stored. The buffers are reused from a pool shared by all the threads that
+ * holds at most <code>default.evcache.encode.buffer.pool.size</code> buffers,
+ * twice the number of processors by default, instead of keeping buffers on
+ * every thread that ever encoded a value.
+ *
+ * A buffer that grew larger than
+ * <code>default.evcache.encode.buffer.max.retained.size</code> is shrunk once
+ * the value is encoded so that a few large values do not keep memory in the
+ * pool.
+ */
+final class EVCacheEncodeBuffer extends OutputStream {
+
+    private static final int INITIAL_SIZE = 1024;
+    private static final int MAX_RETAINED_SIZE = ConfigurationManager.getConfigInstance().getInt("default.evcache.encode.buffer.max.retained.size", 16 * 1024);
+    private static final int POOL_SIZE = ConfigurationManager.getConfigInstance().getInt("default.evcache.encode.buffer.pool.size", 2 * Runtime.getRuntime().availableProcessors());
+
+    private static final BlockingQueue<EVCacheEncodeBuffer> POOL = new ArrayBlockingQueue<EVCacheEncodeBuffer>(Math.max(1, POOL_SIZE));
+
+    private byte[] buf = new byte[INITIAL_SIZE];
+    private int count;
+
+    private EVCacheEncodeBuffer() {
+    }
+
+    /**
+     * Returns an empty buffer from the pool, or a new one if the pool is
+     * empty, e.g. when a value is encoded while serializing another one. It
+     * must be released once the value is encoded.
+     */
+    static EVCacheEncodeBuffer acquire() {
+        final EVCacheEncodeBuffer buffer = POOL.poll();
+        return (buffer == null) ? new EVCacheEncodeBuffer() : buffer;
+    }
+
+    /**
+     * Returns the buffer to the pool, or drops it if the pool is full.
+     */
+    void release() {
+        count = 0;
+        if (buf.length > MAX_RETAINED_SIZE) buf = new byte[INITIAL_SIZE];
+        POOL.offer(this);
+    }
+
+    /**
+     * Returns the array of this buffer, which holds at least
+     * <code>minCapacity</code> bytes. The array changes when the buffer grows.
+     */
+    byte[] ensureCapacity(int minCapacity) {
+        if (minCapacity < 0) throw new OutOfMemoryError("Can not encode more than " + Integer.MAX_VALUE + " bytes");
+        if (minCapacity > buf.length) {
+            int capacity = buf.length << 1;
+            if (capacity < minCapacity) capacity = minCapacity;
+            if (capacity < 0) capacity = Integer.MAX_VALUE - 8;
+            buf = Arrays.copyOf(buf, capacity);
+        }
+        return buf;
+    }
+
+    byte[] array() {
+        return buf;
+    }
+
+    int size() {
+        return count;
+    }
+
+    void setSize(int size) {
+        this.count = size;
+    }
+
+    /**
+     * Returns a copy of the bytes written to this buffer.
+     */
+    byte[] toByteArray() {
+        return Arrays.copyOf(buf, count);
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(count + 1);
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || off + len > b.length) throw new IndexOutOfBoundsException();
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+}
@@ -2,6 +2,8 @@ package com.netflix.evcache;
 
 import static com.netflix.evcache.util.Sneaky.sneakyThrow;
 
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -10,12 +12,18 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Checksum;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Ints;
 import com.netflix.config.ChainedDynamicProperty;
 import com.netflix.config.DynamicBooleanProperty;
 import com.netflix.evcache.EVCacheLatch.Policy;
@@ -27,16 +35,19 @@ import com.netflix.evcache.metrics.Stats;
 import com.netflix.evcache.operation.EVCacheFuture;
 import com.netflix.evcache.operation.EVCacheLatchImpl;
 import com.netflix.evcache.operation.EVCacheOperationFuture;
+import com.netflix.evcache.pool.ChunkChecksum;
 import com.netflix.evcache.pool.EVCacheClient;
 import com.netflix.evcache.pool.EVCacheClientPool;
 import com.netflix.evcache.pool.EVCacheClientPoolManager;
 import com.netflix.evcache.pool.EVCacheClientUtil;
+import com.netflix.evcache.pool.EVCacheHotKeyTracker;
 import com.netflix.evcache.util.EVCacheConfig;
 import com.netflix.servo.annotations.DataSourceType;
 import com.netflix.servo.monitor.Counter;
 import com.netflix.spectator.api.DistributionSummary;
 
 import net.spy.memcached.CachedData;
+import net.spy.memcached.internal.OperationFuture;
 import net.spy.memcached.transcoders.Transcoder;
 import net.spy.memcached.util.StringUtils;
 import rx.Observable;
@@ -73,6 +84,10 @@ final public class EVCacheImpl implements EVCache {
     private final DynamicBooleanProperty _bulkZoneFallbackFP;
     private final DynamicBooleanProperty _bulkPartialZoneFallbackFP;
     private final ChainedDynamicProperty.BooleanProperty _useInMemoryCache;
+    private final ChainedDynamicProperty.BooleanProperty _coalesceGetsFP;
+    private final ChainedDynamicProperty.IntProperty _maxChunksInFlight;
+    private final EVCacheNegativeCache _negativeCache;
+    private final ConcurrentHashMap<String, EVCacheOperationFuture<?>> inFlightGets = new ConcurrentHashMap<String, EVCacheOperationFuture<?>>();
     private final Stats stats;
     private EVCacheInMemoryCache<?> cache;
     private EVCacheClientUtil clientUtil = null;
@@ -102,6 +117,9 @@ final public class EVCacheImpl implements EVCache {
         _bulkZoneFallbackFP = config.getDynamicBooleanProperty(_appName + ".bulk.fallback.zone", true);
         _bulkPartialZoneFallbackFP = config.getDynamicBooleanProperty(_appName+ ".bulk.partial.fallback.zone", true);
         _useInMemoryCache = config.getChainedBooleanProperty(_appName + ".use.inmemory.cache", "evcache.use.inmemory.cache", Boolean.FALSE);
+        _coalesceGetsFP = config.getChainedBooleanProperty(_metricName + ".coalesce.gets", _appName + ".coalesce.gets", Boolean.FALSE);
+        _maxChunksInFlight = config.getChainedIntProperty(_appName + ".chunk.write.max.inflight", "evcache.chunk.write.max.inflight", 16);
+        _negativeCache = new EVCacheNegativeCache(_appName);
         _pool.pingServers();
     }
 
@@ -188,10 +206,45 @@ final public class EVCacheImpl implements EVCache {
     }
 
     private <T> EVCacheInMemoryCache<T> getInMemoryCache() {
-        if (cache == null) cache = new EVCacheInMemoryCache<T>(_appName);
+        if (cache == null) cache = new EVCacheInMemoryCache<T>(_appName, _cacheName, _transcoder, (canonicalKey, tc) -> get(getKey(canonicalKey), tc, false));
         return (EVCacheInMemoryCache<T>) cache;
     }
 
+    /*
+     * The in memory cache is used for all the keys if it is enabled, otherwise
+     * only for the hot keys found by the client.
+     */
+    private boolean isInMemoryCacheEnabled(EVCacheClient client, String canonicalKey) {
+        return _useInMemoryCache.get() || client.getHotKeyTracker().isHotKey(canonicalKey);
+    }
+
+    /*
+     * A write keeps the in memory cache in step for a key that any of the
+     * clients it goes to finds hot, as the reads may go to any of them.
+     */
+    private boolean isInMemoryCacheEnabled(EVCacheClient[] clients, String canonicalKey) {
+        if (_useInMemoryCache.get()) return true;
+        for (EVCacheClient client : clients) {
+            if (client.getHotKeyTracker().isHotKey(canonicalKey)) return true;
+        }
+        return false;
+    }
+
+    /*
+     * Returns true if the key was recently found to be absent, in which case
+     * the read completes as a miss without going to the servers.
+     */
+    private boolean isNegativelyCached(String canonicalKey, EVCacheEvent event, String status) {
+        if (!_negativeCache.isMiss(canonicalKey)) return false;
+        increment(null, _cacheName, "NEGATIVE_CACHE_HIT");
+        if (log.isDebugEnabled() && shouldLog()) log.debug("APP " + _appName + " ; negative cache hit for key : " + canonicalKey);
+        if (event != null) {
+            event.setAttribute("status", status);
+            endEvent(event);
+        }
+        return true;
+    }
+
     public <T> T get(String key) throws EVCacheException {
         return this.get(key, (Transcoder<T>) _transcoder);
     }
@@ -205,6 +258,38 @@ final public class EVCacheImpl implements EVCache {
     }
 
     public <T> T get(String key, Transcoder<T> tc) throws EVCacheException {
+        return get(key, tc, true);
+    }
+
+    public <T> EVCacheLazyValue<T> getLazy(String key) throws EVCacheException {
+        return this.getLazy(key, (Transcoder<T>) _transcoder);
+    }
+
+    /*
+     * The in memory cache is not used by the lazy gets as it holds decoded
+     * values.
+     */
+    public <T> EVCacheLazyValue<T> getLazy(String key, Transcoder<T> tc) throws EVCacheException {
+        return get(key, new EVCacheLazyTranscoder<T>(getReadTranscoder(tc)), false);
+    }
+
+    /*
+     * Returns the transcoder the values read with the given one are decoded
+     * with: the given one, the one of this EVCache or the one of the clients.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> Transcoder<T> getReadTranscoder(Transcoder<T> tc) {
+        if (tc != null) return tc;
+        if (_transcoder != null) return (Transcoder<T>) _transcoder;
+        final EVCacheClient client = _pool.getEVCacheClientForRead();
+        return (client == null) ? null : (Transcoder<T>) client.getTranscoder();
+    }
+
+    /*
+     * The in memory cache reloads the entries that are about to expire through
+     * this method with allowInMemoryCache set to false.
+     */
+    private <T> T get(String key, Transcoder<T> tc, boolean allowInMemoryCache) throws EVCacheException {
         if (null == key) throw new IllegalArgumentException("Key cannot be null");
 
         final boolean throwExc = doThrowException();
@@ -233,24 +318,29 @@ final public class EVCacheImpl implements EVCache {
         }
 
         final String canonicalKey = getCanonicalizedKey(key);
-        if (_useInMemoryCache.get()) {
-            T value = (T) getInMemoryCache().get(canonicalKey);
+        final boolean useInMemoryCache = allowInMemoryCache && isInMemoryCacheEnabled(client, canonicalKey);
+        if (useInMemoryCache) {
+            T value = this.<T>getInMemoryCache().get(canonicalKey, tc);
             if (log.isDebugEnabled() && shouldLog()) log.debug("Value retrieved from inmemory cache for APP " + _appName + ", key : " + canonicalKey + (log.isTraceEnabled() ? "; value : " + value : ""));
             if (value != null) return value;
         }
 
+        if (isNegativelyCached(canonicalKey, event, "GMISS")) return null;
+        final Transcoder<T> readTc = useInMemoryCache ? this.<T>getInMemoryCache().getWeighingTranscoder(getReadTranscoder(tc)) : tc;
+        final EVCacheNegativeCache.Read negativeRead = _negativeCache.startRead(canonicalKey);
+
         final Operation op = EVCacheMetricsFactory.getOperation(_metricName, Call.GET, stats, Operation.TYPE.MILLI);
         try {
             final boolean hasZF = hasZoneFallback();
             boolean throwEx = hasZF ? false : throwExc;
-            T data = getData(client, canonicalKey, tc, throwEx, hasZF);
+            T data = getData(client, canonicalKey, readTc, throwEx, hasZF, negativeRead);
             if (data == null && hasZF) {
                 final List<EVCacheClient> fbClients = _pool.getEVCacheClientsForReadExcluding(client.getServerGroup());
                 if (fbClients != null && !fbClients.isEmpty()) {
                     for (int i = 0; i < fbClients.size(); i++) {
                         final EVCacheClient fbClient = fbClients.get(i);
                         if(i >= fbClients.size() - 1) throwEx = throwExc;
-                        data = getData(fbClient, canonicalKey, tc, throwEx, (i < fbClients.size() - 1) ? true : false);
+                        data = getData(fbClient, canonicalKey, readTc, throwEx, (i < fbClients.size() - 1) ? true : false, negativeRead);
                         if (log.isDebugEnabled() && shouldLog()) log.debug("Retry for APP " + _appName + ", key [" + canonicalKey + (log.isTraceEnabled() ? "], Value [" + data : "") + "], ServerGroup : " + fbClient.getServerGroup());
                         if (data != null) {
                             client = fbClient;
@@ -263,13 +353,14 @@ final public class EVCacheImpl implements EVCache {
             if (data != null) {
                 stats.cacheHit(Call.GET);
                 if (event != null) event.setAttribute("status", "GHIT");
-                if (_useInMemoryCache.get()) {
-                    getInMemoryCache().put(canonicalKey, data);
+                if (useInMemoryCache) {
+                    this.<T>getInMemoryCache().put(canonicalKey, data, readTc);
                     if (log.isDebugEnabled() && shouldLog()) log.debug("Value added to inmemory cache for APP " + _appName + ", key : " + canonicalKey);
                 }
             } else {
                 stats.cacheMiss(Call.GET);
                 if (event != null) event.setAttribute("status", "GMISS");
+                _negativeCache.put(negativeRead);
                 if (log.isInfoEnabled() && shouldLog()) log.info("GET : APP " + _appName + " ; cache miss for key : " + canonicalKey);
             }
             if (log.isDebugEnabled() && shouldLog()) log.debug("GET : APP " + _appName + ", key [" + canonicalKey + (log.isTraceEnabled() ? "], Value [" + data : "") + "], ServerGroup : " + client.getServerGroup());
@@ -321,21 +412,26 @@ final public class EVCacheImpl implements EVCache {
         }
 
         final String canonicalKey = getCanonicalizedKey(key);
-        if (_useInMemoryCache.get()) {
-            T value = (T) getInMemoryCache().get(canonicalKey);
+        final boolean useInMemoryCache = isInMemoryCacheEnabled(client, canonicalKey);
+        if (useInMemoryCache) {
+            T value = this.<T>getInMemoryCache().get(canonicalKey, tc);
             if (log.isDebugEnabled() && shouldLog()) log.debug("Value retrieved from inmemory cache for APP " + _appName + ", key : " + canonicalKey + (log.isTraceEnabled() ? "], Value [" + value : "]") );
             if (value != null) return Single.just(value);
         }
 
+        if (isNegativelyCached(canonicalKey, event, "GMISS")) return Single.just(null);
+        final Transcoder<T> readTc = useInMemoryCache ? this.<T>getInMemoryCache().getWeighingTranscoder(getReadTranscoder(tc)) : tc;
+        final EVCacheNegativeCache.Read negativeRead = _negativeCache.startRead(canonicalKey);
+
         final Operation op = EVCacheMetricsFactory.getOperation(_metricName, Call.GET, stats, Operation.TYPE.MILLI);
         final boolean hasZF = hasZoneFallback();
         boolean throwEx = hasZF ? false : throwExc;
-        return getData(client, canonicalKey, tc, throwEx, hasZF, scheduler).flatMap(data -> {
+        return getData(client, canonicalKey, readTc, throwEx, hasZF, negativeRead, scheduler).flatMap(data -> {
             if (data == null && hasZF) {
                 final List<EVCacheClient> fbClients = _pool.getEVCacheClientsForReadExcluding(client.getServerGroup());
                 if (fbClients != null && !fbClients.isEmpty()) {
                     return Observable.concat(Observable.from(fbClients).map(
-                            fbClient -> getData(fbClients.indexOf(fbClient), fbClients.size(), fbClient, canonicalKey, tc, throwEx, throwExc, false, scheduler) //TODO : for the last one make sure to pass throwExc
+                            fbClient -> getData(fbClients.indexOf(fbClient), fbClients.size(), fbClient, canonicalKey, readTc, throwEx, throwExc, false, negativeRead, scheduler) //TODO : for the last one make sure to pass throwExc
                             .doOnSuccess(fbData -> increment(fbClient.getServerGroupName(), _cacheName, "RETRY_" + ((fbData == null) ? "MISS" : "HIT")))
                             .toObservable()))
                             .firstOrDefault(null, fbData -> (fbData != null)).toSingle();
@@ -346,13 +442,14 @@ final public class EVCacheImpl implements EVCache {
             if (data != null) {
                 stats.cacheHit(Call.GET);
                 if (event != null) event.setAttribute("status", "GHIT");
-                if (_useInMemoryCache.get()) {
-                    getInMemoryCache().put(canonicalKey, data);
+                if (useInMemoryCache) {
+                    this.<T>getInMemoryCache().put(canonicalKey, data, readTc);
                     if (log.isDebugEnabled() && shouldLog()) log.debug("Value added to inmemory cache for APP " + _appName + ", key : " + canonicalKey);
                 }
             } else {
                 stats.cacheMiss(Call.GET);
                 if (event != null) event.setAttribute("status", "GMISS");
+                _negativeCache.put(negativeRead);
                 if (log.isInfoEnabled() && shouldLog())
                     log.info("GET : APP " + _appName + " ; cache miss for key : " + canonicalKey);
             }
@@ -378,35 +475,73 @@ final public class EVCacheImpl implements EVCache {
         });
     }
 
-    private <T> T getData(EVCacheClient client, String canonicalKey, Transcoder<T> tc, boolean throwException, boolean hasZF) throws Exception {
-        if (client == null) return null;
+    /*
+     * When the miss may be negatively cached the client is asked to throw so
+     * that a read which could not be answered is not taken for a miss. The
+     * failure is recorded on the negative read and then handled as usual.
+     */
+    private <T> T getData(EVCacheClient client, String canonicalKey, Transcoder<T> tc, boolean throwException, boolean hasZF, EVCacheNegativeCache.Read negativeRead) throws Exception {
+        if (client == null) {
+            if (negativeRead != null) negativeRead.failed();
+            return null;
+        }
+        final boolean clientThrows = throwException || negativeRead != null;
         try {
             if(tc == null && _transcoder != null) tc = (Transcoder<T>)_transcoder;
-            return client.get(canonicalKey, tc, throwException, hasZF);
+            if (shouldCoalesce(client, tc)) {
+                final EVCacheOperationFuture<T> inFlight = getInFlightGet(client, canonicalKey);
+                if (inFlight != null) return inFlight.await(client.getReadTimeout().get(), TimeUnit.MILLISECONDS, clientThrows);
+                final EVCacheOperationFuture<T> future = startInFlightGet(client, canonicalKey, tc, clientThrows);
+                if (future == null) return null;
+                return future.get(client.getReadTimeout().get(), TimeUnit.MILLISECONDS, clientThrows, hasZF);
+            }
+            return client.get(canonicalKey, tc, clientThrows, hasZF);
         } catch (EVCacheReadQueueException ex) {
+            if (negativeRead != null) negativeRead.failed();
             if (log.isDebugEnabled() && shouldLog()) log.debug("EVCacheReadQueueException while getting data for APP " + _appName + ", key : " + canonicalKey + "; hasZF : " + hasZF, ex);
             if (!throwException || hasZF) return null;
             throw ex;
         } catch (EVCacheException ex) {
+            if (negativeRead != null) negativeRead.failed();
             if (log.isDebugEnabled() && shouldLog()) log.debug("EVCacheException while getting data for APP " + _appName + ", key : " + canonicalKey + "; hasZF : " + hasZF, ex);
             if (!throwException || hasZF) return null;
             throw ex;
         } catch (Exception ex) {
+            if (negativeRead != null) negativeRead.failed();
             if (log.isDebugEnabled() && shouldLog()) log.debug("Exception while getting data for APP " + _appName + ", key : " + canonicalKey, ex);
             if (!throwException || hasZF) return null;
             throw ex;
         }
     }
 
-    private <T> Single<T> getData(int index, int size, EVCacheClient client, String canonicalKey, Transcoder<T> tc, boolean throwEx, boolean throwExc, boolean hasZF, Scheduler scheduler) {
+    private <T> Single<T> getData(int index, int size, EVCacheClient client, String canonicalKey, Transcoder<T> tc, boolean throwEx, boolean throwExc, boolean hasZF, EVCacheNegativeCache.Read negativeRead, Scheduler scheduler) {
         if(index >= size -1) throwEx = throwExc; 
-        return getData(client, canonicalKey, tc, throwEx, hasZF, scheduler);
+        return getData(client, canonicalKey, tc, throwEx, hasZF, negativeRead, scheduler);
     }
 
-    private <T> Single<T> getData(EVCacheClient client, String canonicalKey, Transcoder<T> tc, boolean throwException, boolean hasZF, Scheduler scheduler) {
+    private <T> Single<T> getData(EVCacheClient client, String canonicalKey, Transcoder<T> tc, boolean throwException, boolean hasZF, EVCacheNegativeCache.Read negativeRead, Scheduler scheduler) {
         if (client == null) return Single.error(new IllegalArgumentException("Client cannot be null"));
         if(tc == null && _transcoder != null) tc = (Transcoder<T>)_transcoder;
-        return client.get(canonicalKey, tc, throwException, hasZF, scheduler).onErrorReturn(ex -> {
+        final boolean clientThrows = throwException || negativeRead != null;
+        final Single<T> single;
+        if (shouldCoalesce(client, tc)) {
+            try {
+                final EVCacheOperationFuture<T> inFlight = getInFlightGet(client, canonicalKey);
+                if (inFlight != null) {
+                    single = inFlight.await(client.getReadTimeout().get(), TimeUnit.MILLISECONDS, clientThrows, scheduler);
+                } else {
+                    final EVCacheOperationFuture<T> future = startInFlightGet(client, canonicalKey, tc, clientThrows);
+                    single = (future == null) ? Single.just(null) : future.get(client.getReadTimeout().get(), TimeUnit.MILLISECONDS, clientThrows, hasZF, scheduler);
+                }
+            } catch (Throwable e) {
+                if (negativeRead != null) negativeRead.failed();
+                return Single.error(e);
+            }
+        } else {
+            single = client.get(canonicalKey, tc, clientThrows, hasZF, scheduler);
+        }
+        return single.onErrorReturn(ex -> {
+            if (negativeRead != null) negativeRead.failed();
             if (ex instanceof EVCacheReadQueueException) {
                 if (log.isDebugEnabled() && shouldLog()) log.debug("EVCacheReadQueueException while getting data for APP " + _appName + ", key : " + canonicalKey + "; hasZF : " + hasZF, ex);
                 if (!throwException || hasZF) return null;
@@ -423,20 +558,68 @@ final public class EVCacheImpl implements EVCache {
         });
     }
 
+    /*
+     * Concurrent gets of a key are coalesced only if they decode with the
+     * transcoder a get of this EVCache uses by default, which the in memory
+     * cache may wrap to weigh the values, and the data is not chunked. That is
+     * the transcoder of this EVCache or, if it has none, the one of the client.
+     */
+    private boolean shouldCoalesce(EVCacheClient client, Transcoder<?> tc) {
+        if (!_coalesceGetsFP.get() || client.getEnableChunking().get()) return false;
+        if (tc instanceof EVCacheInMemoryCache.WeighingTranscoder) tc = ((EVCacheInMemoryCache.WeighingTranscoder<?>) tc).getTranscoder();
+        if (tc == null) return true;
+        return tc == ((_transcoder != null) ? _transcoder : client.getTranscoder());
+    }
+
+    /*
+     * Returns the future of the get that is in flight for the key on the given
+     * client, or null if there is none. Only the get that issued it drives the
+     * operation, including its timeout, the others wait for it using
+     * EVCacheOperationFuture.await.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> EVCacheOperationFuture<T> getInFlightGet(EVCacheClient client, String canonicalKey) {
+        final String inFlightKey = client.getServerGroupName() + ':' + canonicalKey;
+        final EVCacheOperationFuture<T> inFlight = (EVCacheOperationFuture<T>) inFlightGets.get(inFlightKey);
+        if (inFlight == null) return null;
+        if (inFlight.isDone()) {
+            inFlightGets.remove(inFlightKey, inFlight);
+            return null;
+        }
+        increment(client.getServerGroupName(), _cacheName, "COALESCED_GET");
+        return inFlight;
+    }
+
+    /*
+     * Issues a get that the concurrent gets of the key can be coalesced with.
+     * The future is removed once it completes.
+     */
+    private <T> EVCacheOperationFuture<T> startInFlightGet(EVCacheClient client, String canonicalKey, Transcoder<T> tc, boolean throwException) throws Exception {
+        final String inFlightKey = client.getServerGroupName() + ':' + canonicalKey;
+        final EVCacheOperationFuture<T> future = client.asyncGet(canonicalKey, tc, throwException);
+        if (future != null && inFlightGets.putIfAbsent(inFlightKey, future) == null) {
+            future.addListener((EVCacheGetOperationListener<T>) f -> inFlightGets.remove(inFlightKey, f));
+        }
+        return future;
+    }
+
     private <T> T getAndTouchData(EVCacheClient client, String canonicalKey, Transcoder<T> tc, boolean throwException,
-            boolean hasZF, int timeToLive) throws Exception {
+            boolean hasZF, int timeToLive, EVCacheNegativeCache.Read negativeRead) throws Exception {
         try {
             if(tc == null && _transcoder != null) tc = (Transcoder<T>)_transcoder;
-            return client.getAndTouch(canonicalKey, tc, timeToLive, throwException, hasZF);
+            return client.getAndTouch(canonicalKey, tc, timeToLive, throwException || negativeRead != null, hasZF);
         } catch (EVCacheReadQueueException ex) {
+            if (negativeRead != null) negativeRead.failed();
             if (log.isDebugEnabled() && shouldLog()) log.debug( "EVCacheReadQueueException while getAndTouch data for APP " + _appName + ", key : " + canonicalKey + "; hasZF : " + hasZF, ex);
             if (!throwException || hasZF) return null;
             throw ex;
         } catch (EVCacheException ex) {
+            if (negativeRead != null) negativeRead.failed();
             if (log.isDebugEnabled() && shouldLog()) log.debug("EVCacheException while getAndTouch data for APP " + _appName + ", key : " + canonicalKey + "; hasZF : " + hasZF, ex);
             if (!throwException || hasZF) return null;
             throw ex;
         } catch (Exception ex) {
+            if (negativeRead != null) negativeRead.failed();
             if (log.isDebugEnabled() && shouldLog()) log.debug("Exception while getAndTouch data for APP " + _appName + ", key : " + canonicalKey, ex);
             if (!throwException || hasZF) return null;
             throw ex;
@@ -477,8 +660,9 @@ final public class EVCacheImpl implements EVCache {
         }
 
         final String canonicalKey = getCanonicalizedKey(key);
-        if (_useInMemoryCache.get()) {
-            T value = (T) getInMemoryCache().get(canonicalKey);
+        final boolean useInMemoryCache = isInMemoryCacheEnabled(client, canonicalKey);
+        if (useInMemoryCache) {
+            T value = this.<T>getInMemoryCache().get(canonicalKey, tc);
             if (log.isDebugEnabled() && shouldLog()) log.debug("Value retrieved from inmemory cache for APP " + _appName + ", key : [" + canonicalKey + (log.isTraceEnabled() ? "], Value [" + value : "]") );
             if (value != null) {
                 try {
@@ -490,16 +674,20 @@ final public class EVCacheImpl implements EVCache {
             }
         }
 
+        if (isNegativelyCached(canonicalKey, event, "TMISS")) return Single.just(null);
+        final Transcoder<T> readTc = useInMemoryCache ? this.<T>getInMemoryCache().getWeighingTranscoder(getReadTranscoder(tc)) : tc;
+        final EVCacheNegativeCache.Read negativeRead = _negativeCache.startRead(canonicalKey);
+
         final Operation op = EVCacheMetricsFactory.getOperation(_metricName, Call.GET_AND_TOUCH, stats, Operation.TYPE.MILLI);
         final boolean hasZF = hasZoneFallback();
         boolean throwEx = hasZF ? false : throwExc;
         //anyway we have to touch all copies so let's just reuse getData instead of getAndTouch
-        return getData(client, canonicalKey, tc, throwEx, hasZF, scheduler).flatMap(data -> {
+        return getData(client, canonicalKey, readTc, throwEx, hasZF, negativeRead, scheduler).flatMap(data -> {
             if (data == null && hasZF) {
                 final List<EVCacheClient> fbClients = _pool.getEVCacheClientsForReadExcluding(client.getServerGroup());
                 if (fbClients != null && !fbClients.isEmpty()) {
                     return Observable.concat(Observable.from(fbClients).map(
-                            fbClient -> getData(fbClients.indexOf(fbClient), fbClients.size(), fbClient, canonicalKey, tc, throwEx, throwExc, false, scheduler) //TODO : for the last one make sure to pass throwExc
+                            fbClient -> getData(fbClients.indexOf(fbClient), fbClients.size(), fbClient, canonicalKey, readTc, throwEx, throwExc, false, negativeRead, scheduler) //TODO : for the last one make sure to pass throwExc
                             .doOnSuccess(fbData -> increment(fbClient.getServerGroupName(), _cacheName, "RETRY_" + ((fbData == null) ? "MISS" : "HIT")))
                             .toObservable()))
                             .firstOrDefault(null, fbData -> (fbData != null)).toSingle();
@@ -510,8 +698,8 @@ final public class EVCacheImpl implements EVCache {
             if (data != null) {
                 stats.cacheHit(Call.GET_AND_TOUCH);
                 if (event != null) event.setAttribute("status", "THIT");
-                if (_useInMemoryCache.get()) {
-                    getInMemoryCache().put(canonicalKey, data);
+                if (useInMemoryCache) {
+                    this.<T>getInMemoryCache().put(canonicalKey, data, readTc);
                     if (log.isDebugEnabled() && shouldLog()) log.debug("Value added to inmemory cache for APP " + _appName + ", key : " + canonicalKey);
                 }
                 // touch all copies
@@ -524,6 +712,7 @@ final public class EVCacheImpl implements EVCache {
             } else {
                 stats.cacheMiss(Call.GET_AND_TOUCH);
                 if (event != null) event.setAttribute("status", "TMISS");
+                _negativeCache.put(negativeRead);
                 if (log.isInfoEnabled() && shouldLog()) log.info("GET_AND_TOUCH : APP " + _appName + " ; cache miss for key : " + canonicalKey);
             }
             if (event != null) endEvent(event);
@@ -575,8 +764,9 @@ final public class EVCacheImpl implements EVCache {
         }
 
         final String canonicalKey = getCanonicalizedKey(key);
-        if (_useInMemoryCache.get()) {
-            T value = (T) getInMemoryCache().get(canonicalKey);
+        final boolean useInMemoryCache = isInMemoryCacheEnabled(client, canonicalKey);
+        if (useInMemoryCache) {
+            T value = this.<T>getInMemoryCache().get(canonicalKey, tc);
             if (value != null) {
             	try {
 					touchData(canonicalKey, key, timeToLive);
@@ -587,17 +777,21 @@ final public class EVCacheImpl implements EVCache {
             }
         }
 
+        if (isNegativelyCached(canonicalKey, event, "TMISS")) return null;
+        final Transcoder<T> readTc = useInMemoryCache ? this.<T>getInMemoryCache().getWeighingTranscoder(getReadTranscoder(tc)) : tc;
+        final EVCacheNegativeCache.Read negativeRead = _negativeCache.startRead(canonicalKey);
+
         final Operation op = EVCacheMetricsFactory.getOperation(_metricName, Call.GET_AND_TOUCH, stats, Operation.TYPE.MILLI);
         try {
             final boolean hasZF = hasZoneFallback();
             boolean throwEx = hasZF ? false : throwExc;
-            T data = getAndTouchData(client, canonicalKey, tc, throwEx, hasZF, timeToLive);
+            T data = getAndTouchData(client, canonicalKey, readTc, throwEx, hasZF, timeToLive, negativeRead);
             if (data == null && hasZF) {
                 final List<EVCacheClient> fbClients = _pool.getEVCacheClientsForReadExcluding(client.getServerGroup());
                 for (int i = 0; i < fbClients.size(); i++) {
                     final EVCacheClient fbClient = fbClients.get(i);
                     if(i >= fbClients.size() - 1) throwEx = throwExc;
-                    data = getAndTouchData(fbClient, canonicalKey, tc, throwEx, (i < fbClients.size() - 1) ? true : false, timeToLive);
+                    data = getAndTouchData(fbClient, canonicalKey, readTc, throwEx, (i < fbClients.size() - 1) ? true : false, timeToLive, negativeRead);
                     if (log.isDebugEnabled() && shouldLog()) log.debug("GetAndTouch Retry for APP " + _appName + ", key [" + canonicalKey + (log.isTraceEnabled() ? "], Value [" + data : "")  + "], ServerGroup : " + fbClient.getServerGroup());
                     if (data != null) {
                         client = fbClient;
@@ -610,8 +804,8 @@ final public class EVCacheImpl implements EVCache {
             if (data != null) {
                 stats.cacheHit(Call.GET_AND_TOUCH);
                 if (event != null) event.setAttribute("status", "THIT");
-                if (_useInMemoryCache.get()) {
-                    getInMemoryCache().put(canonicalKey, data);
+                if (useInMemoryCache) {
+                    this.<T>getInMemoryCache().put(canonicalKey, data, readTc);
                     if (log.isDebugEnabled() && shouldLog()) log.debug("Value added to inmemory cache for APP " + _appName + ", key : " + canonicalKey);
                 }
 
@@ -622,6 +816,7 @@ final public class EVCacheImpl implements EVCache {
                 stats.cacheMiss(Call.GET_AND_TOUCH);
                 if (log.isInfoEnabled() && shouldLog()) log.info("GET_AND_TOUCH : APP " + _appName + " ; cache miss for key : " + canonicalKey);
                 if (event != null) event.setAttribute("status", "TMISS");
+                _negativeCache.put(negativeRead);
             }
             if (event != null) endEvent(event);
             return data;
@@ -791,27 +986,55 @@ final public class EVCacheImpl implements EVCache {
     }
 
     private <T> Map<String, T> getBulkData(EVCacheClient client, Collection<String> canonicalKeys, Transcoder<T> tc,
-            boolean throwException, boolean hasZF) throws Exception {
+            boolean throwException, boolean hasZF, Map<String, EVCacheNegativeCache.Read> negativeReads) throws Exception {
         try {
             if(tc == null && _transcoder != null) tc = (Transcoder<T>)_transcoder;
-            return client.getBulk(canonicalKeys, tc, throwException, hasZF);
+            if (negativeReads == null) return client.getBulk(canonicalKeys, tc, throwException, hasZF);
+            final AtomicBoolean complete = new AtomicBoolean(false);
+            final Map<String, T> retMap = client.getBulk(canonicalKeys, tc, throwException, hasZF, complete);
+            if (retMap == null || !complete.get()) failNegativeReads(canonicalKeys, negativeReads);
+            return retMap;
         } catch (Exception ex) {
+            if (negativeReads != null) failNegativeReads(canonicalKeys, negativeReads);
             if (log.isDebugEnabled() && shouldLog()) log.debug("Exception while getBulk data for APP " + _appName + ", key : " + canonicalKeys, ex);
             if (!throwException || hasZF) return null;
             throw ex;
         }
     }
 
+    /*
+     * A key of a bulk read that did not complete may be present even though it
+     * is missing from the result.
+     */
+    private void failNegativeReads(Collection<String> canonicalKeys, Map<String, EVCacheNegativeCache.Read> negativeReads) {
+        for (String canonicalKey : canonicalKeys) {
+            final EVCacheNegativeCache.Read negativeRead = negativeReads.get(canonicalKey);
+            if (negativeRead != null) negativeRead.failed();
+        }
+    }
+
     public <T> Map<String, T> getBulk(Collection<String> keys, Transcoder<T> tc) throws EVCacheException {
-        return getBulk(keys, tc, false, 0);
+        return getBulk(keys, tc, false, 0, true);
     }
 
     public <T> Map<String, T> getBulkAndTouch(Collection<String> keys, Transcoder<T> tc, int timeToLive)
             throws EVCacheException {
-        return getBulk(keys, tc, true, timeToLive);
+        return getBulk(keys, tc, true, timeToLive, true);
+    }
+
+    public <T> Map<String, EVCacheLazyValue<T>> getBulkLazy(Collection<String> keys) throws EVCacheException {
+        return this.getBulkLazy(keys, (Transcoder<T>) _transcoder);
+    }
+
+    /*
+     * The in memory cache is not used by the lazy gets as it holds decoded
+     * values.
+     */
+    public <T> Map<String, EVCacheLazyValue<T>> getBulkLazy(Collection<String> keys, Transcoder<T> tc) throws EVCacheException {
+        return getBulk(keys, new EVCacheLazyTranscoder<T>(getReadTranscoder(tc)), false, 0, false);
     }
 
-    private <T> Map<String, T> getBulk(Collection<String> keys, Transcoder<T> tc, boolean touch, int ttl)
+    private <T> Map<String, T> getBulk(Collection<String> keys, Transcoder<T> tc, boolean touch, int ttl, boolean allowInMemoryCache)
             throws EVCacheException {
         if (null == keys) throw new IllegalArgumentException();
         if (keys.isEmpty()) return Collections.<String, T> emptyMap();
@@ -848,33 +1071,72 @@ final public class EVCacheImpl implements EVCache {
             canonicalKeys.add(canonicalK);
         }
 
+        /* Serve the keys found in the in memory cache, skip the known misses and fetch only the rest */
+        final boolean useInMemoryCache = allowInMemoryCache && _useInMemoryCache.get();
+        final EVCacheHotKeyTracker hotKeyTracker = client.getHotKeyTracker();
+        final boolean useHotKeys = allowInMemoryCache && hotKeyTracker.hasHotKeys();
+        final Map<String, T> inMemoryMap = new HashMap<String, T>();
+        final Collection<String> fetchKeys;
+        if (useInMemoryCache || useHotKeys || _negativeCache.isEnabled()) {
+            fetchKeys = new ArrayList<String>(canonicalKeys.size());
+            for (String canonicalK : canonicalKeys) {
+                final T value = (useInMemoryCache || (useHotKeys && hotKeyTracker.isHotKey(canonicalK))) ? this.<T>getInMemoryCache().get(canonicalK, tc) : null;
+                if (value != null) {
+                    inMemoryMap.put(canonicalK, value);
+                } else if (_negativeCache.isMiss(canonicalK)) {
+                    increment(null, _cacheName, "NEGATIVE_CACHE_HIT");
+                } else {
+                    fetchKeys.add(canonicalK);
+                }
+            }
+            if (log.isDebugEnabled() && shouldLog()) log.debug("BULK : APP " + _appName + " ; " + inMemoryMap.size() + " of " + canonicalKeys.size() + " keys retrieved from inmemory cache");
+        } else {
+            fetchKeys = canonicalKeys;
+        }
+
+        final Transcoder<T> readTc = (useInMemoryCache || useHotKeys) ? this.<T>getInMemoryCache().getWeighingTranscoder(getReadTranscoder(tc)) : tc;
+        final Map<String, EVCacheNegativeCache.Read> negativeReads;
+        if (_negativeCache.isEnabled() && !fetchKeys.isEmpty()) {
+            negativeReads = new HashMap<String, EVCacheNegativeCache.Read>((fetchKeys.size() * 4) / 3 + 1);
+            for (String canonicalK : fetchKeys) {
+                final EVCacheNegativeCache.Read negativeRead = _negativeCache.startRead(canonicalK);
+                if (negativeRead != null) negativeReads.put(canonicalK, negativeRead);
+            }
+        } else {
+            negativeReads = null;
+        }
         final Operation op = EVCacheMetricsFactory.getOperation(_metricName, Call.BULK, stats, Operation.TYPE.MILLI);
         try {
             final boolean hasZF = hasZoneFallbackForBulk();
             boolean throwEx = hasZF ? false : throwExc;
-            increment(client.getServerGroupName(), _cacheName, "BULK_GET");
-            Map<String, T> retMap = getBulkData(client, canonicalKeys, tc, throwEx, hasZF);
+            Map<String, T> retMap = null;
+            if (fetchKeys.isEmpty()) {
+                retMap = new HashMap<String, T>();
+            } else {
+                increment(client.getServerGroupName(), _cacheName, "BULK_GET");
+                retMap = getBulkData(client, fetchKeys, readTc, throwEx, hasZF, negativeReads);
+            }
             List<EVCacheClient> fbClients = null;
-            if (hasZF) {
+            if (hasZF && !fetchKeys.isEmpty()) {
                 if (retMap == null || retMap.isEmpty()) {
                     fbClients = _pool.getEVCacheClientsForReadExcluding(client.getServerGroup());
                     if (fbClients != null && !fbClients.isEmpty()) {
                         for (int i = 0; i < fbClients.size(); i++) {
                             final EVCacheClient fbClient = fbClients.get(i);
                             if(i >= fbClients.size() - 1) throwEx = throwExc;
-                            retMap = getBulkData(fbClient, canonicalKeys, tc, throwEx, (i < fbClients.size() - 1) ? true : false);
-                            if (log.isDebugEnabled() && shouldLog()) log.debug("Fallback for APP " + _appName + ", key [" + canonicalKeys + (log.isTraceEnabled() ? "], Value [" + retMap : "") + "], zone : " + fbClient.getZone());
+                            retMap = getBulkData(fbClient, fetchKeys, readTc, throwEx, (i < fbClients.size() - 1) ? true : false, negativeReads);
+                            if (log.isDebugEnabled() && shouldLog()) log.debug("Fallback for APP " + _appName + ", key [" + fetchKeys + (log.isTraceEnabled() ? "], Value [" + retMap : "") + "], zone : " + fbClient.getZone());
                             if (retMap != null && !retMap.isEmpty()) break;
                         }
                         increment(client.getServerGroupName(), _cacheName, "BULK_GET-FULL_RETRY-" + ((retMap == null || retMap.isEmpty()) ? "MISS" : "HIT"));
                     }
                 }
 
-                if (retMap != null && keys.size() > retMap.size() && _bulkPartialZoneFallbackFP.get()) {
+                if (retMap != null && fetchKeys.size() > retMap.size() && _bulkPartialZoneFallbackFP.get()) {
                     final int initRetMapSize = retMap.size();
-                    final int initRetrySize = keys.size() - retMap.size();
+                    final int initRetrySize = fetchKeys.size() - retMap.size();
                     List<String> retryKeys = new ArrayList<String>(initRetrySize);
-                    for (Iterator<String> keysItr = canonicalKeys.iterator(); keysItr.hasNext();) {
+                    for (Iterator<String> keysItr = fetchKeys.iterator(); keysItr.hasNext();) {
                         final String key = keysItr.next();
                         if (!retMap.containsKey(key)) {
                             retryKeys.add(key);
@@ -885,7 +1147,7 @@ final public class EVCacheImpl implements EVCache {
                     if (fbClients != null && !fbClients.isEmpty()) {
                         for (int ind = 0; ind < fbClients.size(); ind++) {
                             final EVCacheClient fbClient = fbClients.get(ind);
-                            final Map<String, T> fbRetMap = getBulkData(fbClient, retryKeys, tc, false, hasZF);
+                            final Map<String, T> fbRetMap = getBulkData(fbClient, retryKeys, readTc, false, hasZF, negativeReads);
                             if (log.isDebugEnabled() && shouldLog()) log.debug("Fallback for APP " + _appName + ", key [" + retryKeys + "], Fallback Server Group : " + fbClient .getServerGroup().getName());
                             for (Map.Entry<String, T> i : fbRetMap.entrySet()) {
                                 retMap.put(i.getKey(), i.getValue());
@@ -893,8 +1155,8 @@ final public class EVCacheImpl implements EVCache {
                             }
                             if (retryKeys.size() == fbRetMap.size()) break;
                             if (ind < fbClients.size()) {
-                                retryKeys = new ArrayList<String>(keys.size() - retMap.size());
-                                for (Iterator<String> keysItr = canonicalKeys.iterator(); keysItr.hasNext();) {
+                                retryKeys = new ArrayList<String>(fetchKeys.size() - retMap.size());
+                                for (Iterator<String> keysItr = fetchKeys.iterator(); keysItr.hasNext();) {
                                     final String key = keysItr.next();
                                     if (!retMap.containsKey(key)) {
                                         retryKeys.add(key);
@@ -904,9 +1166,32 @@ final public class EVCacheImpl implements EVCache {
                         }
                         if (retMap.size() > initRetMapSize) increment(client.getServerGroupName(), _cacheName, "BULK_GET-PARTIAL_RETRY-" + (retMap.isEmpty() ? "MISS" : "HIT"));
                     }
-                    if (log.isDebugEnabled() && shouldLog() && retMap.size() == keys.size()) log.debug("Fallback SUCCESS for APP " + _appName + ",  retMap [" + retMap + "]");
+                    if (log.isDebugEnabled() && shouldLog() && retMap.size() == fetchKeys.size()) log.debug("Fallback SUCCESS for APP " + _appName + ",  retMap [" + retMap + "]");
+                }
+            }
+
+            /*
+             * The keys missing from the result are negatively cached only if
+             * every read of them completed. A key that timed out is left out
+             * of the result of getSome just like a key that is absent.
+             */
+            if (negativeReads != null && retMap != null) {
+                for (Map.Entry<String, EVCacheNegativeCache.Read> entry : negativeReads.entrySet()) {
+                    if (retMap.get(entry.getKey()) == null) _negativeCache.put(entry.getValue());
+                }
+            }
+
+            if (retMap != null && (useInMemoryCache || useHotKeys)) {
+                for (Map.Entry<String, T> entry : retMap.entrySet()) {
+                    if (entry.getValue() != null && (useInMemoryCache || hotKeyTracker.isHotKey(entry.getKey()))) {
+                        this.<T>getInMemoryCache().put(entry.getKey(), entry.getValue(), readTc);
+                    }
                 }
             }
+            if (!inMemoryMap.isEmpty()) {
+                if (retMap != null) inMemoryMap.putAll(retMap);
+                retMap = inMemoryMap;
+            }
 
             if (retMap == null || retMap.isEmpty()) {
                 if (log.isInfoEnabled() && shouldLog()) log.info("BULK : APP " + _appName + " ; Full cache miss for keys : " + keys);
@@ -1047,6 +1332,7 @@ final public class EVCacheImpl implements EVCache {
         }
 
         final String canonicalKey = getCanonicalizedKey(key);
+        _negativeCache.invalidate(canonicalKey);
         final Operation op = EVCacheMetricsFactory.getOperation(_metricName, Call.SET, stats, Operation.TYPE.MILLI);
         final EVCacheLatchImpl latch = new EVCacheLatchImpl(policy == null ? Policy.ALL_MINUS_1 : policy, clients.length - _pool.getWriteOnlyEVCacheClients().length, _appName);
         try {
@@ -1070,9 +1356,11 @@ final public class EVCacheImpl implements EVCache {
                 }
                 final Future<Boolean> future = client.set(canonicalKey, cd, timeToLive, latch);
                 if (log.isDebugEnabled() && shouldLog()) log.debug("SET : APP " + _appName + ", Future " + future + " for key : " + canonicalKey);
-                if (_useInMemoryCache.get()) {
-                    getInMemoryCache().put(canonicalKey, value);
-                }
+            }
+            if (cd != null && isInMemoryCacheEnabled(clients, canonicalKey)) {
+                getInMemoryCache().put(canonicalKey, value, cd);
+            } else if (cache != null) {
+                getInMemoryCache().delete(canonicalKey);
             }
             if (event != null) {
                 event.setCanonicalKeys(Arrays.asList(canonicalKey));
@@ -1093,6 +1381,167 @@ final public class EVCacheImpl implements EVCache {
         }
     }
 
+    public EVCacheLatch set(String key, ByteBuffer buffer, int timeToLive, Policy policy) throws EVCacheException {
+        if (null == buffer) throw new IllegalArgumentException();
+        return set(key, new ByteBufferInputStream(buffer.duplicate()), buffer.remaining(), timeToLive, policy);
+    }
+
+    public EVCacheLatch set(String key, InputStream in, int length, int timeToLive, Policy policy) throws EVCacheException {
+        if ((null == key) || (null == in) || length <= 0) throw new IllegalArgumentException();
+
+        final boolean throwExc = doThrowException();
+        final EVCacheClient[] clients = _pool.getEVCacheClientForWrite();
+        if (clients.length == 0) {
+            increment("NULL_CLIENT");
+            if (throwExc) throw new EVCacheException("Could not find a client to set the data");
+            return new EVCacheLatchImpl(policy, 0, _appName); // Fast failure
+        }
+        // Checked before anything is written so that a rejected set leaves the current value in place
+        for (EVCacheClient client : clients) {
+            if (!client.getEnableChunking().get()) {
+                increment("CHUNKING_DISABLED");
+                if (throwExc) throw new EVCacheException("Chunking is not enabled for APP " + _appName + " & ServerGroup " + client.getServerGroupName());
+                return new EVCacheLatchImpl(policy, 0, _appName);
+            }
+        }
+        final String canonicalKey = getCanonicalizedKey(key);
+
+        final EVCacheEvent event = createEVCacheEvent(Arrays.asList(clients), Collections.singletonList(key), Call.SET);
+        if (event != null) {
+            try {
+                if (shouldThrottle(event)) {
+                    increment("THROTTLED");
+                    if (throwExc) throw new EVCacheException("Request Throttled for app " + _appName + " & key " + key);
+                    return new EVCacheLatchImpl(policy, 0, _appName);
+                }
+            } catch(EVCacheException ex) {
+                if(throwExc) throw ex;
+                increment("THROTTLED");
+                return null;
+            }
+            startEvent(event);
+        }
+
+        _negativeCache.invalidate(canonicalKey);
+        if (cache != null) getInMemoryCache().delete(canonicalKey);
+        final Operation op = EVCacheMetricsFactory.getOperation(_metricName, Call.SET, stats, Operation.TYPE.MILLI);
+        final EVCacheLatchImpl latch = new EVCacheLatchImpl(policy == null ? Policy.ALL_MINUS_1 : policy, clients.length - _pool.getWriteOnlyEVCacheClients().length, _appName);
+        final List<List<OperationFuture<Boolean>>> futures = new ArrayList<List<OperationFuture<Boolean>>>(clients.length);
+        for (int i = 0; i < clients.length; i++) {
+            futures.add(new ArrayList<OperationFuture<Boolean>>());
+        }
+        try {
+            // The value is split only once so all the replicas use the chunk size of the first one
+            final int chunkDataSize = clients[0].getChunkDataSize(canonicalKey, length);
+            final ChunkChecksum algorithm = clients[0].getChunkChecksumAlgorithm();
+            final Checksum checksum = algorithm.newChecksum();
+            final Checksum chunkChecksum = clients[0].isChunkChecksumEnabled() ? algorithm.newChecksum() : null;
+            final List<Integer> chunkChecksums = new ArrayList<Integer>();
+            final int maxInFlight = Math.max(1, _maxChunksInFlight.get());
+            int remaining = length;
+            int lastChunkSize = 0;
+            for (int index = 1; remaining > 0; index++) {
+                // a new array per chunk as it is written asynchronously, the last one has only the remaining bytes
+                lastChunkSize = Math.min(remaining, chunkDataSize);
+                final byte[] data = new byte[lastChunkSize];
+                ByteStreams.readFully(in, data);
+                checksum.update(data, 0, lastChunkSize);
+                if (chunkChecksum != null) {
+                    chunkChecksum.reset();
+                    chunkChecksum.update(data, 0, lastChunkSize);
+                    chunkChecksums.add(Integer.valueOf((int) chunkChecksum.getValue()));
+                }
+                for (int i = 0; i < clients.length; i++) {
+                    final List<OperationFuture<Boolean>> clientFutures = futures.get(i);
+                    if (clientFutures.size() >= maxInFlight) awaitChunk(clients[i], canonicalKey, clientFutures.get(clientFutures.size() - maxInFlight));
+                    clientFutures.add(clients[i].setChunk(canonicalKey, index, data, timeToLive));
+                }
+                remaining -= lastChunkSize;
+            }
+            final int[] checksums = (chunkChecksum == null) ? null : Ints.toArray(chunkChecksums);
+            for (int i = 0; i < clients.length; i++) {
+                final Future<Boolean> future = clients[i].setChunkMetadata(canonicalKey, futures.get(i), chunkDataSize, lastChunkSize, algorithm, checksum.getValue(), checksums, timeToLive, latch);
+                if (log.isDebugEnabled() && shouldLog()) log.debug("SET : APP " + _appName + ", Future " + future + " for key : " + canonicalKey);
+            }
+
+            if (setTTLSummary == null) this.setTTLSummary = EVCacheMetricsFactory.getDistributionSummary(_appName + "-SetData-TTL", _appName, null);
+            if (setTTLSummary != null) setTTLSummary.record(timeToLive);
+            if (setDataSizeSummary == null) this.setDataSizeSummary = EVCacheMetricsFactory.getDistributionSummary(_appName + "-SetData-Size", _appName, null);
+            if (setDataSizeSummary != null) this.setDataSizeSummary.record(length);
+            if (event != null) {
+                event.setCanonicalKeys(Arrays.asList(canonicalKey));
+                event.setTTL(timeToLive);
+                event.setLatch(latch);
+                endEvent(event);
+            }
+            return latch;
+        } catch (Exception ex) {
+            // The chunks written so far may have overwritten part of the previous value
+            for (int i = 0; i < clients.length; i++) {
+                if (futures.get(i).isEmpty()) continue;
+                try {
+                    clients[i].delete(canonicalKey);
+                } catch (Exception e) {
+                    if (log.isDebugEnabled() && shouldLog()) log.debug("Exception deleting the chunks for APP " + _appName + ", key : " + canonicalKey, e);
+                }
+            }
+            if (log.isDebugEnabled() && shouldLog()) log.debug("Exception setting the data for APP " + _appName + ", key : " + canonicalKey, ex);
+            if (event != null) endEvent(event);
+            if (!throwExc) return new EVCacheLatchImpl(policy, 0, _appName);
+            throw new EVCacheException("Exception setting data for APP " + _appName + ", key : " + canonicalKey, ex);
+        } finally {
+            op.stop();
+            if (log.isDebugEnabled() && shouldLog()) log.debug("SET : APP " + _appName + ", Took " + op.getDuration() + " milliSec for key : " + canonicalKey);
+        }
+    }
+
+    /*
+     * Waits for a chunk so that no more than chunk.write.max.inflight chunks
+     * of a value are queued on a client at a time. Throws if the chunk was
+     * not written, the value cannot be completed then.
+     */
+    private void awaitChunk(EVCacheClient client, String canonicalKey, OperationFuture<Boolean> future) throws Exception {
+        final Boolean status;
+        try {
+            status = future.get(client.getOperationTimeout().get(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new EVCacheException("Timed out writing a chunk for APP " + _appName + ", key : " + canonicalKey + ", ServerGroup : " + client.getServerGroupName(), e);
+        }
+        if (status == null || !status.booleanValue()) {
+            throw new EVCacheException("Unable to write a chunk for APP " + _appName + ", key : " + canonicalKey + ", ServerGroup : " + client.getServerGroupName());
+        }
+    }
+
+    /*
+     * Reads a ByteBuffer without copying it.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!buffer.hasRemaining()) return -1;
+            final int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
     public <T> EVCacheFuture[] append(String key, T value, int timeToLive) throws EVCacheException {
         return this.append(key, value, null, timeToLive);
     }
@@ -1125,6 +1574,7 @@ final public class EVCacheImpl implements EVCache {
         }
 
         final String canonicalKey = getCanonicalizedKey(key);
+        _negativeCache.invalidate(canonicalKey);
         final Operation op = EVCacheMetricsFactory.getOperation(_metricName, Call.APPEND, stats, Operation.TYPE.MILLI);
         try {
             final EVCacheFuture[] futures = new EVCacheFuture[clients.length];
@@ -1228,7 +1678,8 @@ final public class EVCacheImpl implements EVCache {
         }
 
         final String canonicalKey = getCanonicalizedKey(key);
-        if (_useInMemoryCache.get()) {
+        _negativeCache.invalidate(canonicalKey);
+        if (cache != null) {
             getInMemoryCache().delete(canonicalKey);
         }
 
@@ -1296,6 +1747,7 @@ final public class EVCacheImpl implements EVCache {
         try {
             final long[] vals = new long[clients.length];
             final String canonicalKey = getCanonicalizedKey(key);
+            _negativeCache.invalidate(canonicalKey);
             int index = 0;
             long currentValue = -1;
             for (EVCacheClient client : clients) {
@@ -1368,6 +1820,7 @@ final public class EVCacheImpl implements EVCache {
         try {
             final long[] vals = new long[clients.length];
             final String canonicalKey = getCanonicalizedKey(key);
+            _negativeCache.invalidate(canonicalKey);
             int index = 0;
             long currentValue = -1;
             for (EVCacheClient client : clients) {
@@ -1452,6 +1905,7 @@ final public class EVCacheImpl implements EVCache {
         }
 
         final String canonicalKey = getCanonicalizedKey(key);
+        _negativeCache.invalidate(canonicalKey);
         final Operation op = EVCacheMetricsFactory.getOperation(_metricName, Call.REPLACE, stats, Operation.TYPE.MILLI);
         final EVCacheLatchImpl latch = new EVCacheLatchImpl(policy == null ? Policy.ALL_MINUS_1 : policy, clients.length - _pool.getWriteOnlyEVCacheClients().length, _appName);
         try {
@@ -1477,9 +1931,11 @@ final public class EVCacheImpl implements EVCache {
                 }
                 final Future<Boolean> future = client.replace(canonicalKey, cd, timeToLive, latch);
                 futures[index++] = new EVCacheFuture(future, key, _appName, client.getServerGroup());
-                if (_useInMemoryCache.get()) {
-                    getInMemoryCache().put(canonicalKey, value);
-                }
+            }
+            if (cd != null && isInMemoryCacheEnabled(clients, canonicalKey)) {
+                getInMemoryCache().put(canonicalKey, value, cd);
+            } else if (cache != null) {
+                getInMemoryCache().delete(canonicalKey);
             }
             if (event != null) {
                 event.setCanonicalKeys(Arrays.asList(canonicalKey));
@@ -1540,6 +1996,7 @@ final public class EVCacheImpl implements EVCache {
             startEvent(event);
         }
         final String canonicalKey = getCanonicalizedKey(key);
+        _negativeCache.invalidate(canonicalKey);
         final Operation op = EVCacheMetricsFactory.getOperation(_metricName, Call.APPEND_OR_ADD, stats, Operation.TYPE.MILLI);
         final EVCacheLatchImpl latch = new EVCacheLatchImpl(policy == null ? Policy.ALL_MINUS_1 : policy, clients.length - _pool.getWriteOnlyEVCacheClients().length, _appName);
         try {
@@ -1609,6 +2066,7 @@ final public class EVCacheImpl implements EVCache {
         }
 
         final String canonicalKey = getCanonicalizedKey(key);
+        _negativeCache.invalidate(canonicalKey);
         final Operation op = EVCacheMetricsFactory.getOperation(_metricName, Call.APPEND_OR_ADD, stats, Operation.TYPE.MILLI);
         try {
             final EVCacheFuture[] futures = new EVCacheFuture[clients.length];
@@ -1705,6 +2163,7 @@ final public class EVCacheImpl implements EVCache {
         }
 
         final String canonicalKey = getCanonicalizedKey(key);
+        _negativeCache.invalidate(canonicalKey);
         final Operation op = EVCacheMetricsFactory.getOperation(_metricName, Call.ADD, stats, Operation.TYPE.MILLI);
         EVCacheLatch latch = null;
         try {
@@ -1,14 +1,33 @@
 package com.netflix.evcache;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
 import com.google.common.cache.Weigher;
-import com.netflix.config.DynamicIntProperty;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.netflix.config.ChainedDynamicProperty;
 import com.netflix.evcache.util.EVCacheConfig;
 import com.netflix.servo.DefaultMonitorRegistry;
 import com.netflix.servo.MonitorRegistry;
@@ -17,8 +36,10 @@ import com.netflix.servo.monitor.Monitor;
 import com.netflix.servo.monitor.MonitorConfig;
 import com.netflix.servo.monitor.MonitorConfig.Builder;
 import com.netflix.servo.monitor.StepCounter;
+import com.netflix.servo.tag.BasicTag;
 import com.netflix.servo.tag.Tag;
 
+import net.spy.memcached.CachedData;
 import net.spy.memcached.transcoders.Transcoder;
 
 /**
@@ -26,34 +47,135 @@ import net.spy.memcached.transcoders.Transcoder;
  * helpful when the same key is repeatedly requested from EVCache within a short
  * duration. This can be turned on dynamically and can relive pressure on
  * EVCache Server instances.
+ * 
+ * The cache is bounded either by the number of entries
+ * (<code>inmemory.cache.size</code>) or, if
+ * <code>inmemory.cache.weight</code> is greater than 0, by the total encoded
+ * size in bytes of the cached values. In the latter case every value is
+ * weighed by the length of the {@link CachedData} it was read from or written
+ * as; values read using {@link #getWeighingTranscoder(Transcoder)} are not
+ * encoded again to be weighed.
+ * 
+ * When bounded by the number of entries, setting
+ * <code>inmemory.cache.policy</code> to <code>TINYLFU</code> replaces the LRU
+ * eviction with the W-TinyLFU policy of {@link EVCacheTinyLfuCache}, which
+ * does not let keys requested only once evict the frequently requested ones.
+ * 
+ * If <code>inmemory.cache.offheap.enabled</code> is set the encoded values are
+ * instead kept in direct memory (see {@link EVCacheOffHeapStore}) bounded by
+ * <code>inmemory.cache.offheap.size</code> bytes and are decoded on every hit
+ * using the transcoder passed to {@link #get(String, Transcoder)}.
+ * 
+ * If <code>inmemory.cache.refresh.percent</code> is set, an entry that is
+ * read after that percentage of <code>inmemory.cache.duration.ms</code> has
+ * passed is reloaded once in the background using the {@link Loader} while
+ * the callers continue to get the current value. This does not apply to the
+ * off-heap mode.
  */
 public class EVCacheInMemoryCache<T> {
 
     private static final Logger log = LoggerFactory.getLogger(EVCacheInMemoryCache.class);
-    private final DynamicIntProperty _cacheDuration; // The key will be cached for this long
-    private final DynamicIntProperty _cacheSize; // This many items will be cached
-//    private final DynamicLongProperty _cacheWeight; // This is the max size in bytes 
+    private static final int EVICTED_KEY_BITS = 1 << 16;
+    private final ChainedDynamicProperty.IntProperty _cacheDuration; // The key will be cached for this long
+    private final ChainedDynamicProperty.IntProperty _cacheSize; // This many items will be cached
+    private final ChainedDynamicProperty.LongProperty _cacheWeight; // This is the max size in bytes 
+    private final ChainedDynamicProperty.StringProperty _cachePolicy; // LRU or TINYLFU
+    private final ChainedDynamicProperty.IntProperty _refreshPercent; // Reload the key after this percent of the duration
+    private final ChainedDynamicProperty.BooleanProperty _offHeapEnabled; // Store the encoded values in direct memory
+    private final ChainedDynamicProperty.LongProperty _offHeapSize; // This is the max size in bytes of direct memory
+    private final ChainedDynamicProperty.IntProperty _offHeapSlabSize; // The size of each direct memory slab
     private final String appName;
-
-    private Cache<String, T> cache;
+    private final String cacheName; // null unless the cache has its own config
+    private final String name; // appName or appName.cacheName
+    private volatile long budgetWeight = 0; // The share of the global budget, overrides _cacheWeight
+    private volatile long budgetCeiling = 0; // The global budget, bounds the cache while a share is set
+    private final AtomicBoolean trimming = new AtomicBoolean(false);
+    private final AtomicBoolean trimPending = new AtomicBoolean(false); // a trim was submitted and has not started yet
+    private final AtomicLongArray evictedKeys = new AtomicLongArray(EVICTED_KEY_BITS / 64); // the keys evicted since the last rebalance
+    private final AtomicLong ghostHits = new AtomicLong(0); // the misses on the keys evicted since the last rebalance
+    private final DataWeigher weigher;
+    private final AtomicLong weight = new AtomicLong(0);
+    private final AtomicLong refreshCount = new AtomicLong(0);
+    private final Loader<T> loader;
+    private ThreadPoolExecutor refreshPool;
+
+    private volatile Cache<String, CacheValue<T>> cache;
+    private volatile Cache<String, CacheValue<T>> migratingFrom; // the previous cache while its entries are migrated
+    private volatile EVCacheOffHeapStore offHeapStore;
 
     public EVCacheInMemoryCache(String appName) {
+        this(appName, null);
+    }
+
+    public EVCacheInMemoryCache(String appName, Transcoder<?> transcoder) {
+        this(appName, transcoder, null);
+    }
+
+    public EVCacheInMemoryCache(String appName, Transcoder<?> transcoder, Loader<T> loader) {
+        this(appName, null, transcoder, loader);
+    }
+
+    public EVCacheInMemoryCache(String appName, String cacheName, Transcoder<?> transcoder, Loader<T> loader) {
         this.appName = appName;
-        this._cacheDuration = EVCacheConfig.getInstance().getDynamicIntProperty(appName + ".inmemory.cache.duration.ms", 20);
+        this.cacheName = cacheName;
+        this.name = (cacheName == null) ? appName : appName + "." + cacheName;
+        final EVCacheConfig config = EVCacheConfig.getInstance();
+        this.loader = loader;
+        this.weigher = new DataWeigher();
+        this.weigher.setTranscoder(transcoder == null ? new EVCacheTranscoder() : transcoder);
+        this._cacheDuration = config.getChainedIntProperty(name + ".inmemory.cache.duration.ms", appName + ".inmemory.cache.duration.ms", 20);
         this._cacheDuration.addCallback(new Runnable() {
             public void run() {
                 setupCache();
             }
         });
 
-        this._cacheSize = EVCacheConfig.getInstance().getDynamicIntProperty(appName + ".inmemory.cache.size", 100);
-//        this._cacheWeight = EVCacheConfig.getInstance().getDynamicLongProperty(appName + ".inmemory.cache.weight", 0); //
+        this._cacheSize = config.getChainedIntProperty(name + ".inmemory.cache.size", appName + ".inmemory.cache.size", 100);
         this._cacheSize.addCallback(new Runnable() {
             public void run() {
                 setupCache();
             }
         });
+
+        this._cacheWeight = config.getChainedLongProperty(name + ".inmemory.cache.weight", appName + ".inmemory.cache.weight", 0);
+        this._cacheWeight.addCallback(new Runnable() {
+            public void run() {
+                setupCache();
+            }
+        });
+
+        this._refreshPercent = config.getChainedIntProperty(name + ".inmemory.cache.refresh.percent", appName + ".inmemory.cache.refresh.percent", 0);
+
+        this._cachePolicy = config.getChainedStringProperty(name + ".inmemory.cache.policy", appName + ".inmemory.cache.policy", "LRU");
+        this._cachePolicy.addCallback(new Runnable() {
+            public void run() {
+                setupCache();
+            }
+        });
+
+        this._offHeapEnabled = config.getChainedBooleanProperty(name + ".inmemory.cache.offheap.enabled", appName + ".inmemory.cache.offheap.enabled", Boolean.FALSE);
+        this._offHeapEnabled.addCallback(new Runnable() {
+            public void run() {
+                setupCache();
+            }
+        });
+
+        this._offHeapSize = config.getChainedLongProperty(name + ".inmemory.cache.offheap.size", appName + ".inmemory.cache.offheap.size", 64 * 1024 * 1024);
+        this._offHeapSize.addCallback(new Runnable() {
+            public void run() {
+                setupCache();
+            }
+        });
+
+        this._offHeapSlabSize = config.getChainedIntProperty(name + ".inmemory.cache.offheap.slab.size", appName + ".inmemory.cache.offheap.slab.size", 1024 * 1024);
+        this._offHeapSlabSize.addCallback(new Runnable() {
+            public void run() {
+                setupCache();
+            }
+        });
         setupCache();
+        setupMonitoring(appName);
+        EVCacheInMemoryCacheBudget.getInstance().register(this);
     }
 
     private void register(Monitor<?> monitor) {
@@ -64,40 +186,229 @@ public class EVCacheInMemoryCache<T> {
     }
 
     private MonitorConfig getMonitorConfig(String appName, String metric, Tag tag) {
-        final Builder builder = MonitorConfig.builder("EVCacheInMemoryCache" + "-" + appName + "-" + metric).withTag(tag);
+        Builder builder = MonitorConfig.builder("EVCacheInMemoryCache" + "-" + appName + "-" + metric).withTag(tag);
+        if (cacheName != null) builder = builder.withTag(new BasicTag("cacheName", cacheName));
         return builder.build();
     }
 
-    private void setupCache() {
+    private synchronized void setupCache() {
         try {
-            final Cache<String, T> currentCache = this.cache;
+            final Cache<String, CacheValue<T>> currentCache = this.cache;
             CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().recordStats();
-            if(_cacheSize.get() > 0) {
+            final long maxWeight = getMaxWeight();
+            if(maxWeight > 0) {
+                builder = builder.maximumWeight(maxWeight).weigher(weigher);
+            } else if(_cacheSize.get() > 0) {
                 builder = builder.maximumSize(_cacheSize.get());
             }
             if(_cacheDuration.get() > 0) {
                 builder = builder.expireAfterWrite(_cacheDuration.get(), TimeUnit.MILLISECONDS);
             }
-//            if(_cacheWeight.get() > 0) {
-//                builder = builder.maximumWeight(_cacheWeight.get());
-//            }
-            setupMonitoring(appName);
-            this.cache = builder.build();
+            final RemovalListener<String, CacheValue<T>> removalListener = new RemovalListener<String, CacheValue<T>>() {
+                public void onRemoval(RemovalNotification<String, CacheValue<T>> notification) {
+                    final CacheValue<T> value = notification.getValue();
+                    if (value != null) weight.addAndGet(-value.getWeight());
+                    if (notification.getCause() == RemovalCause.SIZE) recordEviction(notification.getKey());
+                }
+            };
+            final boolean tinyLfu = maxWeight <= 0 && _cacheSize.get() > 0 && "TINYLFU".equalsIgnoreCase(_cachePolicy.get());
+            final Cache<String, CacheValue<T>> newCache;
+            if(tinyLfu) {
+                newCache = new EVCacheTinyLfuCache<String, CacheValue<T>>(_cacheSize.get(), _cacheDuration.get(), removalListener);
+            } else {
+                newCache = builder.removalListener(removalListener).build();
+            }
             if(currentCache != null) {
+                // the writes go to the new cache while the entries are copied
+                this.migratingFrom = currentCache;
+                this.cache = newCache;
+                try {
+                    migrate(currentCache, newCache, tinyLfu);
+                } finally {
+                    this.migratingFrom = null;
+                }
                 currentCache.invalidateAll();
                 currentCache.cleanUp();
+            } else {
+                this.cache = newCache;
+            }
+
+            final EVCacheOffHeapStore currentStore = this.offHeapStore;
+            if(_offHeapEnabled.get()) {
+                if(currentStore != null && currentStore.getSlabSize() == _offHeapSlabSize.get()) {
+                    currentStore.resize(_offHeapSize.get());
+                } else {
+                    // the slab size cannot be changed in place, the entries are dropped
+                    this.offHeapStore = new EVCacheOffHeapStore(appName, _offHeapSize.get(), _offHeapSlabSize.get());
+                    if(currentStore != null) currentStore.close();
+                }
+            } else {
+                this.offHeapStore = null;
+                if(currentStore != null) currentStore.close();
             }
         } catch (Exception e) {
             log.error(e.getMessage(), e);
         }
     }
 
+    /*
+     * Copies the entries that have not expired to the new cache so that
+     * changing the size or the duration does not drop the cached data. The
+     * entries keep their write time. They are added in the order of their
+     * last access so that the new cache evicts the least recently read ones
+     * first if it is smaller; TinyLFU rejects later candidates that are not
+     * more frequent, so it gets the most recently read ones first.
+     *
+     * The new cache is already in use, so an entry is only copied if the key
+     * was not written to it since, and is taken out again if the key was
+     * written or deleted on the previous cache after the snapshot was taken.
+     */
+    private void migrate(Cache<String, CacheValue<T>> from, Cache<String, CacheValue<T>> to, boolean mostRecentFirst) {
+        final long now = System.currentTimeMillis();
+        final List<Map.Entry<String, CacheValue<T>>> entries = new ArrayList<Map.Entry<String, CacheValue<T>>>(from.asMap().entrySet());
+        Collections.sort(entries, (a, b) -> Long.compare(a.getValue().getAccessTime(), b.getValue().getAccessTime()));
+        if (mostRecentFirst) Collections.reverse(entries);
+        final boolean weighted = getMaxWeight() > 0;
+        int count = 0;
+        for (Map.Entry<String, CacheValue<T>> entry : entries) {
+            final String key = entry.getKey();
+            final CacheValue<T> value = entry.getValue();
+            if (isExpired(value, now)) continue;
+            CacheValue<T> migrated = value;
+            if (weighted && value.getWeight() == 0) {
+                migrated = new CacheValue<T>(value.getValue(), weigher.weigh(key, value.getValue()), value.getWriteTime());
+            }
+            if (to.asMap().putIfAbsent(key, migrated) != null) continue;
+            weight.addAndGet(migrated.getWeight());
+            if (from.asMap().get(key) != value) {
+                to.asMap().remove(key, migrated);
+                continue;
+            }
+            count++;
+        }
+        if (log.isInfoEnabled()) log.info("Migrated " + count + " of " + entries.size() + " entries to the resized in memory cache for appName : " + appName);
+    }
+
+    /*
+     * While the cache has a share of the budget it is built bounded by the
+     * whole budget and is kept within its share by trim().
+     */
+    private long getMaxWeight() {
+        return (budgetWeight > 0) ? budgetCeiling : _cacheWeight.get();
+    }
+
+    /**
+     * Sets the share of the global near cache budget of this cache in bytes.
+     * If greater than 0 it is used instead of <code>inmemory.cache.weight</code>.
+     * The cache is only rebuilt when the budget is turned on or off or the
+     * total budget changes, a new share is applied by trimming the cache.
+     */
+    void setBudgetWeight(long budgetWeight, long budgetCeiling) {
+        final long previous = this.budgetWeight;
+        if (previous == budgetWeight && (budgetWeight <= 0 || this.budgetCeiling == budgetCeiling)) return;
+        final boolean rebuild = previous <= 0 || budgetWeight <= 0 || this.budgetCeiling != budgetCeiling;
+        this.budgetCeiling = budgetCeiling;
+        this.budgetWeight = budgetWeight;
+        if (rebuild) {
+            setupCache();
+        } else {
+            trim();
+        }
+    }
+
+    /*
+     * Evicts the least recently read entries until the weight of the cache is
+     * 10% below its share of the budget, so that it is not trimmed on every
+     * put.
+     */
+    void trim() {
+        trimPending.set(false);
+        final long share = budgetWeight;
+        if (share <= 0 || weight.get() <= share || !trimming.compareAndSet(false, true)) return;
+        try {
+            final Cache<String, CacheValue<T>> currentCache = cache;
+            if (currentCache == null) return;
+            final List<Map.Entry<String, CacheValue<T>>> entries = new ArrayList<Map.Entry<String, CacheValue<T>>>(currentCache.asMap().entrySet());
+            Collections.sort(entries, (a, b) -> Long.compare(a.getValue().getAccessTime(), b.getValue().getAccessTime()));
+            final long target = share - share / 10;
+            int count = 0;
+            for (Map.Entry<String, CacheValue<T>> entry : entries) {
+                if (weight.get() <= target) break;
+                if (currentCache.asMap().remove(entry.getKey(), entry.getValue())) {
+                    recordEviction(entry.getKey());
+                    count++;
+                }
+            }
+            if (log.isDebugEnabled()) log.debug("Trimmed " + count + " entries of the in memory cache " + name + " to its budget of " + share + " bytes");
+        } finally {
+            trimming.set(false);
+        }
+    }
+
+    /*
+     * The evicted keys are remembered in a bit set, with a few false
+     * positives, until the next rebalance of the budget. A miss on one of them
+     * is a hit the cache would have had with more memory.
+     */
+    private void recordEviction(String key) {
+        if (budgetWeight <= 0 || key == null) return;
+        final int h = key.hashCode();
+        setEvictedBit(h);
+        setEvictedBit(h * 0x9e3779b9);
+    }
+
+    private void setEvictedBit(int hash) {
+        final int bit = (hash ^ (hash >>> 16)) & (EVICTED_KEY_BITS - 1);
+        final long mask = 1L << (bit & 63);
+        final int index = bit >>> 6;
+        long current;
+        while (((current = evictedKeys.get(index)) & mask) == 0 && !evictedKeys.compareAndSet(index, current, current | mask)) {
+            // retry
+        }
+    }
+
+    private boolean isEvictedBit(int hash) {
+        final int bit = (hash ^ (hash >>> 16)) & (EVICTED_KEY_BITS - 1);
+        return (evictedKeys.get(bit >>> 6) & (1L << (bit & 63))) != 0;
+    }
+
+    private void recordMiss(String key) {
+        if (budgetWeight <= 0) return;
+        final int h = key.hashCode();
+        if (isEvictedBit(h) && isEvictedBit(h * 0x9e3779b9)) ghostHits.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of misses on recently evicted keys since the last
+     * call, which estimates the hits more memory would bring, and forgets the
+     * evicted keys.
+     */
+    long takeGhostHits() {
+        for (int i = 0; i < evictedKeys.length(); i++) {
+            evictedKeys.set(i, 0);
+        }
+        return ghostHits.getAndSet(0);
+    }
+
+    long getBudgetWeight() {
+        return budgetWeight;
+    }
+
+    String getName() {
+        return name;
+    }
+
+
+    private boolean isExpired(CacheValue<T> value, long now) {
+        return _cacheDuration.get() > 0 && now - value.getWriteTime() >= _cacheDuration.get();
+    }
+
     private void setupMonitoring(final String appName) {
         final StepCounter sizeCounter = new StepCounter(getMonitorConfig(appName, "size", DataSourceType.GAUGE)) {
             @Override
             public Number getValue() {
                 if (cache == null) return Long.valueOf(0);
-                return Long.valueOf(cache.size());
+                return Long.valueOf(size());
             }
 
             @Override
@@ -117,7 +428,7 @@ public class EVCacheInMemoryCache<T> {
             @Override
             public Number getValue() {
                 if (cache == null) return Long.valueOf(0);
-                return Long.valueOf(cache.stats().requestCount());
+                return Long.valueOf(stats().requestCount());
             }
 
             @Override
@@ -135,7 +446,7 @@ public class EVCacheInMemoryCache<T> {
             @Override
             public Number getValue() {
                 if (cache == null) return Long.valueOf(0);
-                return Double.valueOf(cache.stats().hitRate());
+                return Double.valueOf(stats().hitRate());
             }
 
             @Override
@@ -145,6 +456,43 @@ public class EVCacheInMemoryCache<T> {
         };
         register(hitrateCounter);
 
+        final StepCounter weightCounter = new StepCounter(getMonitorConfig(appName, "weight", DataSourceType.GAUGE)) {
+            @Override
+            public Number getValue() {
+                if (cache == null) return Long.valueOf(0);
+                return Long.valueOf(getWeight());
+            }
+
+            @Override
+            public Number getValue(int pollerIndex) {
+                return getValue();
+            }
+        };
+        register(weightCounter);
+
+        register(new Monitor<Number>() {
+            final MonitorConfig config;
+
+            {
+                config = getMonitorConfig(appName, "refreshes", DataSourceType.COUNTER);
+            }
+
+            @Override
+            public Number getValue() {
+                return Long.valueOf(refreshCount.get());
+            }
+
+            @Override
+            public Number getValue(int pollerIndex) {
+                return getValue();
+            }
+
+            @Override
+            public MonitorConfig getConfig() {
+                return config;
+            }
+        });
+
         register(new Monitor<Number>() {
             final MonitorConfig config;
 
@@ -155,7 +503,7 @@ public class EVCacheInMemoryCache<T> {
             @Override
             public Number getValue() {
                 if (cache == null) return Long.valueOf(0);
-                return Double.valueOf(cache.stats().hitCount());
+                return Double.valueOf(stats().hitCount());
             }
 
             @Override
@@ -179,7 +527,7 @@ public class EVCacheInMemoryCache<T> {
             @Override
             public Number getValue() {
                 if (cache == null) return Long.valueOf(0);
-                return Double.valueOf(cache.stats().missCount());
+                return Double.valueOf(stats().missCount());
             }
 
             @Override
@@ -203,7 +551,7 @@ public class EVCacheInMemoryCache<T> {
             @Override
             public Number getValue() {
                 if (cache == null) return Long.valueOf(0);
-                return Double.valueOf(cache.stats().evictionCount());
+                return Double.valueOf(stats().evictionCount());
             }
 
             @Override
@@ -218,31 +566,310 @@ public class EVCacheInMemoryCache<T> {
         });
     }
 
+    private long size() {
+        final EVCacheOffHeapStore store = offHeapStore;
+        if (store != null) return store.size();
+        return cache.size();
+    }
+
+    private CacheStats stats() {
+        final EVCacheOffHeapStore store = offHeapStore;
+        if (store != null) return store.stats();
+        return cache.stats();
+    }
+
     public T get(String key) {
+        return get(key, null);
+    }
+
+    /**
+     * Returns the cached value for the given key. If the values are stored
+     * off-heap they are decoded using the given transcoder, or the transcoder
+     * of this cache if it is null.
+     */
+    @SuppressWarnings("unchecked")
+    public T get(String key, Transcoder<T> tc) {
         if (cache == null) return null;
-        final T val = cache.getIfPresent(key);
+        final EVCacheOffHeapStore store = offHeapStore;
+        if (store != null) {
+            final CachedData cd = store.get(key);
+            if (cd == null) return null;
+            try {
+                final T val = (tc == null) ? ((Transcoder<T>) weigher.getTranscoder()).decode(cd) : tc.decode(cd);
+                if (log.isDebugEnabled()) log.debug("GET : appName : " + appName + "; Key : " + key + "; val : " + val + "; off-heap");
+                return val;
+            } catch (Exception e) {
+                log.error("Unable to decode the off-heap value for appName : " + appName + "; Key : " + key, e);
+                store.remove(key);
+                return null;
+            }
+        }
+        final CacheValue<T> cacheValue = cache.getIfPresent(key);
+        if (cacheValue == null) recordMiss(key);
+        if (cacheValue != null && isExpired(cacheValue, System.currentTimeMillis())) {
+            // the entry was carried over from a cache with a longer duration
+            cache.invalidate(key);
+            return null;
+        }
+        if (cacheValue != null) cacheValue.setAccessTime(System.currentTimeMillis());
+        final T val = (cacheValue == null) ? null : cacheValue.getValue();
         if (log.isDebugEnabled()) log.debug("GET : appName : " + appName + "; Key : " + key + "; val : " + val);
+        if (cacheValue != null && shouldRefresh(cacheValue)) refresh(key, tc, cacheValue);
         return val;
     }
 
+    private boolean shouldRefresh(CacheValue<T> cacheValue) {
+        if (loader == null) return false;
+        final int percent = _refreshPercent.get();
+        final int duration = _cacheDuration.get();
+        if (percent <= 0 || percent >= 100 || duration <= 0) return false;
+        return System.currentTimeMillis() - cacheValue.getWriteTime() >= (long) duration * percent / 100;
+    }
+
+    /*
+     * Only the first caller to see the entry past its refresh time schedules
+     * the reload. If the reload fails or the key is not found the entry is
+     * left to expire. The reloaded value only replaces the entry that was
+     * refreshed, so a value set or deleted while the reload was in flight is
+     * not overwritten by the value read before it.
+     */
+    private void refresh(final String key, final Transcoder<T> tc, final CacheValue<T> cacheValue) {
+        if (!cacheValue.startRefresh()) return;
+        try {
+            getRefreshPool().execute(new Runnable() {
+                public void run() {
+                    try {
+                        final Transcoder<T> weighingTc = getWeighingTranscoder(tc);
+                        final T value = loader.load(key, weighingTc);
+                        if (value == null) return;
+                        final int dataLength = (weighingTc instanceof WeighingTranscoder) ? ((WeighingTranscoder<T>) weighingTc).getDataLength(value) : -1;
+                        final CacheValue<T> newValue = newCacheValue(key, value, null, dataLength);
+                        final Cache<String, CacheValue<T>> currentCache = cache;
+                        if (currentCache != null && currentCache.asMap().replace(key, cacheValue, newValue)) {
+                            weight.addAndGet(newValue.getWeight());
+                            refreshCount.incrementAndGet();
+                            if (log.isDebugEnabled()) log.debug("REFRESH : appName : " + appName + "; Key : " + key + "; val : " + value);
+                        } else if (log.isDebugEnabled()) {
+                            log.debug("REFRESH : appName : " + appName + "; Key : " + key + " was changed during the refresh, discarding the reloaded value");
+                        }
+                    } catch (Exception e) {
+                        if (log.isDebugEnabled()) log.debug("Unable to refresh appName : " + appName + "; Key : " + key, e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            cacheValue.endRefresh();
+        }
+    }
+
+    private synchronized ThreadPoolExecutor getRefreshPool() {
+        if (refreshPool == null) {
+            refreshPool = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(1000),
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("EVCacheInMemoryCache-" + appName + "-refresh-%d").build());
+            refreshPool.allowCoreThreadTimeOut(true);
+        }
+        return refreshPool;
+    }
+
     public void put(String key, T value) {
+        put(key, value, (CachedData) null);
+    }
+
+    /**
+     * Returns the transcoder the values to put in this cache should be read
+     * with. If the cache is bounded by weight it records the length of the
+     * data each value is decoded from, so that
+     * {@link #put(String, Object, Transcoder)} does not have to encode the
+     * value again to weigh it. Otherwise the given transcoder is returned.
+     */
+    @SuppressWarnings("unchecked")
+    public Transcoder<T> getWeighingTranscoder(Transcoder<T> tc) {
+        if (offHeapStore != null || getMaxWeight() <= 0 || tc instanceof WeighingTranscoder) return tc;
+        return new WeighingTranscoder<T>((tc == null) ? (Transcoder<T>) weigher.getTranscoder() : tc);
+    }
+
+    /**
+     * Puts the value in the cache. If the values are stored off-heap they are
+     * encoded using the given transcoder, or the transcoder of this cache if
+     * it is null.
+     */
+    @SuppressWarnings("unchecked")
+    public void put(String key, T value, Transcoder<T> tc) {
+        if (tc instanceof WeighingTranscoder) {
+            final WeighingTranscoder<T> weighingTc = (WeighingTranscoder<T>) tc;
+            if (offHeapStore == null) {
+                // the value was decoded by a concurrent get it was coalesced with, which puts it
+                final int dataLength = weighingTc.getDataLength(value);
+                if (dataLength >= 0) put(key, value, null, dataLength);
+                return;
+            }
+            tc = weighingTc.getTranscoder();
+        }
+        if (offHeapStore == null || tc == null) {
+            put(key, value, (CachedData) null);
+            return;
+        }
+        final CachedData cd;
+        try {
+            cd = tc.encode(value);
+        } catch (Exception e) {
+            log.error("Unable to encode the value for appName : " + appName + "; Key : " + key, e);
+            return;
+        }
+        put(key, value, cd);
+    }
+
+    /**
+     * Puts the value in the cache. If the value was already encoded by the
+     * caller the {@link CachedData} can be passed along so that the weight of
+     * the entry can be computed without encoding the value again.
+     */
+    public void put(String key, T value, CachedData cd) {
+        put(key, value, cd, -1);
+    }
+
+    /*
+     * The data length is the length of the data the value was read from, or
+     * -1 if it is not known, in which case the value is encoded to be weighed
+     * unless the CachedData is given.
+     */
+    @SuppressWarnings("unchecked")
+    private void put(String key, T value, CachedData cd, int dataLength) {
         if (cache == null) return;
-        cache.put(key, value);
-        if (log.isDebugEnabled()) log.debug("PUT : appName : " + appName + "; Key : " + key + "; val : " + value);
+        final EVCacheOffHeapStore store = offHeapStore;
+        if (store != null) {
+            try {
+                final CachedData data = (cd == null) ? ((Transcoder<T>) weigher.getTranscoder()).encode(value) : cd;
+                final long expiresAt = (_cacheDuration.get() > 0) ? System.currentTimeMillis() + _cacheDuration.get() : 0;
+                store.put(key, data, expiresAt);
+                if (log.isDebugEnabled()) log.debug("PUT : appName : " + appName + "; Key : " + key + "; val : " + value + "; off-heap size : " + data.getData().length);
+            } catch (Exception e) {
+                log.error("Unable to store the value off-heap for appName : " + appName + "; Key : " + key, e);
+            }
+            return;
+        }
+        final Cache<String, CacheValue<T>> currentCache = cache;
+        final CacheValue<T> cacheValue = newCacheValue(key, value, cd, dataLength);
+        currentCache.put(key, cacheValue);
+        weight.addAndGet(cacheValue.getWeight());
+        if (budgetWeight > 0 && weight.get() > budgetWeight && trimPending.compareAndSet(false, true)) {
+            if (!EVCacheInMemoryCacheBudget.getInstance().trimLater(this)) trimPending.set(false);
+        }
+        // the cache was replaced during the put, the migrated entry may be older
+        final Cache<String, CacheValue<T>> newCache = cache;
+        if (newCache != currentCache && newCache != null) newCache.invalidate(key);
+        if (log.isDebugEnabled()) log.debug("PUT : appName : " + appName + "; Key : " + key + "; val : " + value + "; weight : " + cacheValue.getWeight());
+    }
+
+    private CacheValue<T> newCacheValue(String key, T value, CachedData cd, int dataLength) {
+        final int entryWeight;
+        if (getMaxWeight() > 0) {
+            if (cd != null) {
+                entryWeight = weigher.weigh(key, cd);
+            } else if (dataLength >= 0) {
+                entryWeight = DataWeigher.weighKey(key) + dataLength;
+            } else {
+                entryWeight = weigher.weigh(key, value);
+            }
+        } else {
+            entryWeight = 0;
+        }
+        return new CacheValue<T>(value, entryWeight);
     }
 
     public void delete(String key) {
         if (cache == null) return;
-        cache.invalidate(key);
+        final EVCacheOffHeapStore store = offHeapStore;
+        if (store != null) store.remove(key);
+        // the previous cache first, so that an entry being migrated is not copied back
+        final Cache<String, CacheValue<T>> currentCache = cache;
+        final Cache<String, CacheValue<T>> previousCache = migratingFrom;
+        if (previousCache != null) previousCache.invalidate(key);
+        currentCache.invalidate(key);
         if (log.isDebugEnabled()) log.debug("DEL : appName : " + appName + "; Key : " + key);
     }
-    
+
+    /**
+     * Returns the total weight in bytes of all the entries in this cache. This
+     * is tracked only if the cache is bounded by <code>inmemory.cache.weight</code>
+     * or if the values are stored off-heap.
+     */
+    public long getWeight() {
+        final EVCacheOffHeapStore store = offHeapStore;
+        if (store != null) return store.getUsedBytes();
+        return weight.get();
+    }
+
+    /*
+     * Compared by identity, which a refresh relies on to replace only the
+     * entry it reloaded.
+     */
+    static class CacheValue<T> {
+        private final T value;
+        private final int weight;
+        private final long writeTime;
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
+        private long accessTime; // best effort, only used to order the entries when the cache is resized
+
+        CacheValue(T value, int weight) {
+            this(value, weight, System.currentTimeMillis());
+        }
+
+        CacheValue(T value, int weight, long writeTime) {
+            this.value = value;
+            this.weight = weight;
+            this.writeTime = writeTime;
+            this.accessTime = writeTime;
+        }
+
+        public T getValue() {
+            return value;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        public long getWriteTime() {
+            return writeTime;
+        }
+
+        public long getAccessTime() {
+            return accessTime;
+        }
+
+        void setAccessTime(long accessTime) {
+            this.accessTime = accessTime;
+        }
+
+        boolean startRefresh() {
+            return refreshing.compareAndSet(false, true);
+        }
+
+        void endRefresh() {
+            refreshing.set(false);
+        }
+    }
+
+    /**
+     * Loads the latest value of the key, bypassing this cache. Used to refresh
+     * the entries ahead of their expiry.
+     */
+    public interface Loader<T> {
+        T load(String key, Transcoder<T> tc) throws Exception;
+    }
+
+    /**
+     * Weighs the entries by the size of the key plus the length of the encoded
+     * data. Values that are already wrapped in a {@link CacheValue} are not
+     * encoded again.
+     */
     static class DataWeigher implements Weigher<Object, Object> {
-        
+
         private Transcoder<?> transcoder;
-        
+
         DataWeigher() {
-            
+
         }
 
         public Transcoder<?> getTranscoder() {
@@ -253,10 +880,102 @@ public class EVCacheInMemoryCache<T> {
             this.transcoder = transcoder;
         }
 
+        @SuppressWarnings("unchecked")
         public int weigh(Object key, Object value) {
-            // TODO Auto-generated method stub
-            return 0;
+            if (value instanceof CacheValue) return ((CacheValue<?>) value).getWeight();
+            final int keySize = (key == null) ? 0 : weighKey(key.toString());
+            if (value == null) return keySize;
+            if (value instanceof CachedData) return keySize + ((CachedData) value).getData().length;
+            try {
+                final CachedData cd = ((Transcoder<Object>) transcoder).encode(value);
+                return keySize + (cd == null ? 0 : cd.getData().length);
+            } catch (Exception e) {
+                if (log.isDebugEnabled()) log.debug("Unable to weigh the value for key : " + key, e);
+                return keySize;
+            }
+        }
+
+        /*
+         * Returns the length of the key encoded as UTF-8, the way it is sent
+         * to memcached, without encoding it.
+         */
+        static int weighKey(String key) {
+            int size = key.length();
+            for (int i = 0; i < key.length(); i++) {
+                final char c = key.charAt(i);
+                if (c >= 0x800) {
+                    size += Character.isSurrogate(c) ? 1 : 2;
+                } else if (c >= 0x80) {
+                    size++;
+                }
+            }
+            return size;
+        }
+
+    }
+
+    /*
+     * Records the length of the data every value it decodes was read from so
+     * that the value can be weighed without encoding it again. A new one is
+     * used for every read so that the lengths are dropped along with it.
+     */
+    static class WeighingTranscoder<T> implements EVCacheStreamingTranscoder<T> {
+
+        private final Transcoder<T> transcoder;
+        private final Map<Object, Integer> dataLengths = Collections.synchronizedMap(new IdentityHashMap<Object, Integer>());
+
+        WeighingTranscoder(Transcoder<T> transcoder) {
+            this.transcoder = transcoder;
+        }
+
+        Transcoder<T> getTranscoder() {
+            return transcoder;
+        }
+
+        int getDataLength(Object value) {
+            final Integer length = (value == null) ? null : dataLengths.get(value);
+            return (length == null) ? -1 : length.intValue();
+        }
+
+        private T record(T value, int length) {
+            if (value != null) dataLengths.put(value, Integer.valueOf(length));
+            return value;
+        }
+
+        @Override
+        public boolean asyncDecode(CachedData d) {
+            return transcoder.asyncDecode(d);
+        }
+
+        @Override
+        public CachedData encode(T o) {
+            return transcoder.encode(o);
+        }
+
+        @Override
+        public T decode(CachedData d) {
+            return record(transcoder.decode(d), d.getData().length);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T decode(int flags, InputStream in, int length) {
+            if (transcoder instanceof EVCacheStreamingTranscoder) {
+                return record(((EVCacheStreamingTranscoder<T>) transcoder).decode(flags, in, length), length);
+            }
+            final byte[] data = new byte[length];
+            try {
+                ByteStreams.readFully(in, data);
+            } catch (IOException e) {
+                log.warn("Unable to read " + length + " bytes of data", e);
+                return null;
+            }
+            return decode(new CachedData(flags, data, Integer.MAX_VALUE));
+        }
+
+        @Override
+        public int getMaxSize() {
+            return transcoder.getMaxSize();
         }
-        
     }
 }
@@ -0,0 +1,163 @@
+package com.netflix.evcache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicLongProperty;
+import com.netflix.evcache.util.EVCacheConfig;
+
+/**
+ * Splits a global memory budget in bytes across all the near caches of this
+ * JVM by the benefit more memory would bring to each of them. Every interval
+ * each cache gets at least a small fixed share of the budget. A cache that had
+ * no misses on the keys it recently evicted would not gain from more memory
+ * and gets about as much as it uses. The rest is split in proportion to the
+ * number of those misses, the ghost hits, which are the hits each cache would
+ * have had with more memory.
+ *
+ * A new share is applied in place by evicting the least recently read entries
+ * of a cache, and only if it differs from the current one by more than 10%.
+ *
+ * This is disabled unless <code>evcache.inmemory.cache.budget</code> is
+ * greater than 0. While enabled the share is used as the maximum weight of
+ * each cache instead of <code>inmemory.cache.weight</code>.
+ */
+class EVCacheInMemoryCacheBudget {
+
+    private static final Logger log = LoggerFactory.getLogger(EVCacheInMemoryCacheBudget.class);
+    private static final EVCacheInMemoryCacheBudget INSTANCE = new EVCacheInMemoryCacheBudget();
+
+    private final DynamicLongProperty budget;
+    private final DynamicIntProperty interval;
+    private final Set<EVCacheInMemoryCache<?>> caches = Collections.newSetFromMap(new WeakHashMap<EVCacheInMemoryCache<?>, Boolean>());
+    private ScheduledThreadPoolExecutor scheduler;
+    private long appliedBudget = 0; // the budget the current shares were computed from
+
+    private EVCacheInMemoryCacheBudget() {
+        this.budget = EVCacheConfig.getInstance().getDynamicLongProperty("evcache.inmemory.cache.budget", 0);
+        this.interval = EVCacheConfig.getInstance().getDynamicIntProperty("evcache.inmemory.cache.budget.interval.ms", 60000);
+        this.budget.addCallback(new Runnable() {
+            public void run() {
+                start();
+                rebalance();
+            }
+        });
+    }
+
+    static EVCacheInMemoryCacheBudget getInstance() {
+        return INSTANCE;
+    }
+
+    void register(EVCacheInMemoryCache<?> cache) {
+        synchronized (this) {
+            caches.add(cache);
+        }
+        start();
+        if (budget.get() > 0) rebalance();
+    }
+
+    private synchronized void start() {
+        if (scheduler != null || budget.get() <= 0) return;
+        scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("EVCacheInMemoryCacheBudget").build());
+        final long delay = Math.max(1000, interval.get());
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    rebalance();
+                } catch (Throwable t) {
+                    log.error("Exception while rebalancing the near cache budget", t);
+                }
+            }
+        }, delay, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Trims the given cache to its share on the background thread. Returns
+     * false if there is no background thread to trim it on. The cache submits
+     * one trim at a time.
+     */
+    boolean trimLater(final EVCacheInMemoryCache<?> cache) {
+        final ScheduledThreadPoolExecutor executor;
+        synchronized (this) {
+            executor = scheduler;
+        }
+        if (executor == null) return false;
+        executor.execute(new Runnable() {
+            public void run() {
+                cache.trim();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Computes the share of every cache from the ghost hits since the last
+     * call and applies the shares that changed by more than 10%.
+     */
+    synchronized void rebalance() {
+        final List<EVCacheInMemoryCache<?>> list = new ArrayList<EVCacheInMemoryCache<?>>(caches);
+        if (list.isEmpty()) return;
+
+        final long total = budget.get();
+        final boolean budgetChanged = total != appliedBudget;
+        appliedBudget = total;
+        if (total <= 0) {
+            for (EVCacheInMemoryCache<?> cache : list) {
+                cache.setBudgetWeight(0, 0);
+            }
+            return;
+        }
+
+        final long floor = total / (10L * list.size());
+        final long[] shares = new long[list.size()];
+        final long[] ghostHits = new long[list.size()];
+        long totalGhostHits = 0;
+        long remaining = total;
+        for (int i = 0; i < list.size(); i++) {
+            final EVCacheInMemoryCache<?> cache = list.get(i);
+            ghostHits[i] = cache.takeGhostHits();
+            totalGhostHits += ghostHits[i];
+            if (ghostHits[i] > 0) {
+                shares[i] = floor;
+            } else {
+                final long used = cache.getWeight();
+                shares[i] = Math.max(floor, used + used / 10);
+            }
+            remaining -= shares[i];
+        }
+        if (remaining < 0) {
+            // the caches use more than the budget, they are scaled down to fit
+            for (int i = 0; i < shares.length; i++) {
+                shares[i] = Math.max(floor, (long) (shares[i] * ((double) total / (total - remaining))));
+            }
+            remaining = 0;
+        }
+        for (int i = 0; i < list.size(); i++) {
+            if (totalGhostHits > 0) {
+                shares[i] += (long) (remaining * ((double) ghostHits[i] / totalGhostHits));
+            } else {
+                shares[i] += remaining / list.size();
+            }
+        }
+
+        for (int i = 0; i < list.size(); i++) {
+            final EVCacheInMemoryCache<?> cache = list.get(i);
+            final long share = shares[i];
+            final long current = cache.getBudgetWeight();
+            if (budgetChanged || current <= 0 || Math.abs(share - current) > current / 10) {
+                if (log.isDebugEnabled()) log.debug("Near cache " + cache.getName() + " : budget " + current + " -> " + share + " bytes; ghost hits : " + ghostHits[i]);
+                cache.setBudgetWeight(share, total);
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.netflix.evcache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.objenesis.strategy.StdInstantiatorStrategy;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.google.common.io.ByteStreams;
+import com.netflix.config.ChainedDynamicProperty;
+import com.netflix.config.ConfigurationManager;
+import com.netflix.evcache.metrics.EVCacheMetricsFactory;
+import com.netflix.evcache.util.EVCacheConfig;
+
+import net.spy.memcached.CachedData;
+
+/**
+ * A transcoder that writes objects using Kryo instead of Java serialization.
+ * The classes that are stored must be registered with an id, which is written
+ * instead of the class name, so all the clients of an app must register the
+ * same classes with the same ids. The ids must be 100 or more; the ids below
+ * are used for the common JDK classes registered by this transcoder.
+ *
+ * The values written by Kryo have the flag bit 2 set. Values written using
+ * Java serialization, by older clients or for a class that is not registered,
+ * are still read, so an app can move to this transcoder by first deploying it
+ * to all its clients with <code>&lt;app&gt;.transcoder.kryo.write</code> or
+ * <code>default.evcache.transcoder.kryo.write</code> set to false, and then
+ * setting it to true. Clients that do not use this transcoder read the values
+ * written by Kryo as misses.
+ *
+ * Strings, numbers and byte arrays are written as by
+ * {@link EVCacheTranscoder} and values are compressed the same way. It is used
+ * by setting it on the builder:
+ *
+ * <pre>
+ * new EVCache.Builder().setAppName("EVCACHE_APP").setTranscoder(new EVCacheKryoTranscoder("EVCACHE_APP", classes)).build();
+ * </pre>
+ */
+public class EVCacheKryoTranscoder extends EVCacheTranscoder {
+
+    static final int KRYO = 4;
+    public static final int FIRST_ID = 100;
+
+    // the ids of these classes must never change
+    private static final Class<?>[] JDK_CLASSES = { ArrayList.class, LinkedList.class, HashMap.class, LinkedHashMap.class, TreeMap.class, HashSet.class,
+            LinkedHashSet.class, TreeSet.class, Date.class, byte[].class, int[].class, long[].class, double[].class, String[].class, Object[].class };
+    private static final int FIRST_JDK_ID = 20;
+
+    private final String name;
+    private final Map<Integer, Class<?>> classes;
+    private final ChainedDynamicProperty.BooleanProperty write;
+
+    private final ThreadLocal<Kryo> kryos = new ThreadLocal<Kryo>() {
+        @Override
+        protected Kryo initialValue() {
+            return createKryo();
+        }
+    };
+
+    private final ThreadLocal<Output> outputs = new ThreadLocal<Output>() {
+        @Override
+        protected Output initialValue() {
+            return new Output(4096);
+        }
+    };
+
+    public EVCacheKryoTranscoder(Map<Integer, Class<?>> classes) {
+        this(null, classes);
+    }
+
+    public EVCacheKryoTranscoder(String appName, Map<Integer, Class<?>> classes) {
+        this(appName, ConfigurationManager.getConfigInstance().getInt("default.evcache.max.data.size", Integer.MAX_VALUE),
+                ConfigurationManager.getConfigInstance().getInt("default.evcache.compression.threshold", 120),
+                EVCacheCompression.fromName(ConfigurationManager.getConfigInstance().getString("default.evcache.compression.codec", "GZIP")), null, classes);
+    }
+
+    /**
+     * @param classes the classes to register by their id
+     */
+    public EVCacheKryoTranscoder(String appName, int max, int compressionThreshold, EVCacheCompression compression, EVCacheZstdDictionaries dictionaries,
+            Map<Integer, Class<?>> classes) {
+        super(appName, max, compressionThreshold, compression, dictionaries);
+        for (Integer id : classes.keySet()) {
+            if (id.intValue() < FIRST_ID) throw new IllegalArgumentException("The id " + id + " of " + classes.get(id) + " must be " + FIRST_ID + " or more");
+        }
+        this.name = (appName == null) ? "default" : appName;
+        this.classes = Collections.unmodifiableMap(new TreeMap<Integer, Class<?>>(classes));
+        this.write = EVCacheConfig.getInstance().getChainedBooleanProperty(name + ".transcoder.kryo.write", "default.evcache.transcoder.kryo.write", Boolean.TRUE);
+    }
+
+    private Kryo createKryo() {
+        final Kryo kryo = new Kryo();
+        kryo.setRegistrationRequired(true);
+        kryo.setReferences(true);
+        final Kryo.DefaultInstantiatorStrategy strategy = new Kryo.DefaultInstantiatorStrategy();
+        strategy.setFallbackInstantiatorStrategy(new StdInstantiatorStrategy());
+        kryo.setInstantiatorStrategy(strategy);
+        for (int i = 0; i < JDK_CLASSES.length; i++) {
+            kryo.register(JDK_CLASSES[i], FIRST_JDK_ID + i);
+        }
+        for (Map.Entry<Integer, Class<?>> entry : classes.entrySet()) {
+            kryo.register(entry.getValue(), entry.getKey().intValue());
+        }
+        return kryo;
+    }
+
+    public Map<Integer, Class<?>> getClasses() {
+        return classes;
+    }
+
+    /**
+     * Objects are written using Kryo, or Java serialization if writing with
+     * Kryo is disabled or the class of the object or one of its fields is not
+     * registered.
+     */
+    @Override
+    int serialize(Object o, EVCacheEncodeBuffer out) throws IOException {
+        if (!write.get()) return super.serialize(o, out);
+
+        final Output output = outputs.get();
+        output.setOutputStream(out);
+        try {
+            kryos.get().writeClassAndObject(output, o);
+            output.flush();
+            return SERIALIZED | KRYO;
+        } catch (KryoException | IllegalArgumentException e) {
+            if (getLogger().isDebugEnabled()) getLogger().debug("Could not write " + o.getClass().getName() + " using Kryo, using Java serialization", e);
+            EVCacheMetricsFactory.increment(name + "-KRYO_FALLBACK");
+            out.setSize(0);
+            return super.serialize(o, out);
+        } finally {
+            output.setOutputStream(null);
+        }
+    }
+
+    @Override
+    public Object decode(CachedData d) {
+        final int flags = d.getFlags();
+        if ((flags & KRYO) == 0) return super.decode(d);
+        try {
+            final byte[] data = decompress(flags, d.getData());
+            return kryos.get().readClassAndObject(new Input(data));
+        } catch (IOException | KryoException | IllegalArgumentException e) {
+            getLogger().warn("Caught exception decoding " + d.getData().length + " bytes of Kryo data with flags " + flags, e);
+            return null;
+        }
+    }
+
+    @Override
+    public Object decode(int flags, InputStream in, int length) {
+        if ((flags & KRYO) == 0) return super.decode(flags, in, length);
+        try {
+            final byte[] data = new byte[length];
+            ByteStreams.readFully(in, data);
+            return decode(new CachedData(flags, data, Integer.MAX_VALUE));
+        } catch (IOException e) {
+            getLogger().warn("Caught exception decoding " + length + " bytes of Kryo data", e);
+            return null;
+        }
+    }
+}
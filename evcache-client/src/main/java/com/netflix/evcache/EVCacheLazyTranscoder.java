@@ -0,0 +1,39 @@
+package com.netflix.evcache;
+
+import com.netflix.evcache.operation.EVCacheDecodePolicy;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.Transcoder;
+
+/**
+ * Wraps the data read from memcached in an {@link EVCacheLazyValue} instead of
+ * decoding it. It is only used to read.
+ */
+class EVCacheLazyTranscoder<T> implements Transcoder<EVCacheLazyValue<T>>, EVCacheDecodePolicy.PassThrough {
+
+    private final Transcoder<T> tc;
+
+    EVCacheLazyTranscoder(Transcoder<T> tc) {
+        this.tc = tc;
+    }
+
+    @Override
+    public boolean asyncDecode(CachedData d) {
+        return false;
+    }
+
+    @Override
+    public CachedData encode(EVCacheLazyValue<T> o) {
+        throw new UnsupportedOperationException("EVCacheLazyTranscoder can only be used to read");
+    }
+
+    @Override
+    public EVCacheLazyValue<T> decode(CachedData d) {
+        return new EVCacheLazyValue<T>(d, tc);
+    }
+
+    @Override
+    public int getMaxSize() {
+        return (tc == null) ? CachedData.MAX_SIZE : tc.getMaxSize();
+    }
+}
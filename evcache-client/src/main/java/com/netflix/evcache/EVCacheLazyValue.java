@@ -0,0 +1,62 @@
+package com.netflix.evcache;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.Transcoder;
+
+/**
+ * A value returned by {@link EVCache#getLazy(String, Transcoder)} and
+ * {@link EVCache#getBulkLazy(java.util.Collection, Transcoder)}. It holds the
+ * data as read from memcached and decodes it the first time {@link #get()} is
+ * called, so callers that only check if a key is present, or use a few values
+ * of a bulk get, do not pay for decoding the others.
+ */
+public class EVCacheLazyValue<T> {
+
+    private final CachedData data;
+    private final Transcoder<T> tc;
+    private volatile boolean decoded;
+    private T value;
+
+    EVCacheLazyValue(CachedData data, Transcoder<T> tc) {
+        this.data = data;
+        this.tc = tc;
+    }
+
+    /**
+     * Returns the decoded value. It is decoded only once, by the first caller.
+     */
+    public T get() {
+        if (!decoded) {
+            synchronized (this) {
+                if (!decoded) {
+                    value = tc.decode(data);
+                    decoded = true;
+                }
+            }
+        }
+        return value;
+    }
+
+    public boolean isDecoded() {
+        return decoded;
+    }
+
+    /**
+     * Returns the data as read from memcached.
+     */
+    public CachedData getCachedData() {
+        return data;
+    }
+
+    /**
+     * Returns the size of the data as read from memcached.
+     */
+    public int getSize() {
+        return data.getData().length;
+    }
+
+    @Override
+    public String toString() {
+        return "EVCacheLazyValue [flags=" + data.getFlags() + ", size=" + getSize() + ", decoded=" + decoded + "]";
+    }
+}
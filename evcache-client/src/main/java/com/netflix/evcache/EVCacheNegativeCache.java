@@ -0,0 +1,138 @@
+package com.netflix.evcache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.evcache.util.EVCacheConfig;
+
+/**
+ * Remembers the keys that were not found in EVCache for a short duration so
+ * that repeated lookups of absent keys do not go to the servers, or to every
+ * fallback server group, again. This is disabled unless
+ * <code>negative.cache.duration.ms</code> is greater than 0. The keys are
+ * invalidated by the writes made through the same {@link EVCacheImpl}; writes
+ * made by other clients are seen once the duration has passed.
+ *
+ * Only the reads that completed without an error are remembered. A read is
+ * started with {@link #startRead(String)}, which stamps it with the generation
+ * of the key, and every invalidation bumps that generation so that a miss read
+ * before a write cannot be cached after the write. The keys missing from a
+ * bulk read are added only if the bulk read completed, as a key that timed out
+ * is missing from the result too.
+ */
+class EVCacheNegativeCache {
+
+    private static final Logger log = LoggerFactory.getLogger(EVCacheNegativeCache.class);
+    private final String appName;
+    private final DynamicIntProperty _cacheDuration; // The miss will be cached for this long
+    private final DynamicIntProperty _cacheSize; // This many misses will be cached
+
+    private volatile Cache<String, Boolean> cache;
+
+    // the generations of the keys, striped by the hash of the key
+    private static final int GENERATION_STRIPES = 1024;
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+
+    EVCacheNegativeCache(String appName) {
+        this.appName = appName;
+        this._cacheDuration = EVCacheConfig.getInstance().getDynamicIntProperty(appName + ".negative.cache.duration.ms", 0);
+        this._cacheDuration.addCallback(new Runnable() {
+            public void run() {
+                setupCache();
+            }
+        });
+
+        this._cacheSize = EVCacheConfig.getInstance().getDynamicIntProperty(appName + ".negative.cache.size", 10000);
+        this._cacheSize.addCallback(new Runnable() {
+            public void run() {
+                setupCache();
+            }
+        });
+        setupCache();
+    }
+
+    private void setupCache() {
+        if (_cacheDuration.get() <= 0 || _cacheSize.get() <= 0) {
+            this.cache = null;
+            return;
+        }
+        this.cache = CacheBuilder.newBuilder().maximumSize(_cacheSize.get()).expireAfterWrite(_cacheDuration.get(), TimeUnit.MILLISECONDS).build();
+        if (log.isDebugEnabled()) log.debug("Negative cache for app " + appName + " : size " + _cacheSize.get() + "; duration " + _cacheDuration.get() + " ms");
+    }
+
+    boolean isEnabled() {
+        return cache != null;
+    }
+
+    /**
+     * Returns true if the key was recently found to be absent.
+     */
+    boolean isMiss(String canonicalKey) {
+        final Cache<String, Boolean> c = cache;
+        return c != null && c.getIfPresent(canonicalKey) != null;
+    }
+
+    /**
+     * Stamps a read of the key with its current generation. Returns null if
+     * the negative cache is disabled.
+     */
+    Read startRead(String canonicalKey) {
+        if (cache == null) return null;
+        return new Read(canonicalKey, generations.get(stripe(canonicalKey)));
+    }
+
+    /**
+     * Remembers the key of the read as absent, unless the read failed or the
+     * key was invalidated since the read was started.
+     */
+    void put(Read read) {
+        final Cache<String, Boolean> c = cache;
+        if (c == null || read == null || read.failed) return;
+        final int stripe = stripe(read.canonicalKey);
+        if (generations.get(stripe) != read.generation) return;
+        c.put(read.canonicalKey, Boolean.TRUE);
+        // an invalidation that raced with the put may have run before it
+        if (generations.get(stripe) != read.generation) c.invalidate(read.canonicalKey);
+    }
+
+    void invalidate(String canonicalKey) {
+        generations.incrementAndGet(stripe(canonicalKey));
+        final Cache<String, Boolean> c = cache;
+        if (c != null) c.invalidate(canonicalKey);
+    }
+
+    private static int stripe(String canonicalKey) {
+        final int h = canonicalKey.hashCode();
+        return (h ^ (h >>> 16)) & (GENERATION_STRIPES - 1);
+    }
+
+    /**
+     * A read of a key that can be remembered as a miss once it completes.
+     * The read is marked as failed if any of the server groups it went to
+     * could not answer, in which case the key may well be present.
+     */
+    static class Read {
+        private final String canonicalKey;
+        private final long generation;
+        private volatile boolean failed = false;
+
+        Read(String canonicalKey, long generation) {
+            this.canonicalKey = canonicalKey;
+            this.generation = generation;
+        }
+
+        void failed() {
+            this.failed = true;
+        }
+
+        boolean hasFailed() {
+            return failed;
+        }
+    }
+}
@@ -0,0 +1,382 @@
+package com.netflix.evcache;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.CacheStats;
+
+import net.spy.memcached.CachedData;
+
+/**
+ * Stores the encoded {@link CachedData} (flags and payload) of the near cache
+ * in direct memory so that the cached values do not add to the java heap.
+ *
+ * The memory is split into fixed size slabs which are filled one after
+ * another like a ring. Once all the slabs are used the oldest slab is
+ * recycled and all the entries it holds are evicted. The number of slabs can
+ * be changed in place with {@link #resize(long)}; a smaller store releases
+ * its oldest slabs and a larger one allocates the new slabs as they are
+ * filled. Only a small index entry
+ * per key, and the list of the keys written to each slab, is kept on the
+ * heap. Every slab carries a generation which is bumped, with the memory
+ * write locked, when it is recycled. A read checks the generation of its entry
+ * and copies the data under the read lock, so the slab cannot be recycled and
+ * overwritten during the copy; an entry of an older generation is a miss.
+ *
+ * The direct memory is released by {@link #close()} instead of waiting for
+ * the slabs to be garbage collected. Reads hold a read lock so that the
+ * memory is never released while it is being copied.
+ */
+class EVCacheOffHeapStore {
+
+    private static final Logger log = LoggerFactory.getLogger(EVCacheOffHeapStore.class);
+
+    private final String appName;
+    private final int slabSize;
+    // replaced, with the lock held and the memory write locked, when the store grows
+    private volatile ByteBuffer[] slabs;
+    private volatile AtomicIntegerArray generations;
+    private final ConcurrentHashMap<String, Entry> index = new ConcurrentHashMap<String, Entry>();
+    private final StampedLock memoryLock = new StampedLock();
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+    private final AtomicLong usedBytes = new AtomicLong(0);
+
+    // guarded by this
+    private int[] filled;
+    private List<String>[] slabKeys;
+    private int numOfSlabs;
+    private final ArrayDeque<Integer> ring = new ArrayDeque<Integer>(); // the slabs in use, oldest first
+    private final ArrayDeque<Integer> unused = new ArrayDeque<Integer>(); // the slabs that are not allocated
+    private int currentSlab = 0;
+    private int position = 0;
+    private volatile boolean closed = false;
+
+    EVCacheOffHeapStore(String appName, long capacity, int slabSize) {
+        if (slabSize <= 0) throw new IllegalArgumentException("slabSize should be greater than 0");
+        this.appName = appName;
+        this.slabSize = slabSize;
+        this.numOfSlabs = numOfSlabs(capacity, slabSize);
+        this.slabs = new ByteBuffer[numOfSlabs];
+        this.generations = new AtomicIntegerArray(numOfSlabs);
+        this.filled = new int[numOfSlabs];
+        this.slabKeys = newKeyLists(0, numOfSlabs);
+        this.ring.addLast(Integer.valueOf(0));
+        for (int i = 1; i < numOfSlabs; i++) {
+            unused.addLast(Integer.valueOf(i));
+        }
+        if (log.isInfoEnabled()) log.info("Off-heap store for app " + appName + " with " + numOfSlabs + " slabs of " + slabSize + " bytes");
+    }
+
+    int getSlabSize() {
+        return slabSize;
+    }
+
+    /**
+     * Changes the number of slabs to fit the given capacity without copying
+     * the entries. If the store shrinks its oldest slabs are recycled and
+     * their memory is released.
+     */
+    synchronized void resize(long capacity) {
+        final int newNumOfSlabs = numOfSlabs(capacity, slabSize);
+        if (closed || newNumOfSlabs == numOfSlabs) return;
+        final int length = slabs.length;
+        if (newNumOfSlabs > length) {
+            final long stamp = memoryLock.writeLock();
+            try {
+                final AtomicIntegerArray newGenerations = new AtomicIntegerArray(newNumOfSlabs);
+                for (int i = 0; i < length; i++) {
+                    newGenerations.set(i, generations.get(i));
+                }
+                this.generations = newGenerations;
+                this.slabs = Arrays.copyOf(slabs, newNumOfSlabs);
+            } finally {
+                memoryLock.unlockWrite(stamp);
+            }
+            this.filled = Arrays.copyOf(filled, newNumOfSlabs);
+            final List<String>[] newSlabKeys = newKeyLists(length, newNumOfSlabs);
+            System.arraycopy(slabKeys, 0, newSlabKeys, 0, length);
+            this.slabKeys = newSlabKeys;
+            for (int i = length; i < newNumOfSlabs; i++) {
+                unused.addLast(Integer.valueOf(i));
+            }
+        }
+        this.numOfSlabs = newNumOfSlabs;
+
+        // the current slab is the newest and there are at least 2 slabs, so it is never released here
+        if (ring.size() > numOfSlabs) {
+            final long stamp = memoryLock.writeLock();
+            try {
+                while (ring.size() > numOfSlabs) {
+                    final int slab = ring.pollFirst().intValue();
+                    recycle(slab, generations.getAndIncrement(slab));
+                    if (slabs[slab] != null) free(slabs[slab]);
+                    slabs[slab] = null;
+                    unused.addFirst(Integer.valueOf(slab));
+                }
+            } finally {
+                memoryLock.unlockWrite(stamp);
+            }
+        }
+        if (log.isInfoEnabled()) log.info("Resized the off-heap store for app " + appName + " to " + numOfSlabs + " slabs of " + slabSize + " bytes");
+    }
+
+    private static int numOfSlabs(long capacity, int slabSize) {
+        return (int) Math.max(2, Math.min(Integer.MAX_VALUE - 8, capacity / slabSize));
+    }
+
+    /**
+     * Copies the given data in to direct memory. Returns false if the data
+     * cannot fit in a slab and was not stored.
+     */
+    boolean put(String key, CachedData cd, long expiresAt) {
+        final byte[] data = cd.getData();
+        if (data.length > slabSize) {
+            index.remove(key);
+            if (log.isDebugEnabled()) log.debug("APP " + appName + "; Key : " + key + " of size " + data.length + " is larger than slab size " + slabSize);
+            return false;
+        }
+
+        synchronized (this) {
+            if (closed) return false;
+            if (slabs[currentSlab] == null) {
+                slabs[currentSlab] = ByteBuffer.allocateDirect(slabSize);
+            }
+            if (position + data.length > slabSize) {
+                currentSlab = nextSlab();
+                position = 0;
+            }
+            final ByteBuffer buffer = slabs[currentSlab].duplicate();
+            buffer.position(position);
+            buffer.put(data);
+            final Entry entry = new Entry(currentSlab, generations.get(currentSlab), position, data.length, cd.getFlags(), expiresAt);
+            position += data.length;
+            filled[currentSlab] = position;
+            slabKeys[currentSlab].add(key);
+            usedBytes.addAndGet(data.length);
+            index.put(key, entry);
+        }
+        return true;
+    }
+
+    /**
+     * Returns a copy of the data stored for the given key or null if it is not
+     * present, has expired or was evicted.
+     */
+    CachedData get(String key) {
+        final Entry entry = index.get(key);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (entry.expiresAt > 0 && entry.expiresAt < System.currentTimeMillis()) {
+            index.remove(key, entry);
+            misses.incrementAndGet();
+            return null;
+        }
+
+        final CachedData cd = read(entry);
+        if (cd == null) {
+            index.remove(key, entry);
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return cd;
+    }
+
+    /*
+     * Copies the data of the entry out of its slab. Returns null if the slab
+     * was recycled. The generation of a slab is only bumped with the memory
+     * write locked, so it cannot change while the data is copied.
+     */
+    private CachedData read(Entry entry) {
+        final byte[] data = new byte[entry.length];
+        final long stamp = memoryLock.readLock();
+        try {
+            if (closed || generations.get(entry.slab) != entry.generation) return null;
+            final ByteBuffer buffer = slabs[entry.slab].duplicate();
+            buffer.position(entry.offset);
+            buffer.get(data);
+        } finally {
+            memoryLock.unlockRead(stamp);
+        }
+        return new CachedData(entry.flags, data, Integer.MAX_VALUE);
+    }
+
+    void remove(String key) {
+        index.remove(key);
+    }
+
+    /**
+     * Evicts everything and releases the direct memory. Nothing can be stored
+     * once the store is closed.
+     */
+    void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            for (int i = 0; i < slabs.length; i++) {
+                generations.incrementAndGet(i);
+                filled[i] = 0;
+                slabKeys[i].clear();
+            }
+            index.clear();
+            usedBytes.set(0);
+        }
+        // wait for the reads that are copying from the slabs
+        final long stamp = memoryLock.writeLock();
+        try {
+            for (int i = 0; i < slabs.length; i++) {
+                if (slabs[i] != null) {
+                    free(slabs[i]);
+                    slabs[i] = null;
+                }
+            }
+        } finally {
+            memoryLock.unlockWrite(stamp);
+        }
+        if (log.isInfoEnabled()) log.info("Released the off-heap store for app " + appName);
+    }
+
+    long size() {
+        return index.size();
+    }
+
+    /**
+     * Number of bytes written to the slabs which have not been recycled yet.
+     * This includes the bytes of entries that were overwritten or deleted.
+     */
+    long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    CacheStats stats() {
+        return new CacheStats(hits.get(), misses.get(), 0, 0, 0, evictions.get());
+    }
+
+    /*
+     * Called with the lock held. Returns the slab to write to next, an unused
+     * slab while there are fewer than numOfSlabs in use and the oldest slab
+     * otherwise.
+     */
+    private int nextSlab() {
+        final int slab;
+        if (ring.size() < numOfSlabs && !unused.isEmpty()) {
+            slab = unused.pollFirst().intValue();
+        } else {
+            slab = ring.pollFirst().intValue();
+            // wait for the reads that are copying from the slab before it is overwritten
+            final long stamp = memoryLock.writeLock();
+            final int generation;
+            try {
+                generation = generations.getAndIncrement(slab);
+            } finally {
+                memoryLock.unlockWrite(stamp);
+            }
+            recycle(slab, generation);
+        }
+        if (slabs[slab] == null) slabs[slab] = ByteBuffer.allocateDirect(slabSize);
+        ring.addLast(Integer.valueOf(slab));
+        return slab;
+    }
+
+    /*
+     * Called with the lock held once the generation of the slab was bumped
+     * from the given one. Only the keys written to the slab are looked up; a
+     * key that was written again to another slab since is left alone.
+     */
+    private void recycle(int slab, int generation) {
+        long count = 0;
+        final List<String> keys = slabKeys[slab];
+        for (int i = 0; i < keys.size(); i++) {
+            final String key = keys.get(i);
+            final Entry entry = index.get(key);
+            if (entry != null && entry.slab == slab && entry.generation == generation && index.remove(key, entry)) count++;
+        }
+        keys.clear();
+        evictions.addAndGet(count);
+        usedBytes.addAndGet(-filled[slab]);
+        filled[slab] = 0;
+        if (log.isDebugEnabled()) log.debug("APP " + appName + "; recycled slab " + slab + " and evicted " + count + " entries");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String>[] newKeyLists(int from, int numOfSlabs) {
+        final List<String>[] lists = new List[numOfSlabs];
+        for (int i = from; i < numOfSlabs; i++) {
+            lists[i] = new ArrayList<String>();
+        }
+        return lists;
+    }
+
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (Exception e) {
+            // java 8, the cleaner of the buffer is used instead
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    /*
+     * Releases the direct memory of the buffer. If that is not possible on
+     * this JVM it is released once the buffer is garbage collected.
+     */
+    private void free(ByteBuffer buffer) {
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } else {
+                final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                final Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            if (log.isDebugEnabled()) log.debug("APP " + appName + "; unable to release the direct memory of a slab, it will be released by the GC", e);
+        }
+    }
+
+    static class Entry {
+        final int slab;
+        final int generation;
+        final int offset;
+        final int length;
+        final int flags;
+        final long expiresAt;
+
+        Entry(int slab, int generation, int offset, int length, int flags, long expiresAt) {
+            this.slab = slab;
+            this.generation = generation;
+            this.offset = offset;
+            this.length = length;
+            this.flags = flags;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.netflix.evcache;
+
+import java.io.InputStream;
+
+import net.spy.memcached.transcoders.Transcoder;
+
+/**
+ * A {@link Transcoder} that can decode a value directly from a stream. This
+ * is used for chunked values so that the chunks do not have to be copied in
+ * to a single array before they are decoded.
+ */
+public interface EVCacheStreamingTranscoder<T> extends Transcoder<T> {
+
+    /**
+     * Decodes <code>length</code> bytes read from the given stream that were
+     * stored with the given flags.
+     */
+    T decode(int flags, InputStream in, int length);
+}
@@ -0,0 +1,625 @@
+package com.netflix.evcache;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.cache.AbstractCache;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+/**
+ * A size bounded cache using the W-TinyLFU policy. New entries are added to a
+ * small LRU window. Entries evicted from the window are only admitted in to
+ * the main segmented LRU (probation and protected segments) if a count-min
+ * sketch estimates them to be more frequently requested than the entry that
+ * would be evicted to make room for them. This keeps scans of keys that are
+ * requested only once from pushing the hot keys out of the cache.
+ *
+ * The entries expire after the given duration since they were written.
+ *
+ * Like Caffeine, reads do not take a lock: the entries are looked up in a
+ * concurrent map and the reads are recorded in ring buffers striped by
+ * thread. The buffers are drained in to the sketch and the LRU order under
+ * the eviction lock when one of them is full or when an entry is written.
+ * A read is not recorded if its buffer is full and the lock is busy, which
+ * only makes the policy slightly less accurate. Writes take the eviction
+ * lock.
+ */
+class EVCacheTinyLfuCache<K, V> extends AbstractCache<K, V> {
+
+    private final int windowCapacity;
+    private final int protectedCapacity;
+    private final int mainCapacity;
+    private final long expireAfterWriteMillis;
+    private final RemovalListener<K, V> removalListener;
+    private final ReadBuffer[] readBuffers;
+    private final int readBufferMask;
+
+    private final ConcurrentHashMap<K, Node<K, V>> data = new ConcurrentHashMap<K, Node<K, V>>();
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private ConcurrentMap<K, V> asMap;
+
+    // guarded by evictionLock
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final FrequencySketch sketch;
+    private final LinkedHashMap<K, Node<K, V>> window = new LinkedHashMap<K, Node<K, V>>();
+    private final LinkedHashMap<K, Node<K, V>> probation = new LinkedHashMap<K, Node<K, V>>();
+    private final LinkedHashMap<K, Node<K, V>> protectedSegment = new LinkedHashMap<K, Node<K, V>>();
+
+    EVCacheTinyLfuCache(int maximumSize, long expireAfterWriteMillis, RemovalListener<K, V> removalListener) {
+        if (maximumSize <= 0) throw new IllegalArgumentException("maximumSize should be greater than 0");
+        this.windowCapacity = Math.max(1, maximumSize / 100);
+        this.mainCapacity = Math.max(1, maximumSize - windowCapacity);
+        this.protectedCapacity = Math.max(1, (int) (mainCapacity * 0.8));
+        this.expireAfterWriteMillis = expireAfterWriteMillis;
+        this.removalListener = removalListener;
+        this.sketch = new FrequencySketch(maximumSize);
+
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() && stripes < 64) stripes <<= 1;
+        this.readBuffers = new ReadBuffer[stripes];
+        for (int i = 0; i < stripes; i++) {
+            readBuffers[i] = new ReadBuffer();
+        }
+        this.readBufferMask = stripes - 1;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V getIfPresent(Object key) {
+        final Node<K, V> node = data.get(key);
+        if (node == null) {
+            missCount.increment();
+            afterRead(key);
+            return null;
+        }
+        if (isExpired(node, System.currentTimeMillis())) {
+            evictionLock.lock();
+            try {
+                removeNode(node, RemovalCause.EXPIRED);
+            } finally {
+                evictionLock.unlock();
+            }
+            missCount.increment();
+            return null;
+        }
+        hitCount.increment();
+        afterRead(node);
+        return node.value;
+    }
+
+    /**
+     * Returns the value of the key, loading it if it is not present. Unlike
+     * Guava the loads are not coalesced, concurrent callers may load the same
+     * key.
+     */
+    @Override
+    public V get(K key, Callable<? extends V> loader) throws ExecutionException {
+        V value = getIfPresent(key);
+        if (value != null) return value;
+        try {
+            value = loader.call();
+        } catch (Exception e) {
+            throw new ExecutionException(e);
+        }
+        if (value == null) throw new ExecutionException(new NullPointerException("The loader returned null for " + key));
+        put(key, value);
+        return value;
+    }
+
+    /*
+     * Records the read of a node, or of a missing key, in the buffer of this
+     * thread and drains the buffers if it is full.
+     */
+    private void afterRead(Object e) {
+        final ReadBuffer buffer = readBuffers[ReadBuffer.probe() & readBufferMask];
+        if (buffer.offer(e)) return;
+        if (evictionLock.tryLock()) {
+            try {
+                drainReadBuffers();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    // called with the eviction lock held
+    @SuppressWarnings("unchecked")
+    private void drainReadBuffers() {
+        for (ReadBuffer buffer : readBuffers) {
+            Object e;
+            while ((e = buffer.poll()) != null) {
+                if (e instanceof Node) {
+                    final Node<K, V> node = (Node<K, V>) e;
+                    if (node.segment == Node.REMOVED) continue;
+                    sketch.increment(node.key);
+                    onHit(node);
+                } else {
+                    sketch.increment(e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void put(K key, V value) {
+        final long now = System.currentTimeMillis();
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            final Node<K, V> existing = data.get(key);
+            if (existing != null) {
+                final V oldValue = existing.value;
+                existing.value = value;
+                existing.writeTime = now;
+                onHit(existing);
+                notifyRemoval(key, oldValue, RemovalCause.REPLACED);
+                return;
+            }
+
+            sketch.increment(key);
+            final Node<K, V> node = new Node<K, V>(key, value, now);
+            node.segment = Node.WINDOW;
+            data.put(key, node);
+            window.put(key, node);
+            if (window.size() > windowCapacity) {
+                final Node<K, V> candidate = removeFirst(window);
+                candidate.segment = Node.PROBATION;
+                probation.put(candidate.key, candidate);
+                if (probation.size() + protectedSegment.size() > mainCapacity) {
+                    evict(candidate);
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public void invalidate(Object key) {
+        final Node<K, V> node = data.get(key);
+        if (node == null) return;
+        evictionLock.lock();
+        try {
+            removeNode(node, RemovalCause.EXPLICIT);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public void invalidateAll() {
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            for (Node<K, V> node : data.values()) {
+                node.segment = Node.REMOVED;
+                notifyRemoval(node.key, node.value, RemovalCause.EXPLICIT);
+            }
+            data.clear();
+            window.clear();
+            probation.clear();
+            protectedSegment.clear();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public long size() {
+        return data.size();
+    }
+
+    @Override
+    public CacheStats stats() {
+        return new CacheStats(hitCount.sum(), missCount.sum(), 0, 0, 0, evictionCount.sum());
+    }
+
+    /**
+     * Removes all the expired entries.
+     */
+    @Override
+    public void cleanUp() {
+        final long now = System.currentTimeMillis();
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            for (Node<K, V> node : data.values()) {
+                if (isExpired(node, now)) removeNode(node, RemovalCause.EXPIRED);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Returns a view of the entries that have not expired. Changes to the map
+     * are written to the cache.
+     */
+    @Override
+    public ConcurrentMap<K, V> asMap() {
+        final ConcurrentMap<K, V> map = asMap;
+        return (map == null) ? (asMap = new AsMapView()) : map;
+    }
+
+    private boolean isExpired(Node<K, V> node, long now) {
+        return expireAfterWriteMillis > 0 && now - node.writeTime >= expireAfterWriteMillis;
+    }
+
+    private V getUnexpired(Object key) {
+        final Node<K, V> node = data.get(key);
+        return (node == null || isExpired(node, System.currentTimeMillis())) ? null : node.value;
+    }
+
+    // called with the eviction lock held
+    private void onHit(Node<K, V> node) {
+        if (node.segment == Node.PROBATION) {
+            probation.remove(node.key);
+            node.segment = Node.PROTECTED;
+            protectedSegment.put(node.key, node);
+            if (protectedSegment.size() > protectedCapacity) {
+                final Node<K, V> demoted = removeFirst(protectedSegment);
+                demoted.segment = Node.PROBATION;
+                probation.put(demoted.key, demoted);
+            }
+        } else {
+            final LinkedHashMap<K, Node<K, V>> segment = segmentOf(node);
+            segment.remove(node.key);
+            segment.put(node.key, node);
+        }
+    }
+
+    /*
+     * The candidate was just moved from the window to the probation segment
+     * and the main segments are over capacity. Either the candidate or the
+     * victim at the head of probation is evicted based on their frequency.
+     */
+    private void evict(Node<K, V> candidate) {
+        Node<K, V> victim = firstOf(probation);
+        if (victim == candidate || victim == null) victim = firstOf(protectedSegment);
+        if (victim == null) return;
+
+        if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+            removeNode(victim, RemovalCause.SIZE);
+        } else {
+            removeNode(candidate, RemovalCause.SIZE);
+        }
+        evictionCount.increment();
+    }
+
+    // called with the eviction lock held
+    private boolean removeNode(Node<K, V> node, RemovalCause cause) {
+        if (node.segment == Node.REMOVED || !data.remove(node.key, node)) return false;
+        segmentOf(node).remove(node.key);
+        node.segment = Node.REMOVED;
+        notifyRemoval(node.key, node.value, cause);
+        return true;
+    }
+
+    private void notifyRemoval(K key, V value, RemovalCause cause) {
+        if (removalListener != null) removalListener.onRemoval(RemovalNotification.create(key, value, cause));
+    }
+
+    private LinkedHashMap<K, Node<K, V>> segmentOf(Node<K, V> node) {
+        switch (node.segment) {
+        case Node.WINDOW:
+            return window;
+        case Node.PROBATION:
+            return probation;
+        default:
+            return protectedSegment;
+        }
+    }
+
+    private static <K, V> Node<K, V> firstOf(LinkedHashMap<K, Node<K, V>> segment) {
+        final Iterator<Node<K, V>> it = segment.values().iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    private static <K, V> Node<K, V> removeFirst(LinkedHashMap<K, Node<K, V>> segment) {
+        final Iterator<Node<K, V>> it = segment.values().iterator();
+        final Node<K, V> node = it.next();
+        it.remove();
+        return node;
+    }
+
+    static class Node<K, V> {
+        static final int REMOVED = -1;
+        static final int WINDOW = 0;
+        static final int PROBATION = 1;
+        static final int PROTECTED = 2;
+
+        final K key;
+        volatile V value;
+        volatile long writeTime;
+        int segment; // guarded by the eviction lock
+
+        Node(K key, V value, long writeTime) {
+            this.key = key;
+            this.value = value;
+            this.writeTime = writeTime;
+        }
+    }
+
+    /**
+     * A bounded ring buffer of reads. Any thread can add to it and it is
+     * drained by the thread holding the eviction lock.
+     */
+    static class ReadBuffer {
+        private static final int SIZE = 16;
+        private static final int MASK = SIZE - 1;
+
+        private final AtomicReferenceArray<Object> buffer = new AtomicReferenceArray<Object>(SIZE);
+        private final AtomicLong writeCounter = new AtomicLong(0);
+        private volatile long readCounter = 0;
+
+        static int probe() {
+            final long id = Thread.currentThread().getId();
+            final int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        /**
+         * Returns false if the buffer is full or another thread is adding to
+         * it at the same time.
+         */
+        boolean offer(Object e) {
+            final long tail = writeCounter.get();
+            if (tail - readCounter >= SIZE) return false;
+            if (!writeCounter.compareAndSet(tail, tail + 1)) return false;
+            buffer.lazySet((int) (tail & MASK), e);
+            return true;
+        }
+
+        // called with the eviction lock held
+        Object poll() {
+            final long head = readCounter;
+            if (head == writeCounter.get()) return null;
+            final int index = (int) (head & MASK);
+            final Object e = buffer.get(index);
+            if (e == null) return null; // not published yet
+            buffer.lazySet(index, null);
+            readCounter = head + 1;
+            return e;
+        }
+    }
+
+    /*
+     * The map returned by asMap. The operations that depend on the current
+     * value hold the eviction lock so that they are atomic with the writes to
+     * the cache.
+     */
+    private class AsMapView extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
+
+        @Override
+        public int size() {
+            return data.size();
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return getUnexpired(key) != null;
+        }
+
+        @Override
+        public V get(Object key) {
+            return getUnexpired(key);
+        }
+
+        @Override
+        public V put(K key, V value) {
+            evictionLock.lock();
+            try {
+                final V oldValue = getUnexpired(key);
+                EVCacheTinyLfuCache.this.put(key, value);
+                return oldValue;
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+
+        @Override
+        public V putIfAbsent(K key, V value) {
+            evictionLock.lock();
+            try {
+                final V oldValue = getUnexpired(key);
+                if (oldValue == null) EVCacheTinyLfuCache.this.put(key, value);
+                return oldValue;
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+
+        @Override
+        public V remove(Object key) {
+            evictionLock.lock();
+            try {
+                final V oldValue = getUnexpired(key);
+                invalidate(key);
+                return oldValue;
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+
+        @Override
+        public boolean remove(Object key, Object value) {
+            evictionLock.lock();
+            try {
+                final V oldValue = getUnexpired(key);
+                if (oldValue == null || !oldValue.equals(value)) return false;
+                invalidate(key);
+                return true;
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+
+        @Override
+        public V replace(K key, V value) {
+            evictionLock.lock();
+            try {
+                final V oldValue = getUnexpired(key);
+                if (oldValue != null) EVCacheTinyLfuCache.this.put(key, value);
+                return oldValue;
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+
+        @Override
+        public boolean replace(K key, V oldValue, V newValue) {
+            evictionLock.lock();
+            try {
+                final V currentValue = getUnexpired(key);
+                if (currentValue == null || !currentValue.equals(oldValue)) return false;
+                EVCacheTinyLfuCache.this.put(key, newValue);
+                return true;
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+
+        @Override
+        public void clear() {
+            invalidateAll();
+        }
+
+        @Override
+        public Set<Map.Entry<K, V>> entrySet() {
+            return new AbstractSet<Map.Entry<K, V>>() {
+                @Override
+                public int size() {
+                    return data.size();
+                }
+
+                @Override
+                public Iterator<Map.Entry<K, V>> iterator() {
+                    final Iterator<Node<K, V>> nodes = data.values().iterator();
+                    return new Iterator<Map.Entry<K, V>>() {
+                        private Map.Entry<K, V> next;
+                        private K last;
+
+                        @Override
+                        public boolean hasNext() {
+                            final long now = System.currentTimeMillis();
+                            while (next == null && nodes.hasNext()) {
+                                final Node<K, V> node = nodes.next();
+                                if (!isExpired(node, now)) next = new AbstractMap.SimpleImmutableEntry<K, V>(node.key, node.value);
+                            }
+                            return next != null;
+                        }
+
+                        @Override
+                        public Map.Entry<K, V> next() {
+                            if (!hasNext()) throw new NoSuchElementException();
+                            final Map.Entry<K, V> entry = next;
+                            next = null;
+                            last = entry.getKey();
+                            return entry;
+                        }
+
+                        @Override
+                        public void remove() {
+                            if (last == null) throw new IllegalStateException();
+                            invalidate(last);
+                            last = null;
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    /**
+     * A count-min sketch with 4 bit counters that estimates how often a key
+     * was requested. All the counters are halved once the number of
+     * increments reaches 10 times the maximum size so that keys that were
+     * popular a while back age out.
+     */
+    static class FrequencySketch {
+        private static final long[] SEED = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final long[] table;
+        private final int tableMask;
+        private final int sampleSize;
+        private int size;
+
+        FrequencySketch(int maximumSize) {
+            int tableSize = 1;
+            while (tableSize < maximumSize && tableSize < (1 << 30)) tableSize <<= 1;
+            this.table = new long[tableSize];
+            this.tableMask = tableSize - 1;
+            this.sampleSize = (int) Math.min(10L * maximumSize, Integer.MAX_VALUE);
+        }
+
+        int frequency(Object key) {
+            final int hash = spread(key.hashCode());
+            final int start = (hash & 3) << 2;
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                final int index = indexOf(hash, i);
+                final int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+        void increment(Object key) {
+            final int hash = spread(key.hashCode());
+            final int start = (hash & 3) << 2;
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                added |= incrementAt(indexOf(hash, i), start + i);
+            }
+            if (added && ++size >= sampleSize) reset();
+        }
+
+        private boolean incrementAt(int index, int counter) {
+            final int offset = counter << 2;
+            final long mask = 0xfL << offset;
+            if ((table[index] & mask) != mask) {
+                table[index] += 1L << offset;
+                return true;
+            }
+            return false;
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            size = size >>> 1;
+        }
+
+        private int indexOf(int hash, int i) {
+            long h = (hash + SEED[i]) * SEED[i];
+            h += h >>> 32;
+            return ((int) h) & tableMask;
+        }
+
+        private static int spread(int x) {
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            return (x >>> 16) ^ x;
+        }
+    }
+}
@@ -1,11 +1,29 @@
 package com.netflix.evcache;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Date;
+import java.util.zip.GZIPInputStream;
+
+import com.google.common.io.ByteStreams;
 import com.netflix.config.ConfigurationManager;
 
 import net.spy.memcached.CachedData;
 import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.util.StringUtils;
+
+public class EVCacheTranscoder extends SerializingTranscoder implements EVCacheStreamingTranscoder<Object> {
+
+    // Same as the flags used by SerializingTranscoder
+    static final int SERIALIZED = 1;
+    static final int COMPRESSED = 2;
 
-public class EVCacheTranscoder extends SerializingTranscoder {
+    private final EVCacheCompression compression;
+    private final EVCacheZstdDictionaries dictionaries;
+    private final EVCacheAdaptiveCompression adaptive;
+    private final SerializingTranscoder uncompressed;
 
     public EVCacheTranscoder() {
         this(ConfigurationManager.getConfigInstance().getInt("default.evcache.max.data.size", Integer.MAX_VALUE));
@@ -16,8 +34,55 @@ public class EVCacheTranscoder extends SerializingTranscoder {
     }
 
     public EVCacheTranscoder(int max, int compressionThreshold) {
+        this(max, compressionThreshold, EVCacheCompression.fromName(ConfigurationManager.getConfigInstance().getString("default.evcache.compression.codec", "GZIP")));
+    }
+
+    public EVCacheTranscoder(EVCacheCompression compression) {
+        this(compression, null);
+    }
+
+    public EVCacheTranscoder(EVCacheCompression compression, EVCacheZstdDictionaries dictionaries) {
+        this(null, compression, dictionaries);
+    }
+
+    /**
+     * The app name is used for the settings of the adaptive compression, see
+     * {@link EVCacheAdaptiveCompression}.
+     */
+    public EVCacheTranscoder(String appName, EVCacheCompression compression, EVCacheZstdDictionaries dictionaries) {
+        this(appName, ConfigurationManager.getConfigInstance().getInt("default.evcache.max.data.size", Integer.MAX_VALUE),
+                ConfigurationManager.getConfigInstance().getInt("default.evcache.compression.threshold", 120), compression, dictionaries);
+    }
+
+    public EVCacheTranscoder(int max, int compressionThreshold, EVCacheCompression compression) {
+        this(max, compressionThreshold, compression, null);
+    }
+
+    /**
+     * The dictionaries are used to read and write the values compressed
+     * using {@link EVCacheCompression#ZSTD_DICT}. ZSTD is used instead if
+     * there is no dictionary to compress with.
+     */
+    public EVCacheTranscoder(int max, int compressionThreshold, EVCacheCompression compression, EVCacheZstdDictionaries dictionaries) {
+        this(null, max, compressionThreshold, compression, dictionaries);
+    }
+
+    public EVCacheTranscoder(String appName, int max, int compressionThreshold, EVCacheCompression compression, EVCacheZstdDictionaries dictionaries) {
         super(max);
         setCompressionThreshold(compressionThreshold);
+        this.dictionaries = dictionaries;
+        this.adaptive = EVCacheAdaptiveCompression.getInstance(appName == null ? "default" : appName);
+        this.uncompressed = new SerializingTranscoder(max);
+        uncompressed.setCompressionThreshold(Integer.MAX_VALUE);
+        if (compression == EVCacheCompression.ZSTD_DICT && (dictionaries == null || !dictionaries.canCompress())) {
+            getLogger().warn("There is no zstd dictionary to compress with, using ZSTD instead");
+            compression = EVCacheCompression.ZSTD;
+        }
+        this.compression = (compression == null) ? EVCacheCompression.GZIP : compression;
+    }
+
+    public EVCacheCompression getCompression() {
+        return compression;
     }
 
     @Override
@@ -25,15 +90,167 @@ public class EVCacheTranscoder extends SerializingTranscoder {
         return super.asyncDecode(d);
     }
 
+    /**
+     * Values compressed with a codec other than GZIP are decompressed here as
+     * SerializingTranscoder only knows GZIP.
+     */
     @Override
     public Object decode(CachedData d) {
-        return super.decode(d);
+        final int flags = d.getFlags();
+        if ((flags & COMPRESSED) == 0 || (flags & EVCacheCompression.MASK) == 0) return super.decode(d);
+
+        try {
+            final byte[] data = decompress(flags, d.getData());
+            return super.decode(new CachedData(flags & ~(COMPRESSED | EVCacheCompression.MASK), data, Integer.MAX_VALUE));
+        } catch (IOException e) {
+            getLogger().warn("Caught exception decompressing " + d.getData().length + " bytes with flags " + flags, e);
+            return null;
+        }
     }
 
+    /**
+     * Returns the data of a value with the given flags, decompressed with its
+     * codec if it is compressed.
+     */
+    byte[] decompress(int flags, byte[] data) throws IOException {
+        if ((flags & COMPRESSED) == 0) return data;
+        final EVCacheCompression codec = EVCacheCompression.fromFlags(flags);
+        if (codec == null) throw new IOException("Unknown compression codec in flags " + flags);
+        if (codec == EVCacheCompression.ZSTD_DICT && dictionaries != null) return dictionaries.decompress(data);
+        return codec.decompress(data);
+    }
+
+    /**
+     * Serialized objects are read directly from the stream, inflating it if
+     * compressed. Other types are read in to an array and decoded as usual.
+     */
+    @Override
+    public Object decode(int flags, InputStream in, int length) {
+        try {
+            if ((flags & COMPRESSED) != 0 && (flags & EVCacheCompression.MASK) != 0) {
+                final byte[] data = new byte[length];
+                ByteStreams.readFully(in, data);
+                return decode(new CachedData(flags, data, Integer.MAX_VALUE));
+            }
+            if ((flags & SERIALIZED) != 0) {
+                final InputStream data = ((flags & COMPRESSED) != 0) ? new GZIPInputStream(in) : in;
+                try (ObjectInputStream ois = new ObjectInputStream(data)) {
+                    return ois.readObject();
+                }
+            }
+
+            final byte[] data;
+            if ((flags & COMPRESSED) != 0) {
+                data = ByteStreams.toByteArray(new GZIPInputStream(in));
+            } else {
+                data = new byte[length];
+                ByteStreams.readFully(in, data);
+            }
+            return super.decode(new CachedData(flags & ~COMPRESSED, data, Integer.MAX_VALUE));
+        } catch (IOException | ClassNotFoundException e) {
+            getLogger().warn("Caught exception decoding " + length + " bytes of data", e);
+            return null;
+        }
+    }
+
+    /**
+     * Serialized objects are written in to a pooled buffer and compressed in
+     * to another one, see {@link EVCacheEncodeBuffer}, so that
+     * only the array of the CachedData is allocated. Other types are encoded
+     * by SerializingTranscoder and compressed in to a buffer.
+     *
+     * With adaptive compression a value is compressed only if values of its
+     * type and size compress well, ignoring the compression threshold.
+     */
     @Override
     public CachedData encode(Object o) {
-        if (o != null && o instanceof CachedData) return (CachedData) o;
-        return super.encode(o);
+        if (o == null) throw new NullPointerException("Can't serialize null");
+        if (o instanceof CachedData) return (CachedData) o;
+        if (o instanceof String && !adaptive.isEnabled() && StringUtils.isJsonObject((String) o)) return uncompressed.encode(o);
+
+        EVCacheEncodeBuffer serialized = null;
+        EVCacheEncodeBuffer compressed = null;
+        try {
+            final CachedData cd;
+            final byte[] data;
+            final int length;
+            final int flags;
+            if (isSerialized(o)) {
+                cd = null;
+                serialized = EVCacheEncodeBuffer.acquire();
+                flags = serialize(o, serialized);
+                data = serialized.array();
+                length = serialized.size();
+            } else {
+                cd = uncompressed.encode(o);
+                data = cd.getData();
+                length = data.length;
+                flags = cd.getFlags();
+            }
+
+            EVCacheAdaptiveCompression.Bucket bucket = null;
+            final boolean compress;
+            if (adaptive.isEnabled()) {
+                bucket = adaptive.getBucket(o, length);
+                compress = bucket != null && bucket.shouldCompress();
+            } else {
+                compress = length > compressionThreshold;
+            }
+            if (compress) {
+                compressed = EVCacheEncodeBuffer.acquire();
+                compress(data, 0, length, compressed);
+                if (bucket != null) bucket.record(length, compressed.size());
+                if (compressed.size() < length) {
+                    final int compressedFlags = flags | COMPRESSED;
+                    return new CachedData((compression == EVCacheCompression.GZIP) ? compressedFlags : compression.toFlags(compressedFlags), compressed.toByteArray(), getMaxSize());
+                }
+                if (bucket == null && getLogger().isDebugEnabled()) getLogger().debug("Compression increased the size of " + o.getClass().getName() + " from " + length + " to " + compressed.size());
+            }
+            return (cd == null) ? new CachedData(flags, serialized.toByteArray(), getMaxSize()) : cd;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Non-serializable object", e);
+        } finally {
+            if (serialized != null) serialized.release();
+            if (compressed != null) compressed.release();
+        }
+    }
+
+    /**
+     * Serializes the object in to the buffer and returns the flags of the
+     * value. Objects are written using Java serialization.
+     */
+    int serialize(Object o, EVCacheEncodeBuffer out) throws IOException {
+        try (ObjectOutputStream os = new ObjectOutputStream(out)) {
+            os.writeObject(o);
+        }
+        return SERIALIZED;
+    }
+
+    /*
+     * Returns true if SerializingTranscoder would serialize the object.
+     */
+    private static boolean isSerialized(Object o) {
+        return !(o instanceof String || o instanceof Long || o instanceof Integer || o instanceof Boolean || o instanceof Date
+                || o instanceof Byte || o instanceof Float || o instanceof Double || o instanceof byte[]);
+    }
+
+    private void compress(byte[] in, int off, int len, EVCacheEncodeBuffer out) throws IOException {
+        if (compression == EVCacheCompression.ZSTD_DICT) {
+            dictionaries.compress(in, off, len, out);
+        } else {
+            compression.compress(in, off, len, out);
+        }
+    }
+
+    @Override
+    protected byte[] compress(byte[] in) {
+        if (compression == EVCacheCompression.GZIP) return super.compress(in);
+        try {
+            if (compression == EVCacheCompression.ZSTD_DICT) return dictionaries.compress(in);
+            return compression.compress(in);
+        } catch (IOException e) {
+            throw new RuntimeException("IO exception compressing data", e);
+        }
     }
 
 }
\ No newline at end of file
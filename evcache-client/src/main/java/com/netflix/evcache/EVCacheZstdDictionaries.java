@@ -0,0 +1,153 @@
+package com.netflix.evcache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.netflix.config.ConfigurationManager;
+import com.netflix.evcache.util.EVCacheConfig;
+
+/**
+ * The zstd dictionaries of an app, used by {@link EVCacheCompression#ZSTD_DICT}.
+ * Small values that are similar to each other compress much better with a
+ * dictionary trained on samples of them, see
+ * {@link EVCacheZstdDictionaryTrainer}.
+ *
+ * The dictionaries are loaded from the files named
+ * <code>&lt;version&gt;.dict</code> in the directory set by
+ * <code>&lt;app&gt;.compression.zstd.dictionary.dir</code>. Values are
+ * compressed with the version set by
+ * <code>&lt;app&gt;.compression.zstd.dictionary.version</code>, or the
+ * highest version if it is not set, and the version is written in the first
+ * 4 bytes of the value. Keep the files of the older versions in the directory
+ * until the values compressed with them have expired.
+ */
+public class EVCacheZstdDictionaries {
+
+    private static final Logger log = LoggerFactory.getLogger(EVCacheZstdDictionaries.class);
+    private static final Map<String, EVCacheZstdDictionaries> APPS = new ConcurrentHashMap<String, EVCacheZstdDictionaries>();
+
+    private final Map<Integer, ZstdDictDecompress> decompressors = new ConcurrentHashMap<Integer, ZstdDictDecompress>();
+    private final int version;
+    private final ZstdDictCompress compressor;
+
+    /**
+     * Creates the dictionaries from the given versions. The dictionary with
+     * the given version is used for compression, or none if it is not one of
+     * them.
+     */
+    public EVCacheZstdDictionaries(Map<Integer, byte[]> dictionaries, int version, int level) {
+        for (Map.Entry<Integer, byte[]> entry : dictionaries.entrySet()) {
+            decompressors.put(entry.getKey(), new ZstdDictDecompress(entry.getValue()));
+        }
+        final byte[] dictionary = dictionaries.get(Integer.valueOf(version));
+        this.version = version;
+        this.compressor = (dictionary == null) ? null : new ZstdDictCompress(dictionary, level);
+    }
+
+    /**
+     * Returns the dictionaries of the given app, which are loaded the first
+     * time they are needed.
+     */
+    public static EVCacheZstdDictionaries getInstance(String appName) {
+        EVCacheZstdDictionaries dictionaries = APPS.get(appName);
+        if (dictionaries == null) {
+            dictionaries = load(appName);
+            final EVCacheZstdDictionaries existing = APPS.putIfAbsent(appName, dictionaries);
+            if (existing != null) dictionaries = existing;
+        }
+        return dictionaries;
+    }
+
+    private static EVCacheZstdDictionaries load(String appName) {
+        final String dir = EVCacheConfig.getInstance().getDynamicStringProperty(appName + ".compression.zstd.dictionary.dir", "").get();
+        final int level = ConfigurationManager.getConfigInstance().getInt("default.evcache.compression.zstd.level", 1);
+        final File[] files = (dir == null || dir.isEmpty()) ? null : new File(dir).listFiles();
+        if (files == null) {
+            if (dir != null && !dir.isEmpty()) log.warn("Could not read the zstd dictionaries of app " + appName + " from " + dir);
+            return new EVCacheZstdDictionaries(Collections.<Integer, byte[]> emptyMap(), 0, level);
+        }
+
+        final Map<Integer, byte[]> dictionaries = new ConcurrentHashMap<Integer, byte[]>();
+        int latest = 0;
+        for (File file : files) {
+            final String name = file.getName();
+            if (!name.endsWith(".dict")) continue;
+            try {
+                final int version = Integer.parseInt(name.substring(0, name.length() - ".dict".length()));
+                if (version <= 0) throw new NumberFormatException("The version must be greater than 0");
+                dictionaries.put(Integer.valueOf(version), Files.readAllBytes(file.toPath()));
+                latest = Math.max(latest, version);
+            } catch (NumberFormatException | IOException e) {
+                log.warn("Could not load the zstd dictionary " + file + " of app " + appName, e);
+            }
+        }
+        final int version = EVCacheConfig.getInstance().getDynamicIntProperty(appName + ".compression.zstd.dictionary.version", latest).get();
+        if (log.isInfoEnabled()) log.info("Loaded the zstd dictionaries " + dictionaries.keySet() + " of app " + appName + "; compressing with version " + version);
+        return new EVCacheZstdDictionaries(dictionaries, version, level);
+    }
+
+    /**
+     * Returns true if there is a dictionary to compress with.
+     */
+    public boolean canCompress() {
+        return compressor != null;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public byte[] compress(byte[] in) throws IOException {
+        if (compressor == null) throw new IOException("There is no zstd dictionary with version " + version);
+        final byte[] out = new byte[(int) Zstd.compressBound(in.length) + 4];
+        out[0] = (byte) (version >>> 24);
+        out[1] = (byte) (version >>> 16);
+        out[2] = (byte) (version >>> 8);
+        out[3] = (byte) version;
+        final long len = Zstd.compressFastDict(out, 4, in, 0, in.length, compressor);
+        if (Zstd.isError(len)) throw new IOException("Error compressing with zstd dictionary " + version + " : " + Zstd.getErrorName(len));
+        return Arrays.copyOf(out, (int) len + 4);
+    }
+
+    /**
+     * Compresses <code>len</code> bytes of <code>in</code> the same way as
+     * {@link #compress(byte[])} and appends them to <code>out</code>.
+     */
+    void compress(byte[] in, int off, int len, EVCacheEncodeBuffer out) throws IOException {
+        if (compressor == null) throw new IOException("There is no zstd dictionary with version " + version);
+        final int start = out.size();
+        final byte[] buf = out.ensureCapacity(start + (int) Zstd.compressBound(len) + 4);
+        buf[start] = (byte) (version >>> 24);
+        buf[start + 1] = (byte) (version >>> 16);
+        buf[start + 2] = (byte) (version >>> 8);
+        buf[start + 3] = (byte) version;
+        final long size = Zstd.compressFastDict(buf, start + 4, in, off, len, compressor);
+        if (Zstd.isError(size)) throw new IOException("Error compressing with zstd dictionary " + version + " : " + Zstd.getErrorName(size));
+        out.setSize(start + 4 + (int) size);
+    }
+
+    public byte[] decompress(byte[] in) throws IOException {
+        if (in.length < 4) throw new IOException("Invalid zstd dictionary data of " + in.length + " bytes");
+        final int dictVersion = (in[0] & 0xff) << 24 | (in[1] & 0xff) << 16 | (in[2] & 0xff) << 8 | (in[3] & 0xff);
+        final ZstdDictDecompress decompressor = decompressors.get(Integer.valueOf(dictVersion));
+        if (decompressor == null) throw new IOException("Unknown zstd dictionary version " + dictVersion);
+
+        final long size = Zstd.getFrameContentSize(in, 4, in.length - 4);
+        if (size < 0 || size > Integer.MAX_VALUE) throw new IOException("Invalid zstd frame content size " + size);
+        final byte[] out = new byte[(int) size];
+        final long len = Zstd.decompressFastDict(out, 0, in, 4, in.length - 4, decompressor);
+        if (Zstd.isError(len) || len != size) throw new IOException("Error decompressing with zstd dictionary " + dictVersion + " : " + (Zstd.isError(len) ? Zstd.getErrorName(len) : len + " bytes"));
+        return out;
+    }
+}
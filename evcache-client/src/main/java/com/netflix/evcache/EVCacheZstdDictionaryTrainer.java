@@ -0,0 +1,82 @@
+package com.netflix.evcache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import com.github.luben.zstd.ZstdDictTrainer;
+
+import net.spy.memcached.CachedData;
+
+/**
+ * Trains a zstd dictionary for {@link EVCacheZstdDictionaries} from samples
+ * of the values of an app. The samples are the values as they are stored
+ * before compression, so objects are encoded using {@link EVCacheTranscoder}
+ * without compressing them.
+ *
+ * It can also be run offline on a directory with one sample value per file:
+ *
+ * <pre>
+ * java com.netflix.evcache.EVCacheZstdDictionaryTrainer &lt;samples dir&gt; &lt;dictionary file&gt; [dictionary size]
+ * </pre>
+ *
+ * The dictionary file must be named <code>&lt;version&gt;.dict</code>, with a
+ * version that is higher than the versions in use, and copied to the
+ * dictionary directory of the app.
+ */
+public class EVCacheZstdDictionaryTrainer {
+
+    private static final int COMPRESSED = 2;
+
+    private final ZstdDictTrainer trainer;
+    private final EVCacheTranscoder transcoder = new EVCacheTranscoder(Integer.MAX_VALUE, Integer.MAX_VALUE, EVCacheCompression.GZIP);
+
+    /**
+     * @param maxSampleBytes the total size of the samples that are kept
+     * @param dictionarySize the size of the dictionary, 16KB to 110KB works well
+     */
+    public EVCacheZstdDictionaryTrainer(int maxSampleBytes, int dictionarySize) {
+        this.trainer = new ZstdDictTrainer(maxSampleBytes, dictionarySize);
+    }
+
+    /**
+     * Adds the encoded value as a sample. Returns false if the value was not
+     * added because it is compressed or the samples are full.
+     */
+    public boolean addSample(Object value) {
+        final CachedData cd = transcoder.encode(value);
+        if ((cd.getFlags() & COMPRESSED) != 0) return false;
+        return addSample(cd.getData());
+    }
+
+    public boolean addSample(byte[] data) {
+        return trainer.addSample(data);
+    }
+
+    public byte[] train() {
+        return trainer.trainSamples();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage : EVCacheZstdDictionaryTrainer <samples dir> <dictionary file> [dictionary size]");
+            System.exit(1);
+        }
+        final File[] files = new File(args[0]).listFiles();
+        if (files == null) throw new IOException("Could not read the samples in " + args[0]);
+        final int dictionarySize = (args.length > 2) ? Integer.parseInt(args[2]) : 64 * 1024;
+
+        long total = 0;
+        for (File file : files) {
+            if (file.isFile()) total += file.length();
+        }
+        final EVCacheZstdDictionaryTrainer trainer = new EVCacheZstdDictionaryTrainer((int) Math.min(total, Integer.MAX_VALUE), dictionarySize);
+        int samples = 0;
+        for (File file : files) {
+            if (file.isFile() && trainer.addSample(Files.readAllBytes(file.toPath()))) samples++;
+        }
+        final byte[] dictionary = trainer.train();
+        Files.write(new File(args[1]).toPath(), dictionary);
+        System.out.println("Trained a dictionary of " + dictionary.length + " bytes from " + samples + " samples in to " + args[1]);
+    }
+}
@@ -10,7 +10,9 @@ import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 
 import com.netflix.config.ChainedDynamicProperty;
+import com.netflix.evcache.EVCacheCompression;
 import com.netflix.evcache.EVCacheTranscoder;
+import com.netflix.evcache.EVCacheZstdDictionaries;
 import com.netflix.evcache.pool.EVCacheClientPoolManager;
 import com.netflix.evcache.pool.EVCacheKetamaNodeLocatorConfiguration;
 import com.netflix.evcache.pool.EVCacheNodeLocator;
@@ -102,7 +104,8 @@ public class BaseConnectionFactory extends BinaryConnectionFactory {
     }
 
     public Transcoder<Object> getDefaultTranscoder() {
-        return new EVCacheTranscoder();
+        final String codec = EVCacheConfig.getInstance().getChainedStringProperty(appName + ".compression.codec", "default.evcache.compression.codec", "GZIP").get();
+        return new EVCacheTranscoder(appName, EVCacheCompression.fromName(codec), EVCacheZstdDictionaries.getInstance(appName));
     }
 
     public FailureMode getFailureMode() {
@@ -141,6 +141,18 @@ public class EVCacheBulkGetFuture<T> extends BulkGetFuture<T> {
         return m;
     }
 
+    /**
+     * Returns true if all the operations completed without an error, in which
+     * case a key missing from the result of getSome is absent on the servers.
+     */
+    public boolean isComplete() {
+        if (latch.getCount() > 0) return false;
+        for (Operation op : ops) {
+            if (op.isCancelled() || op.hasErrored() || op.isTimedOut()) return false;
+        }
+        return true;
+    }
+
     public Single<Map<String, T>> observe() {
         return Single.create(subscriber ->
             addListener(future -> {
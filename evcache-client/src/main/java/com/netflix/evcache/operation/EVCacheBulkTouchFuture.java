@@ -0,0 +1,94 @@
+package com.netflix.evcache.operation;
+
+import java.util.Collection;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.spy.memcached.MemcachedConnection;
+import net.spy.memcached.internal.CheckedOperationTimeoutException;
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.ops.Operation;
+import net.spy.memcached.ops.OperationState;
+
+/**
+ * Future for a touch of many keys that is sent as one operation per node.
+ * Unlike {@link OperationFuture}, which only knows about the last operation
+ * it was given, the timeouts, errors and cancellation of all the operations
+ * are accounted for.
+ *
+ * Not intended for general use.
+ */
+public class EVCacheBulkTouchFuture extends OperationFuture<Boolean> {
+
+    private final Collection<Operation> ops = new CopyOnWriteArrayList<Operation>();
+    private final CountDownLatch latch;
+    private final AtomicReference<Boolean> objRef;
+
+    public EVCacheBulkTouchFuture(String k, CountDownLatch l, AtomicReference<Boolean> oref, long opTimeout, ExecutorService service) {
+        super(k, l, oref, opTimeout, service);
+        this.latch = l;
+        this.objRef = oref;
+    }
+
+    @Override
+    public void setOperation(Operation op) {
+        ops.add(op);
+        super.setOperation(op);
+    }
+
+    public Collection<Operation> getOperations() {
+        return ops;
+    }
+
+    @Override
+    public Boolean get(long duration, TimeUnit units) throws InterruptedException, TimeoutException, ExecutionException {
+        if (!latch.await(duration, units)) {
+            for (Operation op : ops) {
+                if (op.getState() != OperationState.COMPLETE) {
+                    MemcachedConnection.opTimedOut(op);
+                    op.timeOut();
+                } else {
+                    MemcachedConnection.opSucceeded(op);
+                }
+            }
+            throw new CheckedOperationTimeoutException("Timed out waiting for bulk touch", ops);
+        }
+        for (Operation op : ops) {
+            MemcachedConnection.opSucceeded(op);
+            if (op.hasErrored()) throw new ExecutionException(op.getException());
+            if (op.isCancelled()) throw new ExecutionException(new CancellationException("Cancelled"));
+            if (op.isTimedOut()) throw new ExecutionException(new CheckedOperationTimeoutException("Operation timed out.", op));
+        }
+        return objRef.get();
+    }
+
+    @Override
+    public boolean cancel(boolean ign) {
+        boolean rv = false;
+        for (Operation op : ops) {
+            op.cancel();
+            rv |= op.getState() == OperationState.WRITE_QUEUED;
+        }
+        notifyListeners();
+        return rv;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        for (Operation op : ops) {
+            if (op.isCancelled()) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return latch.getCount() == 0 || isCancelled();
+    }
+}
@@ -0,0 +1,231 @@
+package com.netflix.evcache.operation;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.netflix.config.ChainedDynamicProperty;
+import com.netflix.evcache.metrics.EVCacheMetricsFactory;
+import com.netflix.evcache.util.EVCacheConfig;
+import com.netflix.servo.DefaultMonitorRegistry;
+import com.netflix.servo.annotations.DataSourceType;
+import com.netflix.servo.monitor.Monitor;
+import com.netflix.servo.monitor.MonitorConfig;
+import com.netflix.servo.monitor.Timer;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.TranscodeService;
+import net.spy.memcached.transcoders.Transcoder;
+
+/**
+ * Decides where the values read by the gets of an app are decoded. The mode is
+ * set using <code>&lt;app&gt;.decode.mode</code> or
+ * <code>default.evcache.decode.mode</code>:
+ *
+ * <ul>
+ * <li>DEFAULT : spymemcached's TranscodeService decides using
+ * {@link Transcoder#asyncDecode(CachedData)}. A single get decodes on the
+ * memcached IO thread unless the transcoder asks for an async decode.</li>
+ * <li>CALLER : values are decoded on the thread that gets the result of the
+ * future, e.g. in {@link EVCacheOperationFuture#get(long, TimeUnit, boolean, boolean)}.</li>
+ * <li>POOL : values of <code>decode.pool.min.size</code> bytes or more are
+ * decoded on a bounded pool of the app and the smaller ones on the caller
+ * thread. If the pool is busy the caller decodes the value itself.</li>
+ * </ul>
+ *
+ * Transcoders that only pass the data through, see {@link PassThrough}, are
+ * always left to the TranscodeService. The size of the pool and of its queue
+ * can be changed at runtime. The time spent decoding is exported as DecodeTime
+ * and the number of values waiting for the pool as DECODE_QUEUE_SIZE.
+ */
+public class EVCacheDecodePolicy {
+
+    private static final Logger log = LoggerFactory.getLogger(EVCacheDecodePolicy.class);
+    private static final ConcurrentHashMap<String, EVCacheDecodePolicy> INSTANCES = new ConcurrentHashMap<String, EVCacheDecodePolicy>();
+
+    public enum Mode {
+        DEFAULT, CALLER, POOL
+    }
+
+    /**
+     * Marks the transcoders that do not decode the data but return it as is or
+     * wrapped to be decoded later, so that there is nothing to move off the
+     * thread that read it.
+     */
+    public interface PassThrough {
+    }
+
+    private final String appName;
+    private final ChainedDynamicProperty.StringProperty mode;
+    private final ChainedDynamicProperty.IntProperty poolMinSize;
+    private final ChainedDynamicProperty.IntProperty poolSize;
+    private final ChainedDynamicProperty.IntProperty poolQueueSize;
+    private final Timer decodeTime;
+    private volatile ThreadPoolExecutor pool;
+    private int poolQueueCapacity;
+
+    public static EVCacheDecodePolicy getInstance(String appName) {
+        EVCacheDecodePolicy instance = INSTANCES.get(appName);
+        if (instance == null) {
+            instance = new EVCacheDecodePolicy(appName);
+            final EVCacheDecodePolicy existing = INSTANCES.putIfAbsent(appName, instance);
+            if (existing != null) instance = existing;
+        }
+        return instance;
+    }
+
+    private EVCacheDecodePolicy(String appName) {
+        this.appName = appName;
+        final EVCacheConfig config = EVCacheConfig.getInstance();
+        this.mode = config.getChainedStringProperty(appName + ".decode.mode", "default.evcache.decode.mode", Mode.DEFAULT.name());
+        this.poolMinSize = config.getChainedIntProperty(appName + ".decode.pool.min.size", "default.evcache.decode.pool.min.size", 16384);
+        this.poolSize = config.getChainedIntProperty(appName + ".decode.pool.size", "default.evcache.decode.pool.size", Runtime.getRuntime().availableProcessors());
+        this.poolQueueSize = config.getChainedIntProperty(appName + ".decode.pool.queue.size", "default.evcache.decode.pool.queue.size", 1000);
+        final Runnable resize = new Runnable() {
+            public void run() {
+                resizePool();
+            }
+        };
+        this.poolSize.addCallback(resize);
+        this.poolQueueSize.addCallback(resize);
+        this.decodeTime = EVCacheMetricsFactory.getStatsTimer(appName + "-DecodeTime");
+    }
+
+    public Mode getMode() {
+        final String name = mode.get();
+        for (Mode m : Mode.values()) {
+            if (m.name().equalsIgnoreCase(name)) return m;
+        }
+        return Mode.DEFAULT;
+    }
+
+    /**
+     * Returns the future of the decoded value. Unless the mode is DEFAULT it
+     * is a {@link Task}, which is decoded by the first thread that gets it if
+     * it was not decoded on the pool yet.
+     */
+    public <T> Future<T> decode(TranscodeService tcService, final Transcoder<T> tc, final CachedData cd) {
+        final Mode m = getMode();
+        if (m == Mode.DEFAULT || tc instanceof PassThrough) return tcService.decode(tc, cd);
+
+        final Task<T> task = new Task<T>(new Callable<T>() {
+            @Override
+            public T call() {
+                final long start = System.nanoTime();
+                try {
+                    return tc.decode(cd);
+                } finally {
+                    decodeTime.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                }
+            }
+        });
+        if (m == Mode.POOL && cd.getData() != null && cd.getData().length >= poolMinSize.get()) {
+            try {
+                getPool().execute(task);
+            } catch (RejectedExecutionException e) {
+                EVCacheMetricsFactory.increment(appName + "-DECODE_REJECTED");
+                if (log.isDebugEnabled()) log.debug("The decode pool of app " + appName + " is full, the value will be decoded by the caller");
+            }
+        }
+        return task;
+    }
+
+    ThreadPoolExecutor getPool() {
+        ThreadPoolExecutor executor = pool;
+        if (executor != null) return executor;
+        synchronized (this) {
+            if (pool == null) {
+                pool = newPool();
+                setupMonitoring();
+            }
+            return pool;
+        }
+    }
+
+    private ThreadPoolExecutor newPool() {
+        final int size = Math.max(1, poolSize.get());
+        poolQueueCapacity = Math.max(1, poolQueueSize.get());
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(size, size, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(poolQueueCapacity),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("EVCacheDecoder-" + appName + "-%d").build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /*
+     * The threads of the pool are resized in place. The capacity of the queue
+     * can not be changed, so a new pool replaces the old one, which still
+     * decodes the values it has queued.
+     */
+    private synchronized void resizePool() {
+        final ThreadPoolExecutor executor = pool;
+        if (executor == null) return;
+        if (poolQueueCapacity != Math.max(1, poolQueueSize.get())) {
+            pool = newPool();
+            executor.shutdown();
+            return;
+        }
+        final int size = Math.max(1, poolSize.get());
+        if (size > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(size);
+            executor.setCorePoolSize(size);
+        } else {
+            executor.setCorePoolSize(size);
+            executor.setMaximumPoolSize(size);
+        }
+    }
+
+    private void setupMonitoring() {
+        DefaultMonitorRegistry.getInstance().register(new Monitor<Number>() {
+            private final MonitorConfig config = MonitorConfig.builder(appName + "-DECODE_QUEUE_SIZE").withTag(DataSourceType.GAUGE).build();
+
+            @Override
+            public Number getValue() {
+                return Integer.valueOf(pool.getQueue().size());
+            }
+
+            @Override
+            public Number getValue(int pollerIndex) {
+                return getValue();
+            }
+
+            @Override
+            public MonitorConfig getConfig() {
+                return config;
+            }
+        });
+    }
+
+    /**
+     * A decode that is run by the thread getting its result if it has not
+     * been started yet, like the tasks of TranscodeService.
+     */
+    public static class Task<T> extends FutureTask<T> {
+
+        Task(Callable<T> callable) {
+            super(callable);
+        }
+
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            run();
+            return super.get();
+        }
+
+        @Override
+        public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            run();
+            return super.get(timeout, unit);
+        }
+    }
+}
@@ -8,6 +8,7 @@ import java.util.concurrent.CancellationException;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicReference;
@@ -26,6 +27,7 @@ import net.spy.memcached.MemcachedConnection;
 import net.spy.memcached.internal.CheckedOperationTimeoutException;
 import net.spy.memcached.internal.OperationFuture;
 import net.spy.memcached.ops.Operation;
+import net.spy.memcached.ops.OperationStatus;
 import rx.Scheduler;
 import rx.Single;
 
@@ -57,6 +59,7 @@ public class EVCacheOperationFuture<T> extends OperationFuture<T> {
     private final ServerGroup serverGroup;
     private final String key;
     private final String metricName;
+    private volatile Future<T> valueFuture;
 
     public EVCacheOperationFuture(String k, CountDownLatch l, AtomicReference<T> oref, long opTimeout, ExecutorService service, String appName, ServerGroup serverGroup) {
         this(k, l, oref, opTimeout, service, appName, serverGroup, null);
@@ -97,6 +100,36 @@ public class EVCacheOperationFuture<T> extends OperationFuture<T> {
         return serverGroup;
     }
 
+    /**
+     * Sets the result of the operation to a value that is decoded when it is
+     * read from this future, see {@link EVCacheDecodePolicy}, instead of on
+     * the thread that completes the operation.
+     */
+    public void setValueFuture(Future<T> value, OperationStatus status) {
+        this.valueFuture = value;
+        super.set(null, status);
+    }
+
+    private T getValue() {
+        final Future<T> value = valueFuture;
+        if (value == null) return objRef.get();
+        try {
+            return value.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    @Override
+    public T get(long duration, TimeUnit units) throws InterruptedException, TimeoutException, ExecutionException {
+        final T value = super.get(duration, units);
+        return (valueFuture == null) ? value : getValue();
+    }
+
     public EVCacheOperationFuture<T> addListener(EVCacheGetOperationListener<T> listener) {
         super.addToListeners(listener);
         return this;
@@ -210,7 +243,60 @@ public class EVCacheOperationFuture<T> extends OperationFuture<T> {
             }
         }
         operationDuration.stop();
-        return objRef.get();
+        return getValue();
+    }
+
+    /**
+     * Waits for the result of an operation that is driven by another caller,
+     * e.g. a get that other gets were coalesced with. Unlike
+     * {@link #get(long, TimeUnit, boolean, boolean)} a wait that times out
+     * neither times out the operation nor counts towards the continuous
+     * timeouts of the connection, which is left to the caller that owns the
+     * operation.
+     */
+    public T await(long duration, TimeUnit units, boolean throwException) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!latch.await(duration, units)) {
+            if (throwException) throw new CheckedOperationTimeoutException("Timed out waiting for operation", op);
+            return null;
+        }
+        return getCompletedValue(throwException);
+    }
+
+    /**
+     * The reactive version of {@link #await(long, TimeUnit, boolean)}.
+     */
+    public Single<T> await(long duration, TimeUnit units, boolean throwException, Scheduler scheduler) {
+        return Single.<T> create(subscriber ->
+            addListener((EVCacheGetOperationListener<T>) future -> {
+                try {
+                    subscriber.onSuccess(getCompletedValue(throwException));
+                } catch (Throwable e) {
+                    subscriber.onError(e);
+                }
+            })
+        ).timeout(duration, units, Single.create(subscriber -> {
+            if (throwException) {
+                subscriber.onError(new CheckedOperationTimeoutException("Timed out waiting for operation", op));
+            } else {
+                subscriber.onSuccess(null);
+            }
+        }), scheduler);
+    }
+
+    private T getCompletedValue(boolean throwException) throws ExecutionException {
+        if (isCancelled()) {
+            if (throwException) throw new ExecutionException(new CancellationException("Cancelled"));
+            return null;
+        }
+        if (op != null && op.hasErrored()) {
+            if (throwException) throw new ExecutionException(op.getException());
+            return null;
+        }
+        if (op != null && op.isTimedOut()) {
+            if (throwException) throw new ExecutionException(new CheckedOperationTimeoutException("Operation timed out.", op));
+            return null;
+        }
+        return getValue();
     }
 
     public Single<T> observe() {
@@ -238,7 +324,7 @@ public class EVCacheOperationFuture<T> extends OperationFuture<T> {
                 if (isCancelled()) {
                     if (hasZF) EVCacheMetricsFactory.increment(appName + "-Cancelled");
                 }
-                subscriber.onSuccess(objRef.get());
+                subscriber.onSuccess(getValue());
             }
         }), scheduler).doAfterTerminate(() ->
             operationDuration.stop()
@@ -0,0 +1,259 @@
+package com.netflix.evcache.pool;
+
+import java.lang.reflect.Constructor;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * The algorithms that can be used for the checksums of chunked values. The
+ * algorithm is recorded in the binary chunk metadata so the readers verify
+ * the value with the algorithm it was written with. It is selected using
+ * <code>chunk.checksum.algorithm</code>.
+ *
+ * CRC32C uses java.util.zip.CRC32C, which is intrinsified by the JVM, when
+ * running on Java 9 or later and a table based implementation otherwise.
+ */
+public enum ChunkChecksum {
+
+    CRC32(0) {
+        @Override
+        public Checksum newChecksum() {
+            return new CRC32();
+        }
+    },
+
+    CRC32C(1) {
+        @Override
+        public Checksum newChecksum() {
+            if (JDK_CRC32C != null) {
+                try {
+                    return JDK_CRC32C.newInstance();
+                } catch (Exception e) {
+                    // fall through to the table based implementation
+                }
+            }
+            return new Crc32c();
+        }
+    },
+
+    XXHASH64(2) {
+        @Override
+        public Checksum newChecksum() {
+            return new XxHash64();
+        }
+    };
+
+    private static final Constructor<? extends Checksum> JDK_CRC32C = getJdkCrc32c();
+
+    private final int id;
+
+    private ChunkChecksum(int id) {
+        this.id = id;
+    }
+
+    /**
+     * The id of the algorithm stored in the chunk metadata.
+     */
+    public int getId() {
+        return id;
+    }
+
+    public abstract Checksum newChecksum();
+
+    /**
+     * Returns the algorithm with the given id or null if it is not known.
+     */
+    public static ChunkChecksum fromId(int id) {
+        for (ChunkChecksum checksum : values()) {
+            if (checksum.id == id) return checksum;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the algorithm with the given name or CRC32 if it is not known.
+     */
+    public static ChunkChecksum fromName(String name) {
+        if (name != null) {
+            for (ChunkChecksum checksum : values()) {
+                if (checksum.name().equalsIgnoreCase(name)) return checksum;
+            }
+        }
+        return CRC32;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Constructor<? extends Checksum> getJdkCrc32c() {
+        try {
+            return (Constructor<? extends Checksum>) Class.forName("java.util.zip.CRC32C").getConstructor();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /*
+     * CRC32C (Castagnoli) using a lookup table.
+     */
+    static class Crc32c implements Checksum {
+        private static final int[] TABLE = new int[256];
+
+        static {
+            for (int i = 0; i < 256; i++) {
+                int crc = i;
+                for (int j = 0; j < 8; j++) {
+                    crc = ((crc & 1) != 0) ? (crc >>> 1) ^ 0x82F63B78 : crc >>> 1;
+                }
+                TABLE[i] = crc;
+            }
+        }
+
+        private int crc = 0xFFFFFFFF;
+
+        @Override
+        public void update(int b) {
+            crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xff];
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len) {
+            int c = crc;
+            for (int i = off; i < off + len; i++) {
+                c = (c >>> 8) ^ TABLE[(c ^ b[i]) & 0xff];
+            }
+            crc = c;
+        }
+
+        @Override
+        public long getValue() {
+            return (~crc) & 0xFFFFFFFFL;
+        }
+
+        @Override
+        public void reset() {
+            crc = 0xFFFFFFFF;
+        }
+    }
+
+    /*
+     * Streaming xxHash64 with a seed of 0.
+     */
+    static class XxHash64 implements Checksum {
+        private static final long P1 = 0x9E3779B185EBCA87L;
+        private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+        private static final long P3 = 0x165667B19E3779F9L;
+        private static final long P4 = 0x85EBCA77C2B2AE63L;
+        private static final long P5 = 0x27D4EB2F165667C5L;
+
+        private final byte[] buffer = new byte[32];
+        private int bufferLength;
+        private long totalLength;
+        private long v1, v2, v3, v4;
+
+        XxHash64() {
+            reset();
+        }
+
+        @Override
+        public void update(int b) {
+            update(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len) {
+            totalLength += len;
+            if (bufferLength + len < 32) {
+                System.arraycopy(b, off, buffer, bufferLength, len);
+                bufferLength += len;
+                return;
+            }
+
+            final int end = off + len;
+            if (bufferLength > 0) {
+                final int fill = 32 - bufferLength;
+                System.arraycopy(b, off, buffer, bufferLength, fill);
+                stripe(buffer, 0);
+                off += fill;
+                bufferLength = 0;
+            }
+            for (; off + 32 <= end; off += 32) {
+                stripe(b, off);
+            }
+            bufferLength = end - off;
+            System.arraycopy(b, off, buffer, 0, bufferLength);
+        }
+
+        @Override
+        public long getValue() {
+            long h;
+            if (totalLength >= 32) {
+                h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+                h = merge(h, v1);
+                h = merge(h, v2);
+                h = merge(h, v3);
+                h = merge(h, v4);
+            } else {
+                h = P5;
+            }
+            h += totalLength;
+
+            int i = 0;
+            for (; i + 8 <= bufferLength; i += 8) {
+                h ^= round(0, getLong(buffer, i));
+                h = Long.rotateLeft(h, 27) * P1 + P4;
+            }
+            if (i + 4 <= bufferLength) {
+                h ^= (getInt(buffer, i) & 0xFFFFFFFFL) * P1;
+                h = Long.rotateLeft(h, 23) * P2 + P3;
+                i += 4;
+            }
+            for (; i < bufferLength; i++) {
+                h ^= (buffer[i] & 0xff) * P5;
+                h = Long.rotateLeft(h, 11) * P1;
+            }
+
+            h ^= h >>> 33;
+            h *= P2;
+            h ^= h >>> 29;
+            h *= P3;
+            h ^= h >>> 32;
+            return h;
+        }
+
+        @Override
+        public void reset() {
+            v1 = P1 + P2;
+            v2 = P2;
+            v3 = 0;
+            v4 = -P1;
+            totalLength = 0;
+            bufferLength = 0;
+        }
+
+        private void stripe(byte[] b, int off) {
+            v1 = round(v1, getLong(b, off));
+            v2 = round(v2, getLong(b, off + 8));
+            v3 = round(v3, getLong(b, off + 16));
+            v4 = round(v4, getLong(b, off + 24));
+        }
+
+        private static long round(long acc, long input) {
+            acc += input * P2;
+            acc = Long.rotateLeft(acc, 31);
+            return acc * P1;
+        }
+
+        private static long merge(long acc, long val) {
+            acc ^= round(0, val);
+            return acc * P1 + P4;
+        }
+
+        private static long getLong(byte[] b, int i) {
+            return (b[i] & 0xffL) | (b[i + 1] & 0xffL) << 8 | (b[i + 2] & 0xffL) << 16 | (b[i + 3] & 0xffL) << 24
+                    | (b[i + 4] & 0xffL) << 32 | (b[i + 5] & 0xffL) << 40 | (b[i + 6] & 0xffL) << 48 | (b[i + 7] & 0xffL) << 56;
+        }
+
+        private static int getInt(byte[] b, int i) {
+            return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | (b[i + 3] & 0xff) << 24;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.netflix.evcache.pool;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * Reads the chunks of a value as one stream without copying them in to a
+ * single array. The checksum of the value is updated as each chunk is added
+ * so that it can be verified before the value is decoded.
+ */
+class ChunkInputStream extends InputStream {
+
+    private final List<byte[]> chunks = new ArrayList<byte[]>();
+    private final List<Integer> lengths = new ArrayList<Integer>();
+    private final Checksum checksum;
+    private int length = 0;
+
+    private int chunk = 0;
+    private int offset = 0;
+    private int position = 0;
+    private int markChunk = 0;
+    private int markOffset = 0;
+    private int markPosition = 0;
+
+    ChunkInputStream() {
+        this(new CRC32());
+    }
+
+    /**
+     * The checksum is not computed if it is null, which is used when each
+     * chunk was already verified.
+     */
+    ChunkInputStream(Checksum checksum) {
+        this.checksum = checksum;
+    }
+
+    /**
+     * Adds the first <code>len</code> bytes of the given chunk to the end of
+     * the stream.
+     */
+    void add(byte[] data, int len) {
+        if (len < 0 || len > data.length) throw new IllegalArgumentException("Invalid length " + len + " for chunk of size " + data.length);
+        if (len == 0) return;
+        chunks.add(data);
+        lengths.add(Integer.valueOf(len));
+        if (checksum != null) checksum.update(data, 0, len);
+        length += len;
+    }
+
+    int getLength() {
+        return length;
+    }
+
+    long getChecksum() {
+        return (checksum == null) ? 0 : checksum.getValue();
+    }
+
+    /**
+     * Copies the remaining bytes in to a single array. Used only when the
+     * transcoder cannot decode from a stream.
+     */
+    byte[] toByteArray() {
+        final byte[] data = new byte[length - position];
+        int index = 0;
+        while (chunk < chunks.size()) {
+            final int len = lengths.get(chunk).intValue() - offset;
+            System.arraycopy(chunks.get(chunk), offset, data, index, len);
+            index += len;
+            chunk++;
+            offset = 0;
+        }
+        position = length;
+        return data;
+    }
+
+    @Override
+    public int read() {
+        if (!advance()) return -1;
+        position++;
+        return chunks.get(chunk)[offset++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) return 0;
+        int read = 0;
+        while (read < len && advance()) {
+            final int count = Math.min(len - read, lengths.get(chunk).intValue() - offset);
+            System.arraycopy(chunks.get(chunk), offset, b, off + read, count);
+            offset += count;
+            read += count;
+        }
+        position += read;
+        return (read == 0) ? -1 : read;
+    }
+
+    @Override
+    public long skip(long n) {
+        long skipped = 0;
+        while (skipped < n && advance()) {
+            final int count = (int) Math.min(n - skipped, lengths.get(chunk).intValue() - offset);
+            offset += count;
+            skipped += count;
+        }
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return length - position;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void mark(int readlimit) {
+        markChunk = chunk;
+        markOffset = offset;
+        markPosition = position;
+    }
+
+    @Override
+    public void reset() {
+        chunk = markChunk;
+        offset = markOffset;
+        position = markPosition;
+    }
+
+    /*
+     * Moves to the next chunk if the current one has been read. Returns false
+     * at the end of the stream.
+     */
+    private boolean advance() {
+        while (chunk < chunks.size() && offset >= lengths.get(chunk).intValue()) {
+            chunk++;
+            offset = 0;
+        }
+        return chunk < chunks.size();
+    }
+}
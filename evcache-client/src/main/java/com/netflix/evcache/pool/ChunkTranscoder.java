@@ -1,5 +1,7 @@
 package com.netflix.evcache.pool;
 
+import com.netflix.evcache.operation.EVCacheDecodePolicy;
+
 import net.spy.memcached.CachedData;
 import net.spy.memcached.transcoders.BaseSerializingTranscoder;
 import net.spy.memcached.transcoders.Transcoder;
@@ -10,7 +12,7 @@ import net.spy.memcached.transcoders.Transcoder;
  * @author smadappa
  *
  */
-class ChunkTranscoder extends BaseSerializingTranscoder implements Transcoder<CachedData> {
+class ChunkTranscoder extends BaseSerializingTranscoder implements Transcoder<CachedData>, EVCacheDecodePolicy.PassThrough {
 
 	public ChunkTranscoder() {
 		super(Integer.MAX_VALUE);
@@ -3,6 +3,7 @@ package com.netflix.evcache.pool;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -14,21 +15,25 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.zip.CRC32;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.Checksum;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.netflix.config.ChainedDynamicProperty;
 import com.netflix.config.DynamicIntProperty;
-import com.netflix.discovery.shared.Pair;
 import com.netflix.evcache.EVCacheException;
 import com.netflix.evcache.EVCacheLatch;
 import com.netflix.evcache.EVCacheReadQueueException;
+import com.netflix.evcache.EVCacheStreamingTranscoder;
 import com.netflix.evcache.metrics.EVCacheMetricsFactory;
+import com.netflix.evcache.operation.EVCacheBulkGetFuture;
 import com.netflix.evcache.operation.EVCacheFutures;
 import com.netflix.evcache.operation.EVCacheLatchImpl;
+import com.netflix.evcache.operation.EVCacheOperationFuture;
 import com.netflix.evcache.pool.observer.EVCacheConnectionObserver;
 import com.netflix.evcache.util.EVCacheConfig;
 import com.netflix.servo.monitor.Counter;
@@ -47,6 +52,7 @@ import net.spy.memcached.internal.OperationFuture;
 import net.spy.memcached.protocol.binary.EVCacheNodeImpl;
 import net.spy.memcached.transcoders.SerializingTranscoder;
 import net.spy.memcached.transcoders.Transcoder;
+import rx.Observable;
 import rx.Scheduler;
 import rx.Single;
 
@@ -79,10 +85,29 @@ public class EVCacheClient {
     private final DynamicIntProperty operationTimeout;
     private final DynamicIntProperty maxReadQueueSize;
     private final ChainedDynamicProperty.BooleanProperty enableChunking;
+    private final EVCacheHotKeyTracker hotKeyTracker;
     private final ChainedDynamicProperty.IntProperty chunkSize;
+    private final ChainedDynamicProperty.BooleanProperty binaryChunkMetadata;
+    private final ChainedDynamicProperty.BooleanProperty chunkChecksums;
+    private final ChainedDynamicProperty.StringProperty chunkChecksumAlgorithm;
+    private final ChainedDynamicProperty.BooleanProperty predictChunks;
+    private final ChainedDynamicProperty.IntProperty predictedChunks;
+    private final ChainedDynamicProperty.BooleanProperty adaptiveChunking;
+    private final ChainedDynamicProperty.IntProperty chunkThreshold;
+    private final ChainedDynamicProperty.IntProperty chunkMaxWastePercent;
+    private final ChainedDynamicProperty.IntProperty slabRefreshInterval;
+    private final EVCacheSlabClasses slabClasses;
+    private final Cache<String, Integer> chunkHints;
     private final ChunkTranscoder chunkingTranscoder;
     private final SerializingTranscoder decodingTranscoder;
     private static final int SPECIAL_BYTEARRAY = (8 << 8);
+    // version (1) + chunks (4) + chunk size (4) + last chunk (4) + flags (4) + checksum (8)
+    private static final byte CHUNK_METADATA_VERSION = 1;
+    private static final int CHUNK_METADATA_LENGTH = 25;
+    // followed by the checksum (4) of each data chunk
+    private static final byte CHUNK_METADATA_VERSION_WITH_CHUNK_CHECKSUMS = 2;
+    // version (1) + checksum algorithm (1) followed by the same fields, the checksums of the chunks are optional
+    private static final byte CHUNK_METADATA_VERSION_WITH_ALGORITHM = 3;
     private final EVCacheClientPool pool;
     private Counter addCounter = null;
 
@@ -107,8 +132,20 @@ public class EVCacheClient {
         this.connectionFactory = pool.getEVCacheClientPoolManager().getConnectionFactoryProvider().getConnectionFactory(appName, id, serverGroup, pool.getEVCacheClientPoolManager());
         this.enableChunking = EVCacheConfig.getInstance().getChainedBooleanProperty(this.serverGroup.getName()+ ".chunk.data", appName + ".chunk.data", Boolean.FALSE);
         this.chunkSize = EVCacheConfig.getInstance().getChainedIntProperty(this.serverGroup.getName() + ".chunk.size", appName + ".chunk.size", 1180);
+        this.binaryChunkMetadata = EVCacheConfig.getInstance().getChainedBooleanProperty(this.serverGroup.getName() + ".chunk.metadata.binary", appName + ".chunk.metadata.binary", Boolean.FALSE);
+        this.chunkChecksums = EVCacheConfig.getInstance().getChainedBooleanProperty(this.serverGroup.getName() + ".chunk.checksum.per.chunk", appName + ".chunk.checksum.per.chunk", Boolean.FALSE);
+        this.chunkChecksumAlgorithm = EVCacheConfig.getInstance().getChainedStringProperty(this.serverGroup.getName() + ".chunk.checksum.algorithm", appName + ".chunk.checksum.algorithm", "CRC32");
+        this.predictChunks = EVCacheConfig.getInstance().getChainedBooleanProperty(this.serverGroup.getName() + ".chunk.read.predict", appName + ".chunk.read.predict", Boolean.FALSE);
+        this.predictedChunks = EVCacheConfig.getInstance().getChainedIntProperty(this.serverGroup.getName() + ".chunk.read.predict.chunks", appName + ".chunk.read.predict.chunks", 0);
+        this.chunkHints = CacheBuilder.newBuilder().maximumSize(10000).build();
+        this.adaptiveChunking = EVCacheConfig.getInstance().getChainedBooleanProperty(this.serverGroup.getName() + ".chunk.adaptive", appName + ".chunk.adaptive", Boolean.FALSE);
+        this.chunkThreshold = EVCacheConfig.getInstance().getChainedIntProperty(this.serverGroup.getName() + ".chunk.adaptive.threshold", appName + ".chunk.adaptive.threshold", 16384);
+        this.chunkMaxWastePercent = EVCacheConfig.getInstance().getChainedIntProperty(this.serverGroup.getName() + ".chunk.adaptive.max.waste.percent", appName + ".chunk.adaptive.max.waste.percent", 10);
+        this.slabRefreshInterval = EVCacheConfig.getInstance().getChainedIntProperty(this.serverGroup.getName() + ".chunk.adaptive.slabs.refresh.ms", appName + ".chunk.adaptive.slabs.refresh.ms", 300000);
+        this.slabClasses = new EVCacheSlabClasses(appName + "-" + serverGroup.getName());
         this.chunkingTranscoder = new ChunkTranscoder();
         this.maxWriteQueueSize = maxQueueSize;
+        this.hotKeyTracker = new EVCacheHotKeyTracker(appName, serverGroup.getName());
 
         this.evcacheMemcachedClient = new EVCacheMemcachedClient(connectionFactory, memcachedNodesInZone, readTimeout, appName, zone, id, serverGroup, this);
         this.connectionObserver = new EVCacheConnectionObserver(appName, serverGroup, id);
@@ -178,6 +215,13 @@ public class EVCacheClient {
         return true;
     }
 
+    private void recordKeys(Collection<String> canonicalKeys) {
+        if (!hotKeyTracker.isEnabled()) return;
+        for (String key : canonicalKeys) {
+            hotKeyTracker.record(key);
+        }
+    }
+
     private boolean validateNode(String key, boolean _throwException) throws EVCacheException {
         final MemcachedNode node = evcacheMemcachedClient.getEVCacheNode(key);
         // First check if the node is active
@@ -214,14 +258,15 @@ public class EVCacheClient {
         firstKeys.add(key);
         final String firstKey = key + "_00";
         firstKeys.add(firstKey);
+        final boolean predict = addPredictedChunkKeys(key, firstKeys);
         try {
             final Map<String, CachedData> metadataMap = evcacheMemcachedClient.asyncGetBulk(firstKeys, chunkingTranscoder, null, "GetChunkMetadataOperation")
                     .getSome(readTimeout.get(), TimeUnit.MILLISECONDS, false, false);
             if (metadataMap.containsKey(key)) {
+                if (predict) chunkHints.invalidate(key);
                 return new ChunkDetails(null, null, false, metadataMap.get(key));
             } else if (metadataMap.containsKey(firstKey)) {
-                final ChunkInfo ci = getChunkInfo(firstKey, (String) decodingTranscoder.decode(metadataMap.get(
-                        firstKey)));
+                final ChunkInfo ci = getChunkInfo(firstKey, metadataMap.get(firstKey));
                 if (ci == null) return null;
 
                 final List<String> keys = new ArrayList<>();
@@ -229,7 +274,8 @@ public class EVCacheClient {
                     final String prefix = (i < 10) ? "0" : "";
                     keys.add(ci.getKey() + "_" + prefix + i);
                 }
-                return new ChunkDetails(keys, ci, true, null);
+                if (predict) chunkHints.put(key, Integer.valueOf(ci.getChunks()));
+                return new ChunkDetails(keys, ci, true, null, predict ? metadataMap : null);
             } else {
                 return null;
             }
@@ -245,15 +291,16 @@ public class EVCacheClient {
         firstKeys.add(key);
         final String firstKey = key + "_00";
         firstKeys.add(firstKey);
+        final boolean predict = addPredictedChunkKeys(key, firstKeys);
 
         return evcacheMemcachedClient.asyncGetBulk(firstKeys, chunkingTranscoder, null, "GetChunkMetadataOperation")
             .getSome(readTimeout.get(), TimeUnit.MILLISECONDS, false, false, scheduler)
             .map(metadataMap -> {
                 if (metadataMap.containsKey(key)) {
+                    if (predict) chunkHints.invalidate(key);
                     return new ChunkDetails(null, null, false, metadataMap.get(key));
                 } else if (metadataMap.containsKey(firstKey)) {
-                    final ChunkInfo ci = getChunkInfo(firstKey, (String) decodingTranscoder.decode(metadataMap.get(
-                        firstKey)));
+                    final ChunkInfo ci = getChunkInfo(firstKey, metadataMap.get(firstKey));
                     if (ci == null) return null;
 
                     final List<String> keys = new ArrayList<>();
@@ -261,15 +308,53 @@ public class EVCacheClient {
                         final String prefix = (i < 10) ? "0" : "";
                         keys.add(ci.getKey() + "_" + prefix + i);
                     }
-                    return new ChunkDetails(keys, ci, true, null);
+                    if (predict) chunkHints.put(key, Integer.valueOf(ci.getChunks()));
+                    return new ChunkDetails(keys, ci, true, null, predict ? metadataMap : null);
                 } else {
                     return null;
                 }
             });
     }
 
+    /*
+     * If chunk prediction is enabled adds the keys of the chunks the value is
+     * expected to have, based on the last read or write of the key or
+     * chunk.read.predict.chunks, so that they are fetched along with the
+     * metadata.
+     */
+    private boolean addPredictedChunkKeys(String key, List<String> keys) {
+        if (!predictChunks.get()) return false;
+        final Integer hint = chunkHints.getIfPresent(key);
+        final int chunks = (hint != null) ? hint.intValue() : predictedChunks.get() + 1;
+        for (int i = 1; i < chunks && i < 100; i++) {
+            final String prefix = (i < 10) ? "0" : "";
+            keys.add(key + "_" + prefix + i);
+        }
+        return true;
+    }
+
+    /*
+     * Returns the chunks that were fetched along with the metadata and adds
+     * the keys of the chunks that still have to be fetched to missingKeys.
+     */
+    private Map<String, CachedData> getPrefetchedChunks(ChunkDetails<?> cd, List<String> missingKeys) {
+        final Map<String, CachedData> prefetched = cd.getPrefetchedChunks();
+        final Map<String, CachedData> dataMap = new HashMap<>();
+        for (String chunkKey : cd.getChunkKeys()) {
+            final CachedData data = (prefetched == null) ? null : prefetched.get(chunkKey);
+            if (data == null) {
+                missingKeys.add(chunkKey);
+            } else {
+                dataMap.put(chunkKey, data);
+            }
+        }
+        if (prefetched != null) EVCacheMetricsFactory.increment(appName + (missingKeys.isEmpty() ? "-CHUNK_PREDICT_HIT" : "-CHUNK_PREDICT_MISS"));
+        return dataMap;
+    }
+
     private <T> T assembleChunks(String key, boolean touch, int ttl, Transcoder<T> tc, boolean hasZF) {
         final Stopwatch operationDuration = EVCacheMetricsFactory.getStatsTimer(appName, serverGroup, "LatencyChunk").start();
+        final long deadline = System.currentTimeMillis() + readTimeout.get();
         try {
             
             final ChunkDetails<T> cd = getChunkDetails(key);
@@ -283,62 +368,20 @@ public class EVCacheClient {
                 final List<String> keys = cd.getChunkKeys();
                 final ChunkInfo ci = cd.getChunkInfo();
 
-                final Map<String, CachedData> dataMap = evcacheMemcachedClient.asyncGetBulk(keys, chunkingTranscoder, null, "GetChunksOperation")
-                        .getSome(readTimeout.get(), TimeUnit.MILLISECONDS, false, false);
+                final List<String> missingKeys = new ArrayList<>();
+                final Map<String, CachedData> dataMap = getPrefetchedChunks(cd, missingKeys);
+                if (!missingKeys.isEmpty()) {
+                    dataMap.putAll(evcacheMemcachedClient.asyncGetBulk(missingKeys, chunkingTranscoder, null, "GetChunksOperation")
+                        .getSome(readTimeout.get(), TimeUnit.MILLISECONDS, false, false));
+                }
 
-                if (dataMap.size() != ci.getChunks() - 1) {
+                if (dataMap.size() != ci.getChunks() - 1 && ci.getChunkChecksums() == null) {
                     EVCacheMetricsFactory.increment(appName + "-INCORRECT_NUM_CHUNKS");
                     return null;
                 }
 
-                final byte[] data = new byte[(ci.getChunks() - 2) * ci.getChunkSize() + (ci.getLastChunk() == 0 ? ci
-                        .getChunkSize() : ci.getLastChunk())];
-                int index = 0;
-                for (int i = 0; i < keys.size(); i++) {
-                    final String _key = keys.get(i);
-                    final CachedData _cd = dataMap.get(_key);
-                    if (log.isDebugEnabled()) log.debug("Chunk Key " + _key + "; Value : " + _cd);
-                    if (_cd == null) continue;
-
-                    final byte[] val = _cd.getData();
-
-                    // If we expect a chunk to be present and it is null then return null immediately.
-                    if (val == null) return null; 
-                    final int len = (i == keys.size() - 1) ? ((ci.getLastChunk() == 0 || ci.getLastChunk() > ci
-                            .getChunkSize()) ? ci.getChunkSize() : ci.getLastChunk())
-                            : val.length;
-                    if (len != ci.getChunkSize() && i != keys.size() - 1) {
-                        EVCacheMetricsFactory.increment(appName + "-INVALID_CHUNK_SIZE");
-                        if (log.isWarnEnabled()) log.warn("CHUNK_SIZE_ERROR : Chunks : " + ci.getChunks() + " ; "
-                                + "length : " + len + "; expectedLength : " + ci.getChunkSize() + " for key : " + _key);
-                    }
-                    if (len > 0) {
-                        try {
-                            System.arraycopy(val, 0, data, index, len);
-                        } catch (Exception e) {
-                            StringBuilder sb = new StringBuilder();
-                            sb.append("ArrayCopyError - Key : " + _key + "; final data Size : " + data.length
-                                    + "; copy array size : " + len + "; val size : " + val.length
-                                    + "; key index : " + i + "; copy from : " + index + "; ChunkInfo : " + ci + "\n");
-                            for (int j = 0; j < keys.size(); j++) {
-                                final String skey = keys.get(j);
-                                final byte[] sval = (byte[]) dataMap.get(skey).getData();
-                                sb.append(skey + "=" + sval.length + "\n");
-                            }
-                            if (log.isWarnEnabled()) log.warn(sb.toString(), e);
-                            throw e;
-                        }
-
-                        index += val.length;
-                        if (touch) evcacheMemcachedClient.touch(_key, ttl);
-                    }
-                }
-
-                final boolean checksumPass = checkCRCChecksum(data, ci, hasZF);
-                if (!checksumPass) return null;
-                final Transcoder<T> transcoder = (tc == null ? (Transcoder<T>) evcacheMemcachedClient.getTranscoder()
-                        : tc);
-                return transcoder.decode(new CachedData(ci.getFlags(), data, Integer.MAX_VALUE));
+                if (!repairChunks(ci, keys, dataMap, deadline)) return null;
+                return decodeChunks(ci, keys, dataMap, tc, hasZF, touch, ttl);
             }
         } catch (Exception e) {
             log.error(e.getMessage(), e);
@@ -350,6 +393,7 @@ public class EVCacheClient {
 
     private <T> Single<T> assembleChunks(String key, boolean touch, int ttl, Transcoder<T> tc, boolean hasZF, Scheduler scheduler) {
         final Stopwatch operationDuration = EVCacheMetricsFactory.getStatsTimer(appName, serverGroup, "LatencyChunk").start();
+        final long deadline = System.currentTimeMillis() + readTimeout.get();
         return getChunkDetails(key, scheduler).flatMap(cd -> {
             if (cd == null) return Single.just(null);
             if (!cd.isChunked()) {
@@ -360,63 +404,23 @@ public class EVCacheClient {
                 final List<String> keys = cd.getChunkKeys();
                 final ChunkInfo ci = cd.getChunkInfo();
 
-                return evcacheMemcachedClient.asyncGetBulk(keys, chunkingTranscoder, null, "GetChunksOperation")
-                    .getSome(readTimeout.get(), TimeUnit.MILLISECONDS, false, false, scheduler)
-                    .map(dataMap -> {
-                        if (dataMap.size() != ci.getChunks() - 1) {
+                final List<String> missingKeys = new ArrayList<>();
+                final Map<String, CachedData> prefetched = getPrefetchedChunks(cd, missingKeys);
+                final Single<Map<String, CachedData>> chunks = missingKeys.isEmpty() ? Single.just(prefetched)
+                    : evcacheMemcachedClient.asyncGetBulk(missingKeys, chunkingTranscoder, null, "GetChunksOperation")
+                        .getSome(readTimeout.get(), TimeUnit.MILLISECONDS, false, false, scheduler)
+                        .map(fetched -> {
+                            prefetched.putAll(fetched);
+                            return prefetched;
+                        });
+                return chunks.flatMap(dataMap -> {
+                        if (dataMap.size() != ci.getChunks() - 1 && ci.getChunkChecksums() == null) {
                             EVCacheMetricsFactory.increment(appName + "-INCORRECT_NUM_CHUNKS");
-                            return null;
+                            return Single.just(null);
                         }
 
-                        final byte[] data = new byte[(ci.getChunks() - 2) * ci.getChunkSize() + (ci.getLastChunk() == 0 ? ci
-                            .getChunkSize() : ci.getLastChunk())];
-                        int index = 0;
-                        for (int i = 0; i < keys.size(); i++) {
-                            final String _key = keys.get(i);
-                            final CachedData _cd = dataMap.get(_key);
-                            if (log.isDebugEnabled()) log.debug("Chunk Key " + _key + "; Value : " + _cd);
-                            if (_cd == null) continue;
-
-                            final byte[] val = _cd.getData();
-
-                            // If we expect a chunk to be present and it is null then return null immediately.
-                            if (val == null) return null;
-                            final int len = (i == keys.size() - 1) ? ((ci.getLastChunk() == 0 || ci.getLastChunk() > ci
-                                .getChunkSize()) ? ci.getChunkSize() : ci.getLastChunk())
-                                : val.length;
-                            if (len != ci.getChunkSize() && i != keys.size() - 1) {
-                                EVCacheMetricsFactory.increment(appName + "-INVALID_CHUNK_SIZE");
-                                if (log.isWarnEnabled()) log.warn("CHUNK_SIZE_ERROR : Chunks : " + ci.getChunks() + " ; "
-                                    + "length : " + len + "; expectedLength : " + ci.getChunkSize() + " for key : " + _key);
-                            }
-                            if (len > 0) {
-                                try {
-                                    System.arraycopy(val, 0, data, index, len);
-                                } catch (Exception e) {
-                                    StringBuilder sb = new StringBuilder();
-                                    sb.append("ArrayCopyError - Key : " + _key + "; final data Size : " + data.length
-                                        + "; copy array size : " + len + "; val size : " + val.length
-                                        + "; key index : " + i + "; copy from : " + index + "; ChunkInfo : " + ci + "\n");
-                                    for (int j = 0; j < keys.size(); j++) {
-                                        final String skey = keys.get(j);
-                                        final byte[] sval = (byte[]) dataMap.get(skey).getData();
-                                        sb.append(skey + "=" + sval.length + "\n");
-                                    }
-                                    if (log.isWarnEnabled()) log.warn(sb.toString(), e);
-                                    throw e;
-                                }
-
-                                System.arraycopy(val, 0, data, index, len);
-                                index += val.length;
-                                if (touch) evcacheMemcachedClient.touch(_key, ttl);
-                            }
-                        }
-
-                        final boolean checksumPass = checkCRCChecksum(data, ci, hasZF);
-                        if (!checksumPass) return null;
-                        final Transcoder<T> transcoder = (tc == null ? (Transcoder<T>) evcacheMemcachedClient.getTranscoder()
-                            : tc);
-                        return transcoder.decode(new CachedData(ci.getFlags(), data, Integer.MAX_VALUE));
+                        return repairChunks(ci, keys, dataMap, deadline, scheduler)
+                            .map(repaired -> repaired.booleanValue() ? decodeChunks(ci, keys, dataMap, tc, hasZF, touch, ttl) : null);
                     });
             }
         }).doAfterTerminate(() ->
@@ -424,12 +428,193 @@ public class EVCacheClient {
         );
     }
 
-    private boolean checkCRCChecksum(byte[] data, final ChunkInfo ci, boolean hasZF) {
-        if (data == null || data.length == 0) return false;
+    /*
+     * Decodes the value from its chunks without copying them in to a single
+     * array when the transcoder can decode from a stream. Returns null if a
+     * chunk has no data or the checksum does not match. Chunks with their
+     * own checksums are expected to have been repaired already.
+     */
+    private <T> T decodeChunks(ChunkInfo ci, List<String> keys, Map<String, CachedData> dataMap, Transcoder<T> tc, boolean hasZF, boolean touch, int ttl) {
+        // The checksum of each chunk is verified instead of the checksum of the value if present
+        final boolean verifyChunks = ci.getChunkChecksums() != null;
+        final ChunkInputStream in = new ChunkInputStream(verifyChunks ? null : ci.getChecksumAlgorithm().newChecksum());
+        for (int i = 0; i < keys.size(); i++) {
+            final String _key = keys.get(i);
+            final CachedData _cd = dataMap.get(_key);
+            if (log.isDebugEnabled()) log.debug("Chunk Key " + _key + "; Value : " + _cd);
+            if (_cd == null) continue;
+
+            final byte[] val = _cd.getData();
+
+            // If we expect a chunk to be present and it is null then return null immediately.
+            if (val == null) return null;
+            final int len = (i == keys.size() - 1) ? ((ci.getLastChunk() == 0 || ci.getLastChunk() > ci
+                    .getChunkSize()) ? ci.getChunkSize() : ci.getLastChunk())
+                    : val.length;
+            if (len != ci.getChunkSize() && i != keys.size() - 1) {
+                EVCacheMetricsFactory.increment(appName + "-INVALID_CHUNK_SIZE");
+                if (log.isWarnEnabled()) log.warn("CHUNK_SIZE_ERROR : Chunks : " + ci.getChunks() + " ; "
+                        + "length : " + len + "; expectedLength : " + ci.getChunkSize() + " for key : " + _key);
+            }
+            if (len > val.length) {
+                EVCacheMetricsFactory.increment(appName + "-INVALID_CHUNK_SIZE");
+                if (log.isWarnEnabled()) log.warn("CHUNK_SIZE_ERROR : Key : " + _key + "; expected length : " + len
+                        + "; val size : " + val.length + "; key index : " + i + "; ChunkInfo : " + ci);
+                return null;
+            }
+            if (len > 0) in.add(val, len);
+        }
+
+        if (!verifyChunks) {
+            final boolean checksumPass = checkCRCChecksum(in, ci, hasZF);
+            if (!checksumPass) return null;
+        } else if (in.getLength() == 0) {
+            return null;
+        }
+        if (touch) touchChunks(ci.getKey() + "_00", keys, ttl, null);
+        final Transcoder<T> transcoder = (tc == null ? (Transcoder<T>) evcacheMemcachedClient.getTranscoder() : tc);
+        if (transcoder instanceof EVCacheStreamingTranscoder) {
+            return ((EVCacheStreamingTranscoder<T>) transcoder).decode(ci.getFlags(), in, in.getLength());
+        }
+        return transcoder.decode(new CachedData(ci.getFlags(), in.toByteArray(), Integer.MAX_VALUE));
+    }
+
+    /*
+     * Touches the metadata and all the chunks of a value with one bulk touch
+     * instead of a touch per chunk.
+     */
+    private OperationFuture<Boolean> touchChunks(String firstKey, List<String> keys, int timeToLive, EVCacheLatch latch) {
+        final List<String> touchKeys = new ArrayList<>(keys.size() + 1);
+        touchKeys.add(firstKey);
+        touchKeys.addAll(keys);
+        return evcacheMemcachedClient.touchBulk(touchKeys, timeToLive, latch);
+    }
+
+    /*
+     * Finds the chunks that are missing or do not match their checksum and
+     * fetches only those from the other server groups, splicing them in to
+     * dataMap. The server groups are tried one after another for whatever is
+     * left of the read timeout. Returns false if any of them could not be
+     * repaired.
+     */
+    private boolean repairChunks(ChunkInfo ci, List<String> keys, Map<String, CachedData> dataMap, long deadline) {
+        if (ci.getChunkChecksums() == null) return true;
+        List<Integer> badChunks = findBadChunks(ci, keys, dataMap);
+        if (badChunks.isEmpty()) return true;
+
+        if (log.isDebugEnabled()) log.debug("Repairing " + badChunks.size() + " of " + keys.size() + " chunks for key : " + ci.getKey());
+        for (EVCacheClient client : pool.getEVCacheClientsForReadExcluding(serverGroup)) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) break;
+            try {
+                final Map<String, CachedData> repairedMap = client.evcacheMemcachedClient.asyncGetBulk(getChunkKeys(keys, badChunks), chunkingTranscoder, null, "GetChunksOperation")
+                        .getSome(remaining, TimeUnit.MILLISECONDS, false, false);
+                badChunks = spliceChunks(ci, keys, dataMap, badChunks, repairedMap);
+            } catch (Exception e) {
+                if (log.isDebugEnabled()) log.debug("Exception repairing chunks of key : " + ci.getKey() + " from " + client.getServerGroupName(), e);
+            }
+            if (badChunks.isEmpty()) {
+                EVCacheMetricsFactory.increment(appName + "-CHUNK_REPAIRED");
+                return true;
+            }
+        }
+        return repairFailed(ci, badChunks);
+    }
+
+    /*
+     * Same as repairChunks(ChunkInfo, List, Map, long) but does not block the
+     * thread while the chunks are fetched from the other server groups.
+     */
+    private Single<Boolean> repairChunks(ChunkInfo ci, List<String> keys, Map<String, CachedData> dataMap, long deadline, Scheduler scheduler) {
+        if (ci.getChunkChecksums() == null) return Single.just(Boolean.TRUE);
+        final List<Integer> badChunks = findBadChunks(ci, keys, dataMap);
+        if (badChunks.isEmpty()) return Single.just(Boolean.TRUE);
+
+        if (log.isDebugEnabled()) log.debug("Repairing " + badChunks.size() + " of " + keys.size() + " chunks for key : " + ci.getKey());
+        return repairChunks(ci, keys, dataMap, badChunks, pool.getEVCacheClientsForReadExcluding(serverGroup), 0, deadline, scheduler);
+    }
+
+    private Single<Boolean> repairChunks(ChunkInfo ci, List<String> keys, Map<String, CachedData> dataMap, List<Integer> badChunks,
+            List<EVCacheClient> clients, int index, long deadline, Scheduler scheduler) {
+        final long remaining = deadline - System.currentTimeMillis();
+        if (index >= clients.size() || remaining <= 0) return Single.just(Boolean.valueOf(repairFailed(ci, badChunks)));
+
+        final EVCacheClient client = clients.get(index);
+        return Single.defer(() -> client.evcacheMemcachedClient.asyncGetBulk(getChunkKeys(keys, badChunks), chunkingTranscoder, null, "GetChunksOperation")
+                .getSome(remaining, TimeUnit.MILLISECONDS, false, false, scheduler))
+            .onErrorReturn(e -> {
+                if (log.isDebugEnabled()) log.debug("Exception repairing chunks of key : " + ci.getKey() + " from " + client.getServerGroupName(), e);
+                return Collections.<String, CachedData> emptyMap();
+            })
+            .flatMap(repairedMap -> {
+                final List<Integer> stillBad = spliceChunks(ci, keys, dataMap, badChunks, repairedMap);
+                if (stillBad.isEmpty()) {
+                    EVCacheMetricsFactory.increment(appName + "-CHUNK_REPAIRED");
+                    return Single.just(Boolean.TRUE);
+                }
+                return repairChunks(ci, keys, dataMap, stillBad, clients, index + 1, deadline, scheduler);
+            });
+    }
+
+    private boolean repairFailed(ChunkInfo ci, List<Integer> badChunks) {
+        EVCacheMetricsFactory.increment(appName + "-CHUNK_REPAIR_FAILED");
+        if (log.isWarnEnabled()) log.warn("CHUNK_REPAIR_FAILED : Chunks : " + ci.getChunks() + "; bad chunks : " + badChunks + " for key : " + ci.getKey());
+        return false;
+    }
+
+    /*
+     * Returns the indexes of the chunks in keys that are missing from dataMap
+     * or do not match their checksum.
+     */
+    static List<Integer> findBadChunks(ChunkInfo ci, List<String> keys, Map<String, CachedData> dataMap) {
+        final List<Integer> badChunks = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            if (!isValidChunk(ci, i, dataMap.get(keys.get(i)))) badChunks.add(Integer.valueOf(i));
+        }
+        return badChunks;
+    }
+
+    /*
+     * Puts the valid chunks of repairedMap in to dataMap and returns the
+     * indexes of the bad chunks that are still not valid.
+     */
+    static List<Integer> spliceChunks(ChunkInfo ci, List<String> keys, Map<String, CachedData> dataMap, List<Integer> badChunks, Map<String, CachedData> repairedMap) {
+        final List<Integer> stillBad = new ArrayList<>();
+        for (Integer i : badChunks) {
+            final String chunkKey = keys.get(i.intValue());
+            final CachedData repaired = repairedMap.get(chunkKey);
+            if (isValidChunk(ci, i.intValue(), repaired)) {
+                dataMap.put(chunkKey, repaired);
+            } else {
+                stillBad.add(i);
+            }
+        }
+        return stillBad;
+    }
+
+    private static List<String> getChunkKeys(List<String> keys, List<Integer> chunks) {
+        final List<String> chunkKeys = new ArrayList<>(chunks.size());
+        for (Integer i : chunks) {
+            chunkKeys.add(keys.get(i.intValue()));
+        }
+        return chunkKeys;
+    }
+
+    static boolean isValidChunk(ChunkInfo ci, int index, CachedData cd) {
+        if (cd == null || cd.getData() == null) return false;
+        final int len = (index == ci.getChunks() - 2) ? ((ci.getLastChunk() == 0 || ci.getLastChunk() > ci
+                .getChunkSize()) ? ci.getChunkSize() : ci.getLastChunk())
+                : ci.getChunkSize();
+        if (cd.getData().length < len) return false;
+        final Checksum checksum = ci.getChecksumAlgorithm().newChecksum();
+        checksum.update(cd.getData(), 0, len);
+        return (int) checksum.getValue() == ci.getChunkChecksums()[index];
+    }
+
+    private boolean checkCRCChecksum(ChunkInputStream in, final ChunkInfo ci, boolean hasZF) {
+        if (in.getLength() == 0) return false;
 
-        final Checksum checksum = new CRC32();
-        checksum.update(data, 0, data.length);
-        final long currentChecksum = checksum.getValue();
+        final long currentChecksum = in.getChecksum();
         final long expectedChecksum = ci.getChecksum();
         if (log.isDebugEnabled()) log.debug("CurrentChecksum : " + currentChecksum + "; ExpectedChecksum : "
                 + expectedChecksum + " for key : " + ci.getKey());
@@ -445,11 +630,46 @@ public class EVCacheClient {
         return true;
     }
 
-    private ChunkInfo getChunkInfo(String firstKey, String metadata) {
-        if (metadata == null) return null;
-        final String[] metaItems = metadata.split(":");
-        if (metaItems.length != 5) return null;
+    /*
+     * The metadata is either the binary header written when
+     * chunk.metadata.binary is enabled or the older string of the form
+     * chunks:chunkSize:lastChunk:flags:checksum.
+     */
+    private ChunkInfo getChunkInfo(String firstKey, CachedData metadata) {
+        return getChunkInfo(firstKey, metadata, decodingTranscoder);
+    }
+
+    static ChunkInfo getChunkInfo(String firstKey, CachedData metadata, Transcoder<Object> decodingTranscoder) {
+        if (metadata == null || metadata.getData() == null) return null;
         final String key = firstKey.substring(0, firstKey.length() - 3);
+        final byte[] data = metadata.getData();
+        if (metadata.getFlags() == SPECIAL_BYTEARRAY && data.length >= CHUNK_METADATA_LENGTH
+                && (data[0] == CHUNK_METADATA_VERSION || data[0] == CHUNK_METADATA_VERSION_WITH_CHUNK_CHECKSUMS
+                || data[0] == CHUNK_METADATA_VERSION_WITH_ALGORITHM)) {
+            final ByteBuffer buffer = ByteBuffer.wrap(data, 1, data.length - 1);
+            ChunkChecksum algorithm = ChunkChecksum.CRC32;
+            if (data[0] == CHUNK_METADATA_VERSION_WITH_ALGORITHM) {
+                algorithm = ChunkChecksum.fromId(buffer.get());
+                if (algorithm == null || buffer.remaining() < CHUNK_METADATA_LENGTH - 1) return null;
+            }
+            final int chunks = buffer.getInt();
+            final int chunkSize = buffer.getInt();
+            final int lastChunk = buffer.getInt();
+            final int flags = buffer.getInt();
+            final long checksum = buffer.getLong();
+            int[] chunkChecksums = null;
+            if (data[0] == CHUNK_METADATA_VERSION_WITH_CHUNK_CHECKSUMS || (data[0] == CHUNK_METADATA_VERSION_WITH_ALGORITHM && buffer.hasRemaining())) {
+                if (chunks < 1 || buffer.remaining() < (chunks - 1) * 4) return null;
+                chunkChecksums = new int[chunks - 1];
+                buffer.asIntBuffer().get(chunkChecksums);
+            }
+            return new ChunkInfo(chunks, chunkSize, lastChunk, flags, key, checksum, chunkChecksums, algorithm);
+        }
+
+        final String metaString = (String) decodingTranscoder.decode(metadata);
+        if (metaString == null) return null;
+        final String[] metaItems = metaString.split(":");
+        if (metaItems.length != 5) return null;
 
         final ChunkInfo ci = new ChunkInfo(Integer.parseInt(metaItems[0]), Integer.parseInt(metaItems[1]), Integer
                 .parseInt(metaItems[2]), Integer.parseInt(metaItems[3]), key, Long
@@ -457,6 +677,55 @@ public class EVCacheClient {
         return ci;
     }
 
+    /*
+     * The checksums of the chunks and any algorithm other than CRC32 are only
+     * written with the binary metadata. CRC32 is written in the older
+     * versions so that it can be read by the clients that do not know the
+     * algorithm.
+     */
+    private CachedData encodeChunkInfo(int numOfChunks, int chunkSize, int lastChunkSize, int flags, long checksum, int[] chunkChecksums, ChunkChecksum algorithm) {
+        return encodeChunkInfo(numOfChunks, chunkSize, lastChunkSize, flags, checksum, chunkChecksums, algorithm, binaryChunkMetadata.get(), decodingTranscoder);
+    }
+
+    static CachedData encodeChunkInfo(int numOfChunks, int chunkSize, int lastChunkSize, int flags, long checksum, int[] chunkChecksums,
+            ChunkChecksum algorithm, boolean binary, Transcoder<Object> decodingTranscoder) {
+        if (!binary) {
+            return decodingTranscoder.encode(numOfChunks + ":" + chunkSize + ":" + lastChunkSize + ":" + flags + ":" + checksum);
+        }
+        final boolean withChunkChecksums = chunkChecksums != null && chunkChecksums.length == numOfChunks - 1;
+        final boolean withAlgorithm = algorithm != ChunkChecksum.CRC32;
+        final ByteBuffer buffer = ByteBuffer.allocate(CHUNK_METADATA_LENGTH + (withAlgorithm ? 1 : 0) + (withChunkChecksums ? chunkChecksums.length * 4 : 0));
+        if (withAlgorithm) {
+            buffer.put(CHUNK_METADATA_VERSION_WITH_ALGORITHM).put((byte) algorithm.getId());
+        } else {
+            buffer.put(withChunkChecksums ? CHUNK_METADATA_VERSION_WITH_CHUNK_CHECKSUMS : CHUNK_METADATA_VERSION);
+        }
+        buffer.putInt(numOfChunks).putInt(chunkSize).putInt(lastChunkSize).putInt(flags).putLong(checksum);
+        if (withChunkChecksums) {
+            for (int chunkChecksum : chunkChecksums) {
+                buffer.putInt(chunkChecksum);
+            }
+        }
+        return new CachedData(SPECIAL_BYTEARRAY, buffer.array(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns true if the checksum of each chunk should be computed for
+     * {@link #setChunkMetadata}.
+     */
+    public boolean isChunkChecksumEnabled() {
+        return binaryChunkMetadata.get() && chunkChecksums.get();
+    }
+
+    /**
+     * Returns the algorithm used for the checksums of the chunked values
+     * written by this client. This is always CRC32 unless the binary chunk
+     * metadata is enabled.
+     */
+    public ChunkChecksum getChunkChecksumAlgorithm() {
+        return binaryChunkMetadata.get() ? ChunkChecksum.fromName(chunkChecksumAlgorithm.get()) : ChunkChecksum.CRC32;
+    }
+
     private <T> Map<String, T> assembleChunks(Collection<String> keyList, Transcoder<T> tc, boolean hasZF) {
         final List<String> firstKeys = new ArrayList<>();
         for (String key : keyList) {
@@ -464,6 +733,7 @@ public class EVCacheClient {
             firstKeys.add(key + "_00");
         }
         final Stopwatch operationDuration = EVCacheMetricsFactory.getStatsTimer(appName, serverGroup, "LatencyChunk").start();
+        final long deadline = System.currentTimeMillis() + bulkReadTimeout.get();
         try {
             final Map<String, CachedData> metadataMap = evcacheMemcachedClient.asyncGetBulk(firstKeys, chunkingTranscoder, null, "GetChunkMetadataOperation")
                     .getSome(bulkReadTimeout.get(), TimeUnit.MILLISECONDS, false, false);
@@ -478,12 +748,10 @@ public class EVCacheClient {
             }
 
             final List<String> allKeys = new ArrayList<>();
-            final Map<ChunkInfo, Pair<List<String>, byte[]>> responseMap = new HashMap<>();
+            final Map<ChunkInfo, List<String>> responseMap = new HashMap<>();
             for (Entry<String, CachedData> entry : metadataMap.entrySet()) {
                 final String firstKey = entry.getKey();
-                final String metadata = (String) decodingTranscoder.decode(entry.getValue());
-                if (metadata == null) continue;
-                final ChunkInfo ci = getChunkInfo(firstKey, metadata);
+                final ChunkInfo ci = getChunkInfo(firstKey, entry.getValue());
                 if (ci != null) {
                     final List<String> ciKeys = new ArrayList<>();
 
@@ -494,58 +762,17 @@ public class EVCacheClient {
                         ciKeys.add(_key);
                     }
 
-                    final byte[] data = new byte[(ci.getChunks() - 2) * ci.getChunkSize() + ci.getLastChunk()];
-                    responseMap.put(ci, new Pair<>(ciKeys, data));
+                    responseMap.put(ci, ciKeys);
                 }
             }
 
             final Map<String, CachedData> dataMap = evcacheMemcachedClient.asyncGetBulk(allKeys, chunkingTranscoder, null, "GetChunksOperation")
                     .getSome(bulkReadTimeout.get(), TimeUnit.MILLISECONDS, false, false);
 
-            for (Entry<ChunkInfo, Pair<List<String>, byte[]>> entry : responseMap.entrySet()) {
+            for (Entry<ChunkInfo, List<String>> entry : responseMap.entrySet()) {
                 final ChunkInfo ci = entry.getKey();
-                final Pair<List<String>, byte[]> pair = entry.getValue();
-                final List<String> ciKeys = pair.first();
-                byte[] data = pair.second();
-                int index = 0;
-                for (int i = 0; i < ciKeys.size(); i++) {
-                    final String _key = ciKeys.get(i);
-                    final CachedData cd = dataMap.get(_key);
-                    if (log.isDebugEnabled()) log.debug("Chunk Key " + _key + "; Value : " + cd);
-                    if (cd == null) continue;
-                    final byte[] val = cd.getData();
-
-                    if (val == null) {
-                        data = null;
-                        break;
-                    }
-                    final int len = (i == ciKeys.size() - 1) ? ((ci.getLastChunk() == 0 || ci.getLastChunk() > ci
-                            .getChunkSize()) ? ci.getChunkSize() : ci.getLastChunk())
-                            : val.length;
-                    try {
-                        System.arraycopy(val, 0, data, index, len);
-                    } catch (Exception e) {
-                        StringBuilder sb = new StringBuilder();
-                        sb.append("ArrayCopyError - Key : " + _key + "; final data Size : " + data.length
-                                + "; copy array size : " + len + "; val size : " + val.length
-                                + "; key index : " + i + "; copy from : " + index + "; ChunkInfo : " + ci + "\n");
-                        for (int j = 0; j < ciKeys.size(); j++) {
-                            final String skey = ciKeys.get(j);
-                            final byte[] sval = dataMap.get(skey).getData();
-                            sb.append(skey + "=" + sval.length + "\n");
-                        }
-                        if (log.isWarnEnabled()) log.warn(sb.toString(), e);
-                        throw e;
-                    }
-                    index += val.length;
-                }
-                final boolean checksumPass = checkCRCChecksum(data, ci, hasZF);
-                if (data != null && checksumPass) {
-                    final CachedData cd = new CachedData(ci.getFlags(), data, Integer.MAX_VALUE);
-                    returnMap.put(ci.getKey(), tc.decode(cd));
-                } else {
-                    returnMap.put(ci.getKey(), null);
-                }
+                final boolean repaired = repairChunks(ci, entry.getValue(), dataMap, deadline);
+                returnMap.put(ci.getKey(), repaired ? decodeChunks(ci, entry.getValue(), dataMap, tc, hasZF, false, 0) : null);
             }
             return returnMap;
         } catch (Exception e) {
@@ -563,6 +790,7 @@ public class EVCacheClient {
             firstKeys.add(key + "_00");
         }
         final Stopwatch operationDuration = EVCacheMetricsFactory.getStatsTimer(appName, serverGroup, "LatencyChunk").start();
+        final long deadline = System.currentTimeMillis() + bulkReadTimeout.get();
 
         return evcacheMemcachedClient.asyncGetBulk(firstKeys, chunkingTranscoder, null, "GetChunkMetadataOperation")
             .getSome(bulkReadTimeout.get(), TimeUnit.MILLISECONDS, false, false, scheduler)
@@ -578,12 +806,10 @@ public class EVCacheClient {
                 }
 
                 final List<String> allKeys = new ArrayList<>();
-                final Map<ChunkInfo, Pair<List<String>, byte[]>> responseMap = new HashMap<>();
+                final Map<ChunkInfo, List<String>> responseMap = new HashMap<>();
                 for (Entry<String, CachedData> entry : metadataMap.entrySet()) {
                     final String firstKey = entry.getKey();
-                    final String metadata = (String) decodingTranscoder.decode(entry.getValue());
-                    if (metadata == null) continue;
-                    final ChunkInfo ci = getChunkInfo(firstKey, metadata);
+                    final ChunkInfo ci = getChunkInfo(firstKey, entry.getValue());
                     if (ci != null) {
                         final List<String> ciKeys = new ArrayList<>();
 
@@ -594,73 +820,57 @@ public class EVCacheClient {
                             ciKeys.add(_key);
                         }
 
-                        final byte[] data = new byte[(ci.getChunks() - 2) * ci.getChunkSize() + ci.getLastChunk()];
-                        responseMap.put(ci, new Pair<>(ciKeys, data));
+                        responseMap.put(ci, ciKeys);
                     }
                 }
 
                 return evcacheMemcachedClient.asyncGetBulk(allKeys, chunkingTranscoder, null, "GetChunksOperation")
                     .getSome(bulkReadTimeout.get(), TimeUnit.MILLISECONDS, false, false, scheduler)
-                    .map(dataMap -> {
-                        for (Entry<ChunkInfo, Pair<List<String>, byte[]>> entry : responseMap.entrySet()) {
-                            final ChunkInfo ci = entry.getKey();
-                            final Pair<List<String>, byte[]> pair = entry.getValue();
-                            final List<String> ciKeys = pair.first();
-                            byte[] data = pair.second();
-                            int index = 0;
-                            for (int i = 0; i < ciKeys.size(); i++) {
-                                final String _key = ciKeys.get(i);
-                                final CachedData cd = dataMap.get(_key);
-                                if (log.isDebugEnabled()) log.debug("Chunk Key " + _key + "; Value : " + cd);
-                                if (cd == null) continue;
-                                final byte[] val = cd.getData();
-
-                                if (val == null) {
-                                    data = null;
-                                    break;
-                                }
-                                final int len = (i == ciKeys.size() - 1) ? ((ci.getLastChunk() == 0 || ci.getLastChunk() > ci
-                                    .getChunkSize()) ? ci.getChunkSize() : ci.getLastChunk())
-                                    : val.length;
-                                try {
-                                    System.arraycopy(val, 0, data, index, len);
-                                } catch (Exception e) {
-                                    StringBuilder sb = new StringBuilder();
-                                    sb.append("ArrayCopyError - Key : " + _key + "; final data Size : " + data.length
-                                        + "; copy array size : " + len + "; val size : " + val.length
-                                        + "; key index : " + i + "; copy from : " + index + "; ChunkInfo : " + ci + "\n");
-                                    for (int j = 0; j < ciKeys.size(); j++) {
-                                        final String skey = ciKeys.get(j);
-                                        final byte[] sval = dataMap.get(skey).getData();
-                                        sb.append(skey + "=" + sval.length + "\n");
-                                    }
-                                    if (log.isWarnEnabled()) log.warn(sb.toString(), e);
-                                    throw e;
-                                }
-                                index += val.length;
-                            }
-                            final boolean checksumPass = checkCRCChecksum(data, ci, hasZF);
-                            if (data != null && checksumPass) {
-                                final CachedData cd = new CachedData(ci.getFlags(), data, Integer.MAX_VALUE);
-                                returnMap.put(ci.getKey(), tc.decode(cd));
-                            } else {
-                                returnMap.put(ci.getKey(), null);
-                            }
-                        }
-
-                        return returnMap;
-                    });
+                    .flatMap(dataMap -> Observable.from(responseMap.entrySet())
+                        .concatMap(entry -> repairChunks(entry.getKey(), entry.getValue(), dataMap, deadline, scheduler)
+                            .doOnSuccess(repaired -> {
+                                final ChunkInfo ci = entry.getKey();
+                                returnMap.put(ci.getKey(), repaired.booleanValue() ? decodeChunks(ci, entry.getValue(), dataMap, tc, hasZF, false, 0) : null);
+                            }).toObservable())
+                        .toList().toSingle()
+                        .map(repaired -> returnMap));
             }).doAfterTerminate(() ->
                 operationDuration.stop()
             );
     }
 
-    private CachedData[] createChunks(CachedData cd, String key) {
-        final int cSize = chunkSize.get();
+    /**
+     * Returns the number of data bytes that fit in each chunk of the given
+     * key, which is the chunk size less the memcached overhead.
+     */
+    public int getChunkDataSize(String key) {
+        return getChunkDataSizeForChunkSize(key, chunkSize.get());
+    }
+
+    /**
+     * Returns the number of data bytes in each chunk of a value of
+     * <code>length</code> bytes. When adaptive chunking is enabled the chunk
+     * size is the memcached slab class that fits the chunks of this value
+     * best, otherwise it is <code>chunk.size</code>. The chunk size is stored
+     * in the chunk metadata so the readers do not depend on this choice.
+     */
+    public int getChunkDataSize(String key, int length) {
+        int cSize = chunkSize.get();
+        if (adaptiveChunking.get()) {
+            slabClasses.refreshIfNeeded(this, slabRefreshInterval.get());
+            final int slabSize = slabClasses.chooseChunkSize(length, key.length() + 74, chunkMaxWastePercent.get());
+            if (slabSize > 0) {
+                cSize = slabSize;
+                EVCacheMetricsFactory.increment(appName + "-CHUNK_ADAPTIVE");
+            }
+        }
+        return getChunkDataSizeForChunkSize(key, cSize);
+    }
+
+    private int getChunkDataSizeForChunkSize(String key, int cSize) {
         if ((key.length() + 3) > cSize) throw new IllegalArgumentException("The chunksize " + cSize
                 + " is smaller than the key size. Will not be able to proceed. key size = "
                 + key.length());
-        final int len = cd.getData().length;
 
         /* the format of headers in memcached */
         // Key size + 1 + Header( Flags (Characters Number) + Key (Characters Numbers) + 2 bytes ( \r\n ) + 4 bytes (2 spaces and 1 \r)) + Chunk Size + CAS Size
@@ -674,14 +884,20 @@ public class EVCacheClient {
         // + 8; // CAS
         final int overheadSize = key.length() + 71 + 3; 
         // 3 because we will suffix _00, _01 ... _99; 68 is the size of the memcached header
-        final int actualChunkSize = cSize - overheadSize;
+        return cSize - overheadSize;
+    }
+
+    private CachedData[] createChunks(CachedData cd, String key) {
+        final int len = cd.getData().length;
+        final int actualChunkSize = getChunkDataSize(key, len);
         int lastChunkSize = len % actualChunkSize;
         final int numOfChunks = len / actualChunkSize + ((lastChunkSize > 0) ? 1 : 0) + 1;
         final CachedData[] chunkData = new CachedData[numOfChunks];
         if (lastChunkSize == 0) lastChunkSize = actualChunkSize;
 
         final long sTime = System.nanoTime();
-        final Checksum checksum = new CRC32();
+        final ChunkChecksum algorithm = getChunkChecksumAlgorithm();
+        final Checksum checksum = algorithm.newChecksum();
         checksum.update(cd.getData(), 0, len);
         final long checkSumValue = checksum.getValue();
 
@@ -689,8 +905,8 @@ public class EVCacheClient {
         if (log.isDebugEnabled()) log.debug("Ths size of data is " + len + " ; we will create " + (numOfChunks - 1)
                 + " of " + actualChunkSize + " bytes. Checksum : "
                 + checkSumValue + "; Checksum Duration : " + (System.nanoTime() - sTime));
-        chunkData[0] = decodingTranscoder.encode(numOfChunks + ":" + actualChunkSize + ":" + lastChunkSize + ":" + cd
-                .getFlags() + ":" + checkSumValue);
+        if (predictChunks.get()) chunkHints.put(key, Integer.valueOf(numOfChunks));
+        final int[] chunkChecksums = isChunkChecksumEnabled() ? new int[numOfChunks - 1] : null;
         for (int i = 1; i < numOfChunks; i++) {
             int lengthOfArray = actualChunkSize;
             if (srcPos + actualChunkSize > len) {
@@ -704,15 +920,60 @@ public class EVCacheClient {
                 }
             }
             srcPos += lengthOfArray;
+            if (chunkChecksums != null) {
+                checksum.reset();
+                checksum.update(dest, 0, lengthOfArray);
+                chunkChecksums[i - 1] = (int) checksum.getValue();
+            }
             //chunkData[i] = decodingTranscoder.encode(dest);
             chunkData[i] = new CachedData(SPECIAL_BYTEARRAY, dest, Integer.MAX_VALUE);
         }
+        chunkData[0] = encodeChunkInfo(numOfChunks, actualChunkSize, lastChunkSize, cd.getFlags(), checkSumValue, chunkChecksums, algorithm);
         EVCacheMetricsFactory.getDistributionSummary(appName + "-ChunkData-NumberOfChunks", appName, serverGroup.getName()).record(numOfChunks);
         EVCacheMetricsFactory.getDistributionSummary(appName + "-ChunkData-TotalSize", appName, serverGroup.getName()).record(len);
 
         return chunkData;
     }
 
+    /**
+     * Writes one data chunk, with an index starting at 1, of a value that is
+     * chunked as it is read. The value becomes visible once
+     * {@link #setChunkMetadata} is called after all its chunks are written.
+     * Throws an EVCacheException if the node is not active or its write queue
+     * stays full, in which case the value cannot be written.
+     */
+    public OperationFuture<Boolean> setChunk(String key, int index, byte[] data, int timeToLive) throws Exception {
+        final String prefix = (index < 10) ? "0" : "";
+        final String chunkKey = key + "_" + prefix + index;
+        final MemcachedNode node = evcacheMemcachedClient.getEVCacheNode(chunkKey);
+        if (!ensureWriteQueueSize(node, chunkKey)) {
+            throw new EVCacheException("Node : " + node + " is not active. Failing fast and dropping the chunked write for key : " + key);
+        }
+        return evcacheMemcachedClient.set(chunkKey, timeToLive, new CachedData(SPECIAL_BYTEARRAY, data, Integer.MAX_VALUE), null, null);
+    }
+
+    /**
+     * Completes a value written with {@link #setChunk} by writing its
+     * metadata and deleting the unchunked key. The value is stored as a byte
+     * array. The returned future, which is added to the latch, completes once
+     * all the chunks and the metadata are written.
+     */
+    public Future<Boolean> setChunkMetadata(String key, List<OperationFuture<Boolean>> chunkFutures, int chunkDataSize, int lastChunkSize,
+            ChunkChecksum algorithm, long checksum, int[] chunkChecksums, int timeToLive, EVCacheLatch evcacheLatch) throws Exception {
+        final int numOfChunks = chunkFutures.size() + 1;
+        final OperationFuture<Boolean>[] futures = new OperationFuture[numOfChunks];
+        for (int i = 1; i < numOfChunks; i++) {
+            futures[i] = chunkFutures.get(i - 1);
+        }
+        if (predictChunks.get()) chunkHints.put(key, Integer.valueOf(numOfChunks));
+        futures[0] = evcacheMemcachedClient.set(key + "_00", timeToLive, encodeChunkInfo(numOfChunks, chunkDataSize, lastChunkSize, SPECIAL_BYTEARRAY, checksum, chunkChecksums, algorithm), null, null);
+        // Ignore return value since it may not exist.
+        evcacheMemcachedClient.delete(key);
+        EVCacheMetricsFactory.getDistributionSummary(appName + "-ChunkData-NumberOfChunks", appName, serverGroup.getName()).record(numOfChunks);
+        EVCacheMetricsFactory.getDistributionSummary(appName + "-ChunkData-TotalSize", appName, serverGroup.getName()).record((long) (numOfChunks - 2) * chunkDataSize + lastChunkSize);
+        return new EVCacheFutures(futures, key, appName, serverGroup, evcacheLatch);
+    }
+
     /** 
      * Retrieves all the chunks as is. This is mainly used for debugging. 
      * 
@@ -765,13 +1026,26 @@ public class EVCacheClient {
     }
 
     public <T> T get(String key, Transcoder<T> tc, boolean _throwException, boolean hasZF) throws Exception {
+        hotKeyTracker.record(key);
         if (!validateNode(key, _throwException)) return null;
         return get(key, tc, _throwException, hasZF, enableChunking.get());
     }
 
+    /**
+     * Issues a get for the key without waiting for the result so that the
+     * returned future can be shared by concurrent readers of the same key.
+     * Returns null if the node cannot take the read. This does not assemble
+     * chunked data.
+     */
+    public <T> EVCacheOperationFuture<T> asyncGet(String key, Transcoder<T> tc, boolean _throwException) throws Exception {
+        hotKeyTracker.record(key);
+        if (!validateNode(key, _throwException)) return null;
+        return evcacheMemcachedClient.asyncGet(key, tc, null);
+    }
+
     public <T> Single<T> get(String key, Transcoder<T> tc, boolean _throwException, boolean hasZF, boolean chunked, Scheduler scheduler) {
         if (chunked) {
-            return assembleChunks(key, _throwException, 0, tc, hasZF, scheduler);
+            return assembleChunks(key, false, 0, tc, hasZF, scheduler);
         } else {
             return evcacheMemcachedClient.asyncGet(key, tc, null)
                 .get(readTimeout.get(), TimeUnit.MILLISECONDS, _throwException, hasZF, scheduler);
@@ -780,6 +1054,7 @@ public class EVCacheClient {
 
     public <T> Single<T> get(String key, Transcoder<T> tc, boolean _throwException, boolean hasZF, Scheduler scheduler) {
         try {
+            hotKeyTracker.record(key);
             if (!validateNode(key, _throwException)) return Single.just(null);
             return get(key, tc, _throwException, hasZF, enableChunking.get(), scheduler);
         } catch (Throwable e) {
@@ -789,12 +1064,13 @@ public class EVCacheClient {
 
     public <T> T getAndTouch(String key, Transcoder<T> tc, int timeToLive, boolean _throwException, boolean hasZF)
             throws Exception {
+        hotKeyTracker.record(key);
         if (!validateNode(key, _throwException)) return null;
 
         if (tc == null) tc = (Transcoder<T>) getTranscoder();
         final T returnVal;
         if (enableChunking.get()) {
-            return assembleChunks(key, false, 0, tc, hasZF);
+            return assembleChunks(key, true, timeToLive, tc, hasZF);
         } else {
             final CASValue<T> value = evcacheMemcachedClient.asyncGetAndTouch(key, timeToLive, tc)
                 .get(readTimeout.get(), TimeUnit.MILLISECONDS, _throwException, hasZF);
@@ -806,11 +1082,12 @@ public class EVCacheClient {
 
     public <T> Single<T> getAndTouch(String key, Transcoder<T> tc, int timeToLive, boolean _throwException, boolean hasZF, Scheduler scheduler) {
         try {
+            hotKeyTracker.record(key);
             if (!validateNode(key, _throwException)) return null;
 
             if (tc == null) tc = (Transcoder<T>) getTranscoder();
             if (enableChunking.get()) {
-                return assembleChunks(key, false, 0, tc, hasZF, scheduler);
+                return assembleChunks(key, true, timeToLive, tc, hasZF, scheduler);
             } else {
                 return evcacheMemcachedClient.asyncGetAndTouch(key, timeToLive, tc)
                     .get(readTimeout.get(), TimeUnit.MILLISECONDS, _throwException, hasZF, scheduler)
@@ -823,6 +1100,18 @@ public class EVCacheClient {
 
     public <T> Map<String, T> getBulk(Collection<String> _canonicalKeys, Transcoder<T> tc, boolean _throwException,
             boolean hasZF) throws Exception {
+        return getBulk(_canonicalKeys, tc, _throwException, hasZF, (AtomicBoolean) null);
+    }
+
+    /**
+     * Same as {@link #getBulk(Collection, Transcoder, boolean, boolean)} but
+     * sets <code>complete</code> to true if every key was read from the
+     * servers without an error or a timeout, so that the keys missing from
+     * the result are known to be absent. Chunked reads are never complete.
+     */
+    public <T> Map<String, T> getBulk(Collection<String> _canonicalKeys, Transcoder<T> tc, boolean _throwException,
+            boolean hasZF, AtomicBoolean complete) throws Exception {
+        recordKeys(_canonicalKeys);
         final Collection<String> canonicalKeys = validateReadQueueSize(_canonicalKeys);
         final Map<String, T> returnVal;
         try {
@@ -830,8 +1119,9 @@ public class EVCacheClient {
             if (enableChunking.get()) {
                 returnVal = assembleChunks(_canonicalKeys, tc, hasZF);
             } else {
-                returnVal = evcacheMemcachedClient.asyncGetBulk(canonicalKeys, tc, null, "BulkOperation")
-                        .getSome(bulkReadTimeout.get(), TimeUnit.MILLISECONDS, _throwException, hasZF);
+                final EVCacheBulkGetFuture<T> future = evcacheMemcachedClient.asyncGetBulk(canonicalKeys, tc, null, "BulkOperation");
+                returnVal = future.getSome(bulkReadTimeout.get(), TimeUnit.MILLISECONDS, _throwException, hasZF);
+                if (complete != null) complete.set(canonicalKeys.size() == _canonicalKeys.size() && future.isComplete());
             }
         } catch (Exception e) {
             if (_throwException) throw e;
@@ -843,6 +1133,7 @@ public class EVCacheClient {
     public <T> Single<Map<String, T>> getBulk(Collection<String> _canonicalKeys, Transcoder<T> tc, boolean _throwException,
             boolean hasZF, Scheduler scheduler) {
         try {
+            recordKeys(_canonicalKeys);
             final Collection<String> canonicalKeys = validateReadQueueSize(_canonicalKeys);
             if (tc == null) tc = (Transcoder<T>) getTranscoder();
             if (enableChunking.get()) {
@@ -884,7 +1175,7 @@ public class EVCacheClient {
             }
 
             if (enableChunking.get()) {
-                if (value instanceof CachedData && dataSize > chunkSize.get()) {
+                if (value instanceof CachedData && shouldChunk(dataSize)) {
                     final CachedData[] cd = createChunks((CachedData) value, key);
                     final int len = cd.length;
                     final OperationFuture<Boolean>[] futures = new OperationFuture[len];
@@ -911,6 +1202,15 @@ public class EVCacheClient {
         }
     }
 
+    /*
+     * Values up to the chunk size are stored whole. With adaptive chunking
+     * the values up to chunk.adaptive.threshold are stored whole instead.
+     */
+    private boolean shouldChunk(int dataSize) {
+        if (adaptiveChunking.get()) return dataSize > Math.max(chunkThreshold.get(), chunkSize.get());
+        return dataSize > chunkSize.get();
+    }
+
     public <T> Future<Boolean> appendOrAdd(String key, CachedData value, int timeToLive, EVCacheLatch evcacheLatch) throws Exception {
         final MemcachedNode node = evcacheMemcachedClient.getEVCacheNode(key);
         if (!ensureWriteQueueSize(node, key)) {
@@ -945,7 +1245,7 @@ public class EVCacheClient {
                 dataSize = ((CachedData) value).getData().length;
             }
 
-            if (value instanceof CachedData && enableChunking.get() && dataSize > chunkSize.get()) {
+            if (value instanceof CachedData && enableChunking.get() && shouldChunk(dataSize)) {
                 final CachedData[] cd = createChunks((CachedData) value, key);
                 final int len = cd.length;
                 final OperationFuture<Boolean>[] futures = new OperationFuture[len];
@@ -1039,15 +1339,7 @@ public class EVCacheClient {
         if (enableChunking.get()) {
             final ChunkDetails<?> cd = getChunkDetails(key);
             if (cd.isChunked()) {
-                final List<String> keys = cd.getChunkKeys();
-                OperationFuture<Boolean>[] futures = new OperationFuture[keys.size() + 1];
-                futures[0] = evcacheMemcachedClient.touch(key + "_00", timeToLive, latch);
-                for (int i = 0; i < keys.size(); i++) {
-                    final String prefix = (i < 10) ? "0" : "";
-                    final String _key = key + "_" + prefix + i;
-                    futures[i + 1] = evcacheMemcachedClient.touch(_key, timeToLive, latch);
-                }
-                return new EVCacheFutures(futures, key, appName, serverGroup, latch);
+                return touchChunks(key + "_00", cd.getChunkKeys(), timeToLive, latch);
             } else {
                 return evcacheMemcachedClient.touch(key, timeToLive, latch);
             }
@@ -1060,6 +1352,7 @@ public class EVCacheClient {
             throws Exception {
         if (enableChunking.get()) throw new EVCacheException(
                 "This operation is not supported as chunking is enabled on this EVCacheClient.");
+        hotKeyTracker.record(key);
         if (!validateNode(key, _throwException)) return null;
         if (tc == null) tc = (Transcoder<T>) getTranscoder();
         return evcacheMemcachedClient.asyncGet(key, tc, null);
@@ -1111,6 +1404,7 @@ public class EVCacheClient {
 
     public boolean shutdown(long timeout, TimeUnit unit) {
         shutdown = true;
+        hotKeyTracker.close();
         return evcacheMemcachedClient.shutdown(timeout, unit);
     }
 
@@ -1243,6 +1537,10 @@ public class EVCacheClient {
         return memcachedNodesInZone;
     }
 
+    public DynamicIntProperty getOperationTimeout() {
+        return operationTimeout;
+    }
+
     public int getMaxWriteQueueSize() {
         return maxWriteQueueSize;
     }
@@ -1263,6 +1561,10 @@ public class EVCacheClient {
         return enableChunking;
     }
 
+    public EVCacheHotKeyTracker getHotKeyTracker() {
+        return hotKeyTracker;
+    }
+
     public ChainedDynamicProperty.IntProperty getChunkSize() {
         return chunkSize;
     }
@@ -1293,13 +1595,19 @@ public class EVCacheClient {
         final ChunkInfo chunkInfo;
         final boolean chunked;
         final T data;
+        final Map<String, CachedData> prefetchedChunks;
 
         public ChunkDetails(List<String> chunkKeys, ChunkInfo chunkInfo, boolean chunked, T data) {
+            this(chunkKeys, chunkInfo, chunked, data, null);
+        }
+
+        public ChunkDetails(List<String> chunkKeys, ChunkInfo chunkInfo, boolean chunked, T data, Map<String, CachedData> prefetchedChunks) {
             super();
             this.chunkKeys = chunkKeys;
             this.chunkInfo = chunkInfo;
             this.chunked = chunked;
             this.data = data;
+            this.prefetchedChunks = prefetchedChunks;
         }
 
         public List<String> getChunkKeys() {
@@ -1318,6 +1626,14 @@ public class EVCacheClient {
             return data;
         }
 
+        /**
+         * The chunks that were fetched along with the metadata, null if
+         * chunk prediction is disabled.
+         */
+        public Map<String, CachedData> getPrefetchedChunks() {
+            return prefetchedChunks;
+        }
+
 		@Override
 		public String toString() {
 			return "ChunkDetails [chunkKeys=" + chunkKeys + ", chunkInfo=" + chunkInfo + ", chunked=" + chunked
@@ -1334,8 +1650,14 @@ public class EVCacheClient {
         final int flags;
         final String key;
         final long checksum;
+        final int[] chunkChecksums;
+        final ChunkChecksum checksumAlgorithm;
 
         public ChunkInfo(int chunks, int chunkSize, int lastChunk, int flags, String firstKey, long checksum) {
+            this(chunks, chunkSize, lastChunk, flags, firstKey, checksum, null, ChunkChecksum.CRC32);
+        }
+
+        public ChunkInfo(int chunks, int chunkSize, int lastChunk, int flags, String firstKey, long checksum, int[] chunkChecksums, ChunkChecksum checksumAlgorithm) {
             super();
             this.chunks = chunks;
             this.chunkSize = chunkSize;
@@ -1343,6 +1665,8 @@ public class EVCacheClient {
             this.flags = flags;
             this.key = firstKey;
             this.checksum = checksum;
+            this.chunkChecksums = chunkChecksums;
+            this.checksumAlgorithm = checksumAlgorithm;
         }
 
         public int getChunks() {
@@ -1369,6 +1693,18 @@ public class EVCacheClient {
             return checksum;
         }
 
+        /**
+         * The checksum of each data chunk, null if only the checksum of the
+         * whole value was written.
+         */
+        public int[] getChunkChecksums() {
+            return chunkChecksums;
+        }
+
+        public ChunkChecksum getChecksumAlgorithm() {
+            return checksumAlgorithm;
+        }
+
         @Override
         public String toString() {
             StringBuilder builder = new StringBuilder();
@@ -0,0 +1,245 @@
+package com.netflix.evcache.pool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.netflix.config.DynamicBooleanProperty;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.evcache.metrics.EVCacheMetricsFactory;
+import com.netflix.evcache.util.EVCacheConfig;
+import com.netflix.servo.tag.BasicTagList;
+
+/**
+ * Finds the most frequently read keys of an {@link EVCacheClient}. Every read
+ * key is counted in a count-min sketch and the keys with the highest estimates
+ * are kept as the top-K of the current interval. At the end of each interval
+ * the rate of each key of the top-K is published as a report, see
+ * {@link #getTopKeyRates()}, and logged. The keys read more often than
+ * <code>hotkey.promote.rate</code> per second become the hot keys for the
+ * next interval and the counts are reset. The number of hot keys and the rate
+ * of the hottest key are exported as the
+ * <code>EVCacheHotKeyTracker-HotKeys</code> and
+ * <code>EVCacheHotKeyTracker-TopKeyRate</code> gauges.
+ *
+ * Only one in <code>hotkey.sample.rate</code> reads is counted, with a weight
+ * of the sample rate, so that most reads do not touch the shared counters.
+ * The top-K is only locked by the keys whose estimate is above its minimum.
+ *
+ * The intervals are ended by a background task as well as by the reads, so
+ * that the hot keys do not outlive the traffic that made them hot.
+ *
+ * This is enabled by setting <code>&lt;app&gt;.hotkey.detection.enabled</code>.
+ */
+public class EVCacheHotKeyTracker {
+
+    private static final Logger log = LoggerFactory.getLogger(EVCacheHotKeyTracker.class);
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 4096;
+    private static final int[] SEED = { 0x9e3779b9, 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f };
+    private static final ScheduledThreadPoolExecutor scheduler = newScheduler();
+
+    private final String appName;
+    private final String serverGroupName;
+    private final DynamicBooleanProperty enabled;
+    private final DynamicIntProperty topK;
+    private final DynamicIntProperty interval;
+    private final DynamicIntProperty promoteRate;
+    private final DynamicIntProperty sampleRate;
+
+    // both are replaced at the end of each interval
+    private volatile AtomicIntegerArray sketch = new AtomicIntegerArray(DEPTH * WIDTH);
+    private volatile ConcurrentHashMap<String, Integer> topKeys = new ConcurrentHashMap<String, Integer>();
+    private final AtomicLong intervalStart = new AtomicLong(System.currentTimeMillis());
+    private volatile int minTopCount = 0;
+    private volatile Set<String> hotKeys = Collections.<String> emptySet();
+    private volatile Map<String, Double> topKeyRates = Collections.<String, Double> emptyMap();
+    private final ScheduledFuture<?> task;
+
+    public EVCacheHotKeyTracker(String appName, String serverGroupName) {
+        this.appName = appName;
+        this.serverGroupName = serverGroupName;
+        final EVCacheConfig config = EVCacheConfig.getInstance();
+        this.enabled = config.getDynamicBooleanProperty(appName + ".hotkey.detection.enabled", Boolean.FALSE);
+        this.topK = config.getDynamicIntProperty(appName + ".hotkey.topk", 20);
+        this.interval = config.getDynamicIntProperty(appName + ".hotkey.report.interval.ms", 60000);
+        this.promoteRate = config.getDynamicIntProperty(appName + ".hotkey.promote.rate", 0);
+        this.sampleRate = config.getDynamicIntProperty(appName + ".hotkey.sample.rate", 10);
+        this.task = scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    endIntervalIfDue();
+                } catch (Throwable t) {
+                    log.error("Exception while reporting the top keys for APP " + EVCacheHotKeyTracker.this.appName, t);
+                }
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    private static ScheduledThreadPoolExecutor newScheduler() {
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("EVCacheHotKeyTracker").build());
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    /**
+     * Stops reporting, called once the client is shut down.
+     */
+    public void close() {
+        task.cancel(false);
+        hotKeys = Collections.<String> emptySet();
+    }
+
+    public boolean isEnabled() {
+        return enabled.get();
+    }
+
+    /**
+     * Counts a read of the given key, if it is sampled.
+     */
+    public void record(String key) {
+        if (!enabled.get() || key == null) return;
+        endIntervalIfDue();
+
+        final int sample = Math.max(1, sampleRate.get());
+        if (sample > 1 && ThreadLocalRandom.current().nextInt(sample) != 0) return;
+
+        final AtomicIntegerArray counts = sketch;
+        final int hash = key.hashCode();
+        int estimate = Integer.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            estimate = Math.min(estimate, counts.addAndGet(i * WIDTH + indexOf(hash, i), sample));
+        }
+
+        final ConcurrentHashMap<String, Integer> top = topKeys;
+        if (top.containsKey(key)) {
+            top.put(key, Integer.valueOf(estimate));
+        } else if (estimate > minTopCount || top.size() < topK.get()) {
+            offer(key, estimate);
+        }
+    }
+
+    /**
+     * Returns true if the key was read more often than
+     * <code>hotkey.promote.rate</code> per second during the last interval.
+     */
+    public boolean isHotKey(String key) {
+        final Set<String> keys = hotKeys;
+        return !keys.isEmpty() && keys.contains(key);
+    }
+
+    public boolean hasHotKeys() {
+        return !hotKeys.isEmpty();
+    }
+
+    /**
+     * Returns the rate per second of each of the top keys of the last
+     * interval, in descending order.
+     */
+    public Map<String, Double> getTopKeyRates() {
+        return topKeyRates;
+    }
+
+    /**
+     * Returns the keys with the highest counts in the current interval along
+     * with their estimated counts, in descending order.
+     */
+    public Map<String, Integer> getTopKeys() {
+        final List<Map.Entry<String, Integer>> entries = new ArrayList<Map.Entry<String, Integer>>(topKeys.entrySet());
+        Collections.sort(entries, (a, b) -> b.getValue().compareTo(a.getValue()));
+        final Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+        for (Map.Entry<String, Integer> entry : entries) {
+            result.put(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    private synchronized void offer(String key, int estimate) {
+        final ConcurrentHashMap<String, Integer> top = topKeys;
+        // another key may have raised the minimum while this one waited
+        if (estimate <= minTopCount && top.size() >= topK.get() && !top.containsKey(key)) return;
+        top.put(key, Integer.valueOf(estimate));
+        if (top.size() <= topK.get()) return;
+
+        String minKey = null;
+        int min = Integer.MAX_VALUE;
+        int secondMin = Integer.MAX_VALUE;
+        for (Map.Entry<String, Integer> entry : top.entrySet()) {
+            final int count = entry.getValue().intValue();
+            if (count < min) {
+                secondMin = min;
+                min = count;
+                minKey = entry.getKey();
+            } else if (count < secondMin) {
+                secondMin = count;
+            }
+        }
+        if (minKey != null) top.remove(minKey);
+        minTopCount = (secondMin == Integer.MAX_VALUE) ? 0 : secondMin;
+    }
+
+    /*
+     * Ends the interval if it has run its length. When detection is disabled
+     * the hot keys of the last interval are dropped.
+     */
+    void endIntervalIfDue() {
+        final long now = System.currentTimeMillis();
+        final long start = intervalStart.get();
+        if (now - start >= interval.get() && intervalStart.compareAndSet(start, now)) {
+            if (enabled.get() || !hotKeys.isEmpty() || !topKeyRates.isEmpty()) report(now - start);
+        }
+    }
+
+    /*
+     * Publishes the top keys of an interval of the given duration and starts
+     * the next interval with a fresh sketch, the reads that are counted while
+     * the report is made go to the sketch they started with.
+     */
+    synchronized void report(long duration) {
+        final Map<String, Integer> top = getTopKeys();
+        final double seconds = Math.max(1, duration) / 1000.0;
+        final Set<String> hot = new HashSet<String>();
+        final Map<String, Double> rates = new LinkedHashMap<String, Double>();
+        final StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Integer> entry : top.entrySet()) {
+            final double rate = entry.getValue().intValue() / seconds;
+            if (enabled.get() && promoteRate.get() > 0 && rate >= promoteRate.get()) hot.add(entry.getKey());
+            rates.put(entry.getKey(), Double.valueOf(rate));
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(entry.getKey()).append('=').append(String.format("%.1f", Double.valueOf(rate))).append("/s");
+        }
+        hotKeys = hot.isEmpty() ? Collections.<String> emptySet() : hot;
+        topKeyRates = Collections.unmodifiableMap(rates);
+
+        final BasicTagList tags = BasicTagList.of("ServerGroup", serverGroupName, "APP", appName);
+        EVCacheMetricsFactory.getLongGauge("EVCacheHotKeyTracker-HotKeys", tags).set(Long.valueOf(hot.size()));
+        final long topRate = rates.isEmpty() ? 0 : Math.round(rates.values().iterator().next().doubleValue());
+        EVCacheMetricsFactory.getLongGauge("EVCacheHotKeyTracker-TopKeyRate", tags).set(Long.valueOf(topRate));
+        if (log.isInfoEnabled() && !top.isEmpty()) log.info("Top keys for APP " + appName + ", ServerGroup " + serverGroupName + " : [" + sb + "]; hot keys : " + hot.size());
+
+        sketch = new AtomicIntegerArray(DEPTH * WIDTH);
+        topKeys = new ConcurrentHashMap<String, Integer>();
+        minTopCount = 0;
+    }
+
+    private static int indexOf(int hash, int i) {
+        int h = hash * SEED[i];
+        h ^= h >>> 16;
+        return h & (WIDTH - 1);
+    }
+}
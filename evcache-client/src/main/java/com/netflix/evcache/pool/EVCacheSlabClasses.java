@@ -0,0 +1,121 @@
+package com.netflix.evcache.pool;
+
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * The item sizes of the memcached slab classes of a server group as reported
+ * by <code>stats slabs</code>. These are used to pick a chunk size for a value
+ * so that every chunk fills the slab class it is stored in, instead of using
+ * the same chunk size for all the values.
+ *
+ * The slab classes are loaded in the background so that a write never waits
+ * on the stats call. Until they are loaded no chunk size is chosen and the
+ * configured chunk size is used.
+ */
+class EVCacheSlabClasses {
+
+    private static final Logger log = LoggerFactory.getLogger(EVCacheSlabClasses.class);
+    private static final ExecutorService refresher = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("EVCacheSlabClasses").build());
+
+    private final String name;
+    private final AtomicLong nextRefresh = new AtomicLong(0);
+    private volatile int[] sizes = new int[0];
+
+    EVCacheSlabClasses(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Loads the slab classes from the given client in the background if they
+     * were last loaded more than <code>interval</code> milliseconds ago.
+     */
+    void refreshIfNeeded(final EVCacheClient client, long interval) {
+        final long now = System.currentTimeMillis();
+        final long next = nextRefresh.get();
+        if (now < next || !nextRefresh.compareAndSet(next, now + interval)) return;
+        refresher.execute(new Runnable() {
+            public void run() {
+                try {
+                    update(client.getStats("slabs"));
+                } catch (Throwable t) {
+                    if (log.isDebugEnabled()) log.debug("Exception while getting the slab classes of " + name, t);
+                }
+            }
+        });
+    }
+
+    /**
+     * Parses the <code>N:chunk_size</code> entries of the slab stats of all
+     * the servers. Slab classes that do not have any items yet are not listed
+     * by memcached, so the sizes of all the servers are combined.
+     */
+    void update(Map<SocketAddress, Map<String, String>> stats) {
+        if (stats == null || stats.isEmpty()) return;
+        final TreeSet<Integer> set = new TreeSet<Integer>();
+        for (Map<String, String> serverStats : stats.values()) {
+            if (serverStats == null) continue;
+            for (Map.Entry<String, String> entry : serverStats.entrySet()) {
+                if (!entry.getKey().endsWith(":chunk_size")) continue;
+                try {
+                    final int size = Integer.parseInt(entry.getValue().trim());
+                    if (size > 0) set.add(Integer.valueOf(size));
+                } catch (NumberFormatException e) {
+                    if (log.isDebugEnabled()) log.debug("Invalid slab stat " + entry + " for " + name);
+                }
+            }
+        }
+        if (set.isEmpty()) return;
+
+        final int[] newSizes = new int[set.size()];
+        int i = 0;
+        for (Integer size : set) {
+            newSizes[i++] = size.intValue();
+        }
+        if (!Arrays.equals(sizes, newSizes)) {
+            if (log.isDebugEnabled()) log.debug("Slab classes of " + name + " : " + Arrays.toString(newSizes));
+            sizes = newSizes;
+        }
+    }
+
+    int[] getSizes() {
+        return sizes;
+    }
+
+    /**
+     * Returns the size of the slab class to use for the chunks of a value of
+     * <code>length</code> bytes, where each chunk has <code>overhead</code>
+     * bytes in addition to its data. The largest slab class that wastes at
+     * most <code>maxWastePercent</code> of the memory used by the chunks is
+     * picked, as it needs the fewest chunks. If none does, the one that uses
+     * the least memory is picked. Returns -1 if the slab classes are not known
+     * yet.
+     */
+    int chooseChunkSize(int length, int overhead, int maxWastePercent) {
+        final int[] sizes = this.sizes;
+        int best = -1;
+        long bestTotal = Long.MAX_VALUE;
+        for (int i = sizes.length - 1; i >= 0; i--) {
+            final int dataSize = sizes[i] - overhead;
+            if (dataSize <= 0) break;
+            final long chunks = (length + (long) dataSize - 1) / dataSize;
+            final long total = chunks * sizes[i];
+            if ((total - length) * 100 <= total * maxWastePercent) return sizes[i];
+            if (total < bestTotal) {
+                best = sizes[i];
+                bestTotal = total;
+            }
+        }
+        return best;
+    }
+}
@@ -91,6 +91,17 @@ public class EVCacheConfig {
         return prop;
     }
 
+    public ChainedDynamicProperty.LongProperty getChainedLongProperty(String overrideKey, String primaryKey,
+            long defaultValue) {
+        final String mapKey = overrideKey + primaryKey;
+        ChainedDynamicProperty.LongProperty prop = (ChainedDynamicProperty.LongProperty) fastPropMap.get(mapKey);
+        if (prop != null) return prop;
+
+        prop = new ChainedDynamicProperty.LongProperty(overrideKey, new DynamicLongProperty(primaryKey, defaultValue));
+        fastPropMap.put(mapKey, prop);
+        return prop;
+    }
+
     public ChainedDynamicProperty.StringProperty getChainedStringProperty(String overrideKey, String primaryKey,
             String defaultValue) {
         final String mapKey = overrideKey + primaryKey;
@@ -23,6 +23,8 @@ import com.netflix.evcache.EVCacheGetOperationListener;
 import com.netflix.evcache.EVCacheLatch;
 import com.netflix.evcache.metrics.EVCacheMetricsFactory;
 import com.netflix.evcache.operation.EVCacheBulkGetFuture;
+import com.netflix.evcache.operation.EVCacheBulkTouchFuture;
+import com.netflix.evcache.operation.EVCacheDecodePolicy;
 import com.netflix.evcache.operation.EVCacheLatchImpl;
 import com.netflix.evcache.operation.EVCacheOperationFuture;
 import com.netflix.evcache.pool.EVCacheClient;
@@ -46,6 +48,7 @@ import net.spy.memcached.ops.StatusCode;
 import net.spy.memcached.ops.StoreOperation;
 import net.spy.memcached.ops.StoreType;
 import net.spy.memcached.protocol.binary.BinaryOperationFactory;
+import net.spy.memcached.protocol.binary.EVCacheMultiTouchOperationImpl;
 import net.spy.memcached.transcoders.Transcoder;
 import net.spy.memcached.util.StringUtils;
 
@@ -60,6 +63,7 @@ public class EVCacheMemcachedClient extends MemcachedClient {
     private final ChainedDynamicProperty.IntProperty readTimeout;
     private final ServerGroup serverGroup;
     private final EVCacheClient client;
+    private final EVCacheDecodePolicy decodePolicy;
     private DistributionSummary getDataSize, bulkDataSize, getAndTouchDataSize;
 
     public EVCacheMemcachedClient(ConnectionFactory cf, List<InetSocketAddress> addrs,
@@ -68,6 +72,7 @@ public class EVCacheMemcachedClient extends MemcachedClient {
         super(cf, addrs, true);
         this.id = id;
         this.appName = appName;
+        this.decodePolicy = EVCacheDecodePolicy.getInstance(appName);
         this.zone = zone;
         this.readTimeout = readTimeout;
         this.serverGroup = serverGroup;
@@ -94,7 +99,9 @@ public class EVCacheMemcachedClient extends MemcachedClient {
 
             public void receivedStatus(OperationStatus status) {
                 try {
-                    if (val != null) {
+                    if (val instanceof EVCacheDecodePolicy.Task) {
+                        rv.setValueFuture(val, status);
+                    } else if (val != null) {
                         rv.set(val.get(), status);
                     } else {
                         rv.set(null, status);
@@ -119,14 +126,14 @@ public class EVCacheMemcachedClient extends MemcachedClient {
                         throw new RuntimeException("TranscoderSevice is null. Not able to decode");
                     } else {
                         final Transcoder<T> t = (Transcoder<T>) getTranscoder();
-                        val = tcService.decode(t, new CachedData(flags, data, t.getMaxSize()));
+                        val = decodePolicy.decode(tcService, t, new CachedData(flags, data, t.getMaxSize()));
                     }
                 } else {
                     if (tcService == null) {
                         log.error("tcService is null, will not be able to decode");
                         throw new RuntimeException("TranscoderSevice is null. Not able to decode");
                     } else {
-                        val = tcService.decode(tc, new CachedData(flags, data, tc.getMaxSize()));
+                        val = decodePolicy.decode(tcService, tc, new CachedData(flags, data, tc.getMaxSize()));
                     }
                 }
             }
@@ -184,7 +191,7 @@ public class EVCacheMemcachedClient extends MemcachedClient {
                 	if (bulkDataSize != null) bulkDataSize.record(data.length);
                 }
 
-                m.put(k, tcService.decode(tc, new CachedData(flags, data, tc.getMaxSize())));
+                m.put(k, decodePolicy.decode(tcService, tc, new CachedData(flags, data, tc.getMaxSize())));
             }
 
             @Override
@@ -339,6 +346,70 @@ public class EVCacheMemcachedClient extends MemcachedClient {
     }
     
     
+    /**
+     * Touches all the given keys with one future. The keys of each node are
+     * touched with a single operation that is written to the node in one
+     * go. The future is true only if all the keys were touched.
+     */
+    public OperationFuture<Boolean> touchBulk(Collection<String> keys, final int exp, EVCacheLatch evcacheLatch) {
+        final Map<MemcachedNode, Collection<String>> chunks = new HashMap<MemcachedNode, Collection<String>>();
+        final NodeLocator locator = mconn.getLocator();
+        int count = 0;
+        for (String key : keys) {
+            final MemcachedNode primaryNode = locator.getPrimary(key);
+            if (primaryNode.isActive()) {
+                Collection<String> ks = chunks.get(primaryNode);
+                if (ks == null) {
+                    ks = new ArrayList<String>();
+                    chunks.put(primaryNode, ks);
+                }
+                ks.add(key);
+                count++;
+            }
+        }
+
+        final CountDownLatch latch = new CountDownLatch(chunks.size());
+        final String firstKey = keys.isEmpty() ? null : keys.iterator().next();
+        final EVCacheBulkTouchFuture rv = new EVCacheBulkTouchFuture(firstKey, latch, new AtomicReference<Boolean>(null), operationTimeout, executorService);
+        final boolean allActive = count == keys.size();
+        if (count == 0) {
+            rv.set(Boolean.valueOf(allActive), null);
+            return rv;
+        }
+
+        final AtomicInteger failures = new AtomicInteger(allActive ? 0 : 1);
+        final OperationCallback callback = new OperationCallback() {
+            @Override
+            public void receivedStatus(OperationStatus status) {
+                if (!status.isSuccess()) {
+                    failures.incrementAndGet();
+                    EVCacheMetricsFactory.getCounter(appName, null, serverGroup.getName(), appName + "-TouchBulkOperation-" + status.getStatusCode().name(), DataSourceType.COUNTER).increment();
+                }
+                rv.set(Boolean.valueOf(failures.get() == 0), status);
+            }
+
+            @Override
+            public void complete() {
+                latch.countDown();
+                if (latch.getCount() == 0) {
+                    if (failures.get() == 0) EVCacheMetricsFactory.getCounter(appName, null, serverGroup.getName(), appName + "-TouchBulkOperation-SUCCESS", DataSourceType.COUNTER).increment();
+                    rv.signalComplete();
+                }
+            }
+        };
+
+        final Map<MemcachedNode, Operation> mops = new HashMap<MemcachedNode, Operation>();
+        for (Map.Entry<MemcachedNode, Collection<String>> me : chunks.entrySet()) {
+            final Operation op = new EVCacheMultiTouchOperationImpl(me.getValue(), exp, callback);
+            rv.setOperation(op);
+            mops.put(me.getKey(), op);
+        }
+        mconn.checkState();
+        mconn.addOperations(mops);
+        if (evcacheLatch != null && evcacheLatch instanceof EVCacheLatchImpl && !client.isInWriteOnly()) ((EVCacheLatchImpl) evcacheLatch).addFuture(rv);
+        return rv;
+    }
+
     public <T> OperationFuture<Boolean> asyncAppendOrAdd(final String key, int exp, CachedData co, EVCacheLatch evcacheLatch) {
         final CountDownLatch latch = new CountDownLatch(1);
         final OperationFuture<Boolean> rv = new EVCacheOperationFuture<Boolean>(key, latch, new AtomicReference<Boolean>(null), operationTimeout, executorService, appName, serverGroup, "LatencyAoA" );
@@ -0,0 +1,101 @@
+package net.spy.memcached.protocol.binary;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import net.spy.memcached.KeyUtil;
+import net.spy.memcached.ops.OperationCallback;
+import net.spy.memcached.ops.OperationState;
+import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.ops.StatusCode;
+
+/**
+ * Touches all the given keys of a node with one operation. The touch of each
+ * key is written in the same buffer followed by a noop, so that the node gets
+ * them in one write and the operation completes when the response to the noop
+ * is read. The callback gets a status for each key and is completed once.
+ */
+public class EVCacheMultiTouchOperationImpl extends MultiKeyOperationImpl {
+
+    private static final byte CMD_TOUCH = 0x1c;
+    private static final byte CMD_NOOP = 0x0a;
+    private static final int EXTRA_LEN = 4;
+
+    private final Map<Integer, String> keys = new HashMap<Integer, String>();
+    private final Map<Integer, byte[]> bkeys = new HashMap<Integer, byte[]>();
+    private final int terminalOpaque = generateOpaque();
+    private final int exp;
+
+    public EVCacheMultiTouchOperationImpl(Collection<String> k, int exp, OperationCallback cb) {
+        super(DUMMY_OPCODE, -1, cb);
+        this.exp = exp;
+        for (String key : new LinkedHashSet<String>(k)) {
+            final Integer opaque = Integer.valueOf(generateOpaque());
+            keys.put(opaque, key);
+            bkeys.put(opaque, KeyUtil.getKeyBytes(key));
+            synchronized (vbmap) {
+                vbmap.put(key, Short.valueOf((short) 0));
+            }
+        }
+    }
+
+    @Override
+    public void initialize() {
+        int size = (1 + keys.size()) * MIN_RECV_PACKET + keys.size() * EXTRA_LEN;
+        for (byte[] b : bkeys.values()) {
+            size += b.length;
+        }
+        final ByteBuffer bb = ByteBuffer.allocate(size);
+        for (Map.Entry<Integer, byte[]> me : bkeys.entrySet()) {
+            final byte[] keyBytes = me.getValue();
+            bb.put(REQ_MAGIC);
+            bb.put(CMD_TOUCH);
+            bb.putShort((short) keyBytes.length);
+            bb.put((byte) EXTRA_LEN);
+            bb.put((byte) 0); // data type
+            bb.putShort(vbmap.get(keys.get(me.getKey())).shortValue());
+            bb.putInt(EXTRA_LEN + keyBytes.length);
+            bb.putInt(me.getKey().intValue());
+            bb.putLong(0); // cas
+            bb.putInt(exp);
+            bb.put(keyBytes);
+        }
+        bb.put(REQ_MAGIC);
+        bb.put(CMD_NOOP);
+        bb.putShort((short) 0);
+        bb.put((byte) 0);
+        bb.put((byte) 0);
+        bb.putShort((short) 0);
+        bb.putInt(0);
+        bb.putInt(terminalOpaque);
+        bb.putLong(0);
+        bb.flip();
+        setBuffer(bb);
+    }
+
+    @Override
+    protected void finishedPayload(byte[] pl) throws IOException {
+        if (responseOpaque == terminalOpaque) {
+            transitionState(OperationState.COMPLETE);
+        } else {
+            final StatusCode statusCode = StatusCode.fromBinaryCode(errorCode);
+            final String message = (errorCode == SUCCESS) ? "OK" : new String(pl);
+            getCallback().receivedStatus(new OperationStatus(errorCode == SUCCESS, message, statusCode));
+        }
+        resetInput();
+    }
+
+    @Override
+    protected boolean opaqueIsValid() {
+        return responseOpaque == terminalOpaque || keys.containsKey(Integer.valueOf(responseOpaque));
+    }
+
+    @Override
+    public String toString() {
+        return "Cmd: touch Keys: " + keys.values() + " Exp: " + exp;
+    }
+}
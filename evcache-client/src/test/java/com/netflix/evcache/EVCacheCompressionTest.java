@@ -0,0 +1,153 @@
+package com.netflix.evcache;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+import com.netflix.config.ConfigurationManager;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+
+public class EVCacheCompressionTest {
+
+    @Test
+    public void valuesWrittenWithAnyCodecAreReadByEveryTranscoder() {
+        final Random random = new Random(1);
+        final ArrayList<String> list = new ArrayList<String>();
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            list.add("value_" + random.nextInt(100));
+            text.append("text_").append(random.nextInt(100));
+        }
+        final byte[] bytes = text.toString().getBytes();
+
+        for (EVCacheCompression writer : EVCacheCompression.values()) {
+            // needs a dictionary, see below
+            if (writer == EVCacheCompression.ZSTD_DICT) continue;
+            final EVCacheTranscoder encoder = new EVCacheTranscoder(Integer.MAX_VALUE, 120, writer);
+            final CachedData serialized = encoder.encode(list);
+            final CachedData data = encoder.encode(bytes);
+            assertEquals(EVCacheCompression.fromFlags(serialized.getFlags()), writer);
+            assertEquals(EVCacheCompression.fromFlags(data.getFlags()), writer);
+
+            for (EVCacheCompression reader : EVCacheCompression.values()) {
+                final EVCacheTranscoder decoder = new EVCacheTranscoder(Integer.MAX_VALUE, 120, reader);
+                assertEquals(decoder.decode(serialized), list, writer + " read by " + reader);
+                assertEquals((byte[]) decoder.decode(data), bytes, writer + " read by " + reader);
+                assertEquals(decoder.decode(serialized.getFlags(), new ByteArrayInputStream(serialized.getData()), serialized.getData().length), list);
+            }
+        }
+
+        // values under the threshold are not compressed
+        final CachedData small = new EVCacheTranscoder(Integer.MAX_VALUE, 120, EVCacheCompression.ZSTD).encode("small");
+        assertTrue((small.getFlags() & EVCacheCompression.MASK) == 0);
+        assertEquals(EVCacheCompression.fromName("lz4"), EVCacheCompression.LZ4);
+        assertEquals(EVCacheCompression.fromName("unknown"), EVCacheCompression.GZIP);
+    }
+
+    @Test
+    public void encodingWithBuffersWritesTheSameValuesAsSerializingTranscoder() {
+        final Random random = new Random(1);
+        final SerializingTranscoder serializing = new SerializingTranscoder(Integer.MAX_VALUE);
+        serializing.setCompressionThreshold(120);
+        final EVCacheTranscoder transcoder = new EVCacheTranscoder(Integer.MAX_VALUE, 120, EVCacheCompression.GZIP);
+        for (int size : new int[] { 10, 1000, 100000, 10 }) {
+            final ArrayList<String> list = new ArrayList<String>();
+            final StringBuilder text = new StringBuilder();
+            for (int i = 0; i < size; i++) {
+                list.add("value_" + random.nextInt(100));
+                text.append("text_").append(random.nextInt(100));
+            }
+            for (Object value : new Object[] { list, text.toString(), text.toString().getBytes(), Long.valueOf(size) }) {
+                final CachedData expected = serializing.encode(value);
+                final CachedData cd = transcoder.encode(value);
+                assertEquals(cd.getFlags(), expected.getFlags());
+                // the os byte of the gzip header depends on the jdk
+                if ((cd.getFlags() & 2) == 0) assertEquals(cd.getData(), expected.getData());
+                assertEquals(serializing.decode(cd), serializing.decode(expected));
+            }
+        }
+    }
+
+    @Test
+    public void dictionaryCompressionReadsEveryLoadedVersion() throws Exception {
+        final Random random = new Random(1);
+        final EVCacheZstdDictionaryTrainer trainer1 = new EVCacheZstdDictionaryTrainer(1024 * 1024, 8 * 1024);
+        final EVCacheZstdDictionaryTrainer trainer2 = new EVCacheZstdDictionaryTrainer(1024 * 1024, 8 * 1024);
+        for (int i = 0; i < 2000; i++) {
+            trainer1.addSample(document(random));
+            trainer2.addSample(document(random));
+        }
+
+        final File dir = Files.createTempDirectory("evcache-dictionaries").toFile();
+        dir.deleteOnExit();
+        Files.write(new File(dir, "1.dict").toPath(), trainer1.train());
+        ConfigurationManager.getConfigInstance().setProperty("DICT_TEST.compression.zstd.dictionary.dir", dir.getAbsolutePath());
+        final EVCacheZstdDictionaries version1 = EVCacheZstdDictionaries.getInstance("DICT_TEST");
+        assertEquals(version1.getVersion(), 1);
+
+        final Map<Integer, byte[]> dictionaries = new HashMap<Integer, byte[]>();
+        dictionaries.put(Integer.valueOf(1), Files.readAllBytes(new File(dir, "1.dict").toPath()));
+        dictionaries.put(Integer.valueOf(2), trainer2.train());
+        final EVCacheZstdDictionaries version2 = new EVCacheZstdDictionaries(dictionaries, 2, 1);
+
+        final String value = document(random);
+        final CachedData old = new EVCacheTranscoder(EVCacheCompression.ZSTD_DICT, version1).encode(value);
+        final CachedData cd = new EVCacheTranscoder(EVCacheCompression.ZSTD_DICT, version2).encode(value);
+        assertEquals(EVCacheCompression.fromFlags(cd.getFlags()), EVCacheCompression.ZSTD_DICT);
+        assertTrue(cd.getData().length < new EVCacheTranscoder(Integer.MAX_VALUE, 120, EVCacheCompression.ZSTD).encode(value).getData().length);
+
+        final EVCacheTranscoder reader = new EVCacheTranscoder(EVCacheCompression.GZIP, version2);
+        assertEquals(reader.decode(old), value);
+        assertEquals(reader.decode(cd), value);
+        // version 2 is not known to the first one
+        assertNull(new EVCacheTranscoder(EVCacheCompression.GZIP, version1).decode(cd));
+        // falls back to zstd without a dictionary
+        assertEquals(new EVCacheTranscoder(EVCacheCompression.ZSTD_DICT).getCompression(), EVCacheCompression.ZSTD);
+    }
+
+    private static String document(Random random) {
+        return "id=" + random.nextInt(1000000) + ";type=movie;title=title " + random.nextInt(1000) + ";rating=" + random.nextInt(5)
+                + ";genres=drama,comedy,action;locale=en-US;artwork=https://example.com/artwork/" + random.nextInt(100000) + ".jpg;available=true";
+    }
+
+    @Test
+    public void adaptiveCompressionTurnsOffForValuesThatDoNotCompress() {
+        ConfigurationManager.getConfigInstance().setProperty("ADAPTIVE_TEST.compression.adaptive", "true");
+        ConfigurationManager.getConfigInstance().setProperty("ADAPTIVE_TEST.compression.adaptive.window", "10");
+        ConfigurationManager.getConfigInstance().setProperty("ADAPTIVE_TEST.compression.adaptive.sample.percent", "0");
+        final EVCacheTranscoder transcoder = new EVCacheTranscoder("ADAPTIVE_TEST", Integer.MAX_VALUE, Integer.MAX_VALUE, EVCacheCompression.ZSTD, null);
+        final Random random = new Random(1);
+
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 4096; i++) {
+            text.append((char) ('a' + random.nextInt(4)));
+        }
+        for (int i = 0; i < 20; i++) {
+            final byte[] bytes = new byte[4096];
+            random.nextBytes(bytes);
+            transcoder.encode(bytes);
+        }
+        // the random values of this size are no longer compressed, the threshold is ignored
+        final byte[] bytes = new byte[4096];
+        random.nextBytes(bytes);
+        assertEquals(transcoder.encode(bytes).getData().length, bytes.length);
+        assertTrue(transcoder.encode("small").getData().length < 64);
+
+        // strings of the same size are still compressed
+        final CachedData cd = transcoder.encode(text.toString());
+        assertTrue(cd.getData().length < text.length() / 2);
+        assertEquals(transcoder.decode(cd), text.toString());
+    }
+}
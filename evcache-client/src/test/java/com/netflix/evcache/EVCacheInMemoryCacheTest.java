@@ -0,0 +1,369 @@
+package com.netflix.evcache;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+import com.netflix.config.ConfigurationManager;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.Transcoder;
+
+public class EVCacheInMemoryCacheTest {
+
+    @Test
+    public void weightedCache_tracksAndBoundsEncodedSize() {
+        final String app = "EVCACHE_INMEMORY_WEIGHT_TEST";
+        ConfigurationManager.getConfigInstance().setProperty(app + ".inmemory.cache.weight", 10000);
+        ConfigurationManager.getConfigInstance().setProperty(app + ".inmemory.cache.duration.ms", 60000);
+        final EVCacheInMemoryCache<String> cache = new EVCacheInMemoryCache<String>(app);
+
+        // random data so the transcoder does not compress it
+        final Random random = new Random(1);
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) sb.append((char) ('a' + random.nextInt(26)));
+        final String value = sb.toString();
+
+        cache.put("key_0", value);
+        assertEquals(cache.get("key_0"), value);
+        assertTrue(cache.getWeight() > "key_0".length());
+
+        for (int i = 1; i < 100; i++) {
+            cache.put("key_" + i, value);
+        }
+        assertTrue(cache.getWeight() <= 10000, "weight " + cache.getWeight() + " exceeds the limit");
+
+        cache.delete("key_99");
+        assertNull(cache.get("key_99"));
+    }
+
+    @Test
+    public void weightedCache_weighsReadValuesByTheirDataLength() {
+        final String app = "EVCACHE_INMEMORY_READ_WEIGHT_TEST";
+        ConfigurationManager.getConfigInstance().setProperty(app + ".inmemory.cache.weight", 10000);
+        ConfigurationManager.getConfigInstance().setProperty(app + ".inmemory.cache.duration.ms", 60000);
+        final AtomicInteger encodes = new AtomicInteger(0);
+        final EVCacheTranscoder transcoder = new EVCacheTranscoder() {
+            @Override
+            public CachedData encode(Object o) {
+                encodes.incrementAndGet();
+                return super.encode(o);
+            }
+        };
+        final EVCacheInMemoryCache<Object> cache = new EVCacheInMemoryCache<Object>(app, transcoder);
+        final CachedData cd = new EVCacheTranscoder().encode("value");
+
+        final Transcoder<Object> tc = cache.getWeighingTranscoder(transcoder);
+        final Object value = tc.decode(cd);
+        cache.put("k\u00e9y", value, tc);
+        assertEquals(cache.get("k\u00e9y"), "value");
+        assertEquals(encodes.get(), 0);
+        assertEquals(cache.getWeight(), "k\u00e9y".getBytes(java.nio.charset.StandardCharsets.UTF_8).length + cd.getData().length);
+    }
+
+    @Test
+    public void offHeapCache_evictsOldestSlab() {
+        final String app = "EVCACHE_INMEMORY_OFFHEAP_TEST";
+        ConfigurationManager.getConfigInstance().setProperty(app + ".inmemory.cache.offheap.enabled", true);
+        ConfigurationManager.getConfigInstance().setProperty(app + ".inmemory.cache.offheap.size", 4096);
+        ConfigurationManager.getConfigInstance().setProperty(app + ".inmemory.cache.offheap.slab.size", 1024);
+        ConfigurationManager.getConfigInstance().setProperty(app + ".inmemory.cache.duration.ms", 60000);
+        final EVCacheInMemoryCache<Object> cache = new EVCacheInMemoryCache<Object>(app);
+
+        cache.put("key_0", "value_0");
+        assertEquals(cache.get("key_0", new EVCacheTranscoder()), "value_0");
+
+        final Random random = new Random(1);
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 300; i++) sb.append((char) ('a' + random.nextInt(26)));
+        final String value = sb.toString();
+        for (int i = 1; i < 20; i++) {
+            cache.put("key_" + i, value);
+        }
+        assertNull(cache.get("key_0"));
+        assertEquals(cache.get("key_19"), value);
+        assertTrue(cache.getWeight() <= 4096, "used bytes " + cache.getWeight() + " exceeds the limit");
+
+        cache.delete("key_19");
+        assertNull(cache.get("key_19"));
+    }
+
+    @Test
+    public void offHeapStore_recyclesOnlyTheKeysOfTheOldestSlab() {
+        final EVCacheOffHeapStore store = new EVCacheOffHeapStore("EVCACHE_OFFHEAP_STORE_TEST", 300, 100);
+        final CachedData cd = new CachedData(0, new byte[40], Integer.MAX_VALUE);
+        // 2 entries per slab, key_0 is written again to the last slab
+        for (int i = 0; i < 5; i++) {
+            store.put("key_" + i, cd, 0);
+        }
+        store.put("key_0", cd, 0);
+        store.put("key_5", cd, 0);
+        assertNull(store.get("key_1"));
+        assertTrue(store.get("key_0") != null);
+        assertTrue(store.get("key_2") != null);
+        assertEquals(store.stats().evictionCount(), 1);
+
+        store.close();
+        assertNull(store.get("key_2"));
+        assertTrue(!store.put("key_6", cd, 0));
+        assertEquals(store.getUsedBytes(), 0);
+    }
+
+    @Test
+    public void tinyLfuCache_keepsHotKeysDuringScan() {
+        final String app = "EVCACHE_INMEMORY_TINYLFU_TEST";
+        ConfigurationManager.getConfigInstance().setProperty(app + ".inmemory.cache.policy", "TINYLFU");
+        ConfigurationManager.getConfigInstance().setProperty(app + ".inmemory.cache.size", 100);
+        ConfigurationManager.getConfigInstance().setProperty(app + ".inmemory.cache.duration.ms", 60000);
+        final EVCacheInMemoryCache<String> cache = new EVCacheInMemoryCache<String>(app);
+
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 10; i++) {
+                if (cache.get("hot_" + i) == null) cache.put("hot_" + i, "value_" + i);
+            }
+        }
+        // an LRU of the same size would have evicted the hot keys by now
+        for (int i = 0; i < 400; i++) {
+            if (cache.get("scan_" + i) == null) cache.put("scan_" + i, "value_" + i);
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals(cache.get("hot_" + i), "value_" + i);
+        }
+    }
+
+    @Test
+    public void tinyLfuCache_staysBoundedUnderConcurrentReadsAndWrites() throws Exception {
+        final EVCacheTinyLfuCache<String, String> cache = new EVCacheTinyLfuCache<String, String>(100, 0, null);
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread(() -> {
+                final Random random = new Random(seed);
+                for (int i = 0; i < 20000; i++) {
+                    final String key = "key_" + random.nextInt(500);
+                    if (cache.getIfPresent(key) == null) cache.put(key, key);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(cache.size() <= 100, "size " + cache.size());
+        assertEquals(cache.stats().requestCount(), 4 * 20000);
+
+        // the views of the Guava cache interface are supported
+        assertEquals(cache.get("loaded", () -> "value"), "value");
+        assertEquals(cache.asMap().get("loaded"), "value");
+        assertEquals(cache.asMap().putIfAbsent("loaded", "other"), "value");
+        int entries = 0;
+        for (Map.Entry<String, String> entry : cache.asMap().entrySet()) {
+            assertEquals(cache.asMap().get(entry.getKey()), entry.getValue());
+            entries++;
+        }
+        assertEquals(entries, cache.size());
+        assertEquals(cache.asMap().remove("loaded"), "value");
+        assertNull(cache.getIfPresent("loaded"));
+    }
+
+    @Test
+    public void refreshAhead_reloadsOnceInBackground() throws Exception {
+        final String app = "EVCACHE_INMEMORY_REFRESH_TEST";
+        ConfigurationManager.getConfigInstance().setProperty(app + ".inmemory.cache.refresh.percent", 50);
+        ConfigurationManager.getConfigInstance().setProperty(app + ".inmemory.cache.duration.ms", 1000);
+        final AtomicInteger loads = new AtomicInteger(0);
+        final EVCacheInMemoryCache<String> cache = new EVCacheInMemoryCache<String>(app, null, (key, tc) -> {
+            loads.incrementAndGet();
+            return "value_2";
+        });
+
+        cache.put("key", "value_1");
+        assertEquals(cache.get("key"), "value_1");
+        assertEquals(loads.get(), 0);
+
+        Thread.sleep(600);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(cache.get("key") != null);
+        }
+        for (int i = 0; i < 50 && !"value_2".equals(cache.get("key")); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(cache.get("key"), "value_2");
+        assertEquals(loads.get(), 1);
+    }
+
+    @Test
+    public void refreshAhead_doesNotOverwriteAConcurrentPut() throws Exception {
+        final String app = "EVCACHE_INMEMORY_REFRESH_RACE_TEST";
+        ConfigurationManager.getConfigInstance().setProperty(app + ".inmemory.cache.refresh.percent", 10);
+        ConfigurationManager.getConfigInstance().setProperty(app + ".inmemory.cache.duration.ms", 1000);
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch loaded = new CountDownLatch(1);
+        final EVCacheInMemoryCache<String> cache = new EVCacheInMemoryCache<String>(app, null, (key, tc) -> {
+            loading.countDown();
+            loaded.await();
+            return "stale";
+        });
+
+        cache.put("key", "value_1");
+        Thread.sleep(150);
+        assertEquals(cache.get("key"), "value_1");
+        assertTrue(loading.await(1, TimeUnit.SECONDS));
+        cache.put("key", "value_2");
+        loaded.countDown();
+        Thread.sleep(100);
+        assertEquals(cache.get("key"), "value_2");
+
+        cache.delete("key");
+        Thread.sleep(50);
+        assertNull(cache.get("key"));
+    }
+
+    @Test
+    public void resize_keepsTheMostRecentlyReadEntries() throws Exception {
+        final String app = "EVCACHE_INMEMORY_RESIZE_TEST";
+        ConfigurationManager.getConfigInstance().setProperty(app + ".inmemory.cache.size", 100);
+        ConfigurationManager.getConfigInstance().setProperty(app + ".inmemory.cache.duration.ms", 60000);
+        final EVCacheInMemoryCache<String> cache = new EVCacheInMemoryCache<String>(app);
+
+        for (int i = 0; i < 20; i++) {
+            cache.put("key_" + i, "value_" + i);
+        }
+
+        ConfigurationManager.getConfigInstance().setProperty(app + ".inmemory.cache.duration.ms", 120000);
+        for (int i = 0; i < 20; i++) {
+            assertEquals(cache.get("key_" + i), "value_" + i);
+        }
+
+        Thread.sleep(5);
+        cache.get("key_0");
+        ConfigurationManager.getConfigInstance().setProperty(app + ".inmemory.cache.size", 10);
+        assertEquals(cache.get("key_0"), "value_0");
+    }
+
+    @Test
+    public void resize_migratesTheTinyLfuCache() {
+        final String app = "EVCACHE_INMEMORY_TINYLFU_RESIZE_TEST";
+        ConfigurationManager.getConfigInstance().setProperty(app + ".inmemory.cache.policy", "TINYLFU");
+        ConfigurationManager.getConfigInstance().setProperty(app + ".inmemory.cache.size", 100);
+        ConfigurationManager.getConfigInstance().setProperty(app + ".inmemory.cache.duration.ms", 60000);
+        final EVCacheInMemoryCache<String> cache = new EVCacheInMemoryCache<String>(app);
+
+        for (int i = 0; i < 50; i++) {
+            cache.put("key_" + i, "value_" + i);
+        }
+        ConfigurationManager.getConfigInstance().setProperty(app + ".inmemory.cache.size", 200);
+        for (int i = 0; i < 50; i++) {
+            assertEquals(cache.get("key_" + i), "value_" + i);
+        }
+
+        ConfigurationManager.getConfigInstance().setProperty(app + ".inmemory.cache.size", 20);
+        int found = 0;
+        for (int i = 0; i < 50; i++) {
+            if (cache.get("key_" + i) != null) found++;
+        }
+        assertTrue(found > 0 && found <= 20, found + " entries were kept");
+
+        cache.delete("key_49");
+        assertNull(cache.get("key_49"));
+        cache.put("key_49", "value");
+        assertEquals(cache.get("key_49"), "value");
+    }
+
+    @Test
+    public void offHeapStore_resizesInPlace() {
+        final EVCacheOffHeapStore store = new EVCacheOffHeapStore("EVCACHE_OFFHEAP_RESIZE_TEST", 300, 100);
+        final CachedData cd = new CachedData(0, new byte[40], Integer.MAX_VALUE);
+        // 2 entries per slab, 3 slabs
+        for (int i = 0; i < 6; i++) {
+            store.put("key_" + i, cd, 0);
+        }
+
+        // the new slabs are used before the oldest one is recycled
+        store.resize(500);
+        for (int i = 6; i < 10; i++) {
+            store.put("key_" + i, cd, 0);
+        }
+        for (int i = 0; i < 10; i++) {
+            assertTrue(store.get("key_" + i) != null, "key_" + i);
+        }
+        store.put("key_10", cd, 0);
+        assertNull(store.get("key_0"));
+        assertEquals(store.getUsedBytes(), 360);
+
+        // the oldest slabs are released, the newest ones are kept
+        store.resize(200);
+        assertNull(store.get("key_3"));
+        assertTrue(store.get("key_8") != null);
+        assertTrue(store.get("key_10") != null);
+        assertEquals(store.getUsedBytes(), 120);
+        store.put("key_11", cd, 0);
+        store.put("key_12", cd, 0);
+        assertNull(store.get("key_8"));
+        assertTrue(store.get("key_12") != null);
+        store.close();
+    }
+
+    @Test
+    public void cacheName_overridesAppConfigAndSharesBudgetByGhostHits() throws Exception {
+        final String app = "EVCACHE_INMEMORY_BUDGET_TEST";
+        ConfigurationManager.getConfigInstance().setProperty(app + ".inmemory.cache.duration.ms", 60000);
+        ConfigurationManager.getConfigInstance().setProperty(app + ".cold.inmemory.cache.duration.ms", 1);
+        final EVCacheInMemoryCache<String> hot = new EVCacheInMemoryCache<String>(app, "hot", null, null);
+        final EVCacheInMemoryCache<String> cold = new EVCacheInMemoryCache<String>(app, "cold", null, null);
+
+        hot.put("key", "value");
+        cold.put("key", "value");
+        Thread.sleep(5);
+        assertEquals(hot.get("key"), "value");
+        assertNull(cold.get("key"));
+
+        final long budget = 64 * 1024;
+        ConfigurationManager.getConfigInstance().setProperty("evcache.inmemory.cache.budget", budget);
+        try {
+            assertTrue(hot.getBudgetWeight() > 0);
+            final long initialShare = hot.getBudgetWeight();
+
+            // random data so the transcoder does not compress it
+            final Random random = new Random(1);
+            final StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 500; i++) sb.append((char) ('a' + random.nextInt(26)));
+            final String value = sb.toString();
+            for (int i = 0; i < 200; i++) {
+                hot.put("key_" + i, value);
+            }
+            // the puts trim the cache in the background as well
+            for (int i = 0; i < 100 && hot.getWeight() > initialShare; i++) {
+                hot.trim();
+                Thread.sleep(10);
+            }
+            assertTrue(hot.getWeight() <= initialShare, "weight " + hot.getWeight() + " exceeds the share " + initialShare);
+            // the misses on the evicted keys are hits more memory would have given
+            for (int i = 0; i < 200; i++) {
+                hot.get("key_" + i);
+            }
+
+            EVCacheInMemoryCacheBudget.getInstance().rebalance();
+            assertTrue(hot.getBudgetWeight() > initialShare);
+            assertTrue(hot.getBudgetWeight() > cold.getBudgetWeight());
+            assertTrue(cold.getBudgetWeight() > 0);
+            assertTrue(hot.getBudgetWeight() + cold.getBudgetWeight() <= budget);
+
+            // a smaller share is applied in place
+            hot.put("key_new", "value_new");
+            hot.setBudgetWeight(hot.getBudgetWeight() / 2, budget);
+            assertEquals(hot.get("key_new"), "value_new");
+        } finally {
+            ConfigurationManager.getConfigInstance().setProperty("evcache.inmemory.cache.budget", 0);
+        }
+        assertEquals(hot.getBudgetWeight(), 0);
+    }
+}
@@ -0,0 +1,99 @@
+package com.netflix.evcache;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+import com.netflix.config.ConfigurationManager;
+
+import net.spy.memcached.CachedData;
+
+public class EVCacheKryoTranscoderTest {
+
+    private static final Map<Integer, Class<?>> CLASSES = Collections.<Integer, Class<?>> singletonMap(Integer.valueOf(100), Movie.class);
+
+    @Test
+    public void registeredClassesAreWrittenUsingKryo() {
+        final EVCacheKryoTranscoder transcoder = new EVCacheKryoTranscoder("KRYO_TEST", Integer.MAX_VALUE, Integer.MAX_VALUE, EVCacheCompression.GZIP, null, CLASSES);
+        final Movie movie = new Movie(1, "title", 4.5, new ArrayList<String>(Arrays.asList("drama", "comedy")));
+
+        final CachedData cd = transcoder.encode(movie);
+        assertTrue((cd.getFlags() & EVCacheKryoTranscoder.KRYO) != 0);
+        assertEquals(transcoder.decode(cd), movie);
+        final CachedData java = new EVCacheTranscoder(Integer.MAX_VALUE, Integer.MAX_VALUE, EVCacheCompression.GZIP).encode(movie);
+        assertTrue(cd.getData().length * 4 < java.getData().length, cd.getData().length + " bytes with Kryo, " + java.getData().length + " bytes with Java");
+
+        // values written using java serialization are still read
+        assertEquals(transcoder.decode(java), movie);
+        assertEquals(transcoder.decode(transcoder.encode("string")), "string");
+
+        // classes that are not registered are written using java serialization
+        final HashMap<String, Movie> unknown = new HashMap<String, Movie>();
+        unknown.put("movie", movie);
+        final CachedData fallback = transcoder.encode(Collections.singletonMap("movie", movie));
+        assertEquals(fallback.getFlags() & EVCacheKryoTranscoder.KRYO, 0);
+        assertEquals(transcoder.decode(fallback), unknown);
+
+        ConfigurationManager.getConfigInstance().setProperty("KRYO_TEST.transcoder.kryo.write", "false");
+        try {
+            assertEquals(transcoder.encode(movie).getFlags(), java.getFlags());
+        } finally {
+            ConfigurationManager.getConfigInstance().setProperty("KRYO_TEST.transcoder.kryo.write", "true");
+        }
+    }
+
+    @Test
+    public void compressedValuesAreReadFromStreams() {
+        final EVCacheKryoTranscoder transcoder = new EVCacheKryoTranscoder("KRYO_TEST", Integer.MAX_VALUE, 120, EVCacheCompression.ZSTD, null, CLASSES);
+        final ArrayList<Movie> movies = new ArrayList<Movie>();
+        for (int i = 0; i < 100; i++) {
+            movies.add(new Movie(i, "title " + i, i % 5, new ArrayList<String>(Collections.singletonList("drama"))));
+        }
+        final CachedData cd = transcoder.encode(movies);
+        assertEquals(EVCacheCompression.fromFlags(cd.getFlags()), EVCacheCompression.ZSTD);
+        assertEquals(transcoder.decode(cd.getFlags(), new ByteArrayInputStream(cd.getData()), cd.getData().length), movies);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void idsOfTheJdkClassesCanNotBeUsed() {
+        new EVCacheKryoTranscoder(Collections.<Integer, Class<?>> singletonMap(Integer.valueOf(20), Movie.class));
+    }
+
+    static class Movie implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final long id;
+        private final String title;
+        private final double rating;
+        private final List<String> genres;
+
+        Movie(long id, String title, double rating, List<String> genres) {
+            this.id = id;
+            this.title = title;
+            this.rating = rating;
+            this.genres = genres;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Movie)) return false;
+            final Movie other = (Movie) o;
+            return id == other.id && title.equals(other.title) && rating == other.rating && genres.equals(other.genres);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) id;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.netflix.evcache;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+import net.spy.memcached.CachedData;
+
+public class EVCacheLazyValueTest {
+
+    @Test
+    public void valuesAreDecodedOnceOnFirstAccess() {
+        final AtomicInteger decodes = new AtomicInteger();
+        final EVCacheTranscoder tc = new EVCacheTranscoder() {
+            @Override
+            public Object decode(CachedData d) {
+                decodes.incrementAndGet();
+                return super.decode(d);
+            }
+        };
+        final CachedData cd = tc.encode("value");
+        final EVCacheLazyValue<Object> value = new EVCacheLazyTranscoder<Object>(tc).decode(cd);
+        assertFalse(value.isDecoded());
+        assertEquals(value.getSize(), cd.getData().length);
+        assertEquals(decodes.get(), 0);
+
+        assertEquals(value.get(), "value");
+        assertEquals(value.get(), "value");
+        assertTrue(value.isDecoded());
+        assertEquals(decodes.get(), 1);
+    }
+}
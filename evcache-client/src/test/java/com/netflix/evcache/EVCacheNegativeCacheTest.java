@@ -0,0 +1,141 @@
+package com.netflix.evcache;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.Test;
+
+import com.netflix.config.ConfigurationManager;
+import com.netflix.evcache.pool.EVCacheClient;
+import com.netflix.evcache.pool.EVCacheClientPool;
+import com.netflix.evcache.pool.EVCacheClientPoolManager;
+import com.netflix.evcache.pool.EVCacheHotKeyTracker;
+
+import net.spy.memcached.transcoders.Transcoder;
+
+public class EVCacheNegativeCacheTest {
+
+    @Test
+    public void disabledByDefault() {
+        final EVCacheNegativeCache cache = new EVCacheNegativeCache("EVCACHE_NEGATIVE_DISABLED_TEST");
+        assertFalse(cache.isEnabled());
+        assertNull(cache.startRead("key"));
+        cache.put(null);
+        assertFalse(cache.isMiss("key"));
+    }
+
+    @Test
+    public void remembersAConfirmedMiss() {
+        final EVCacheNegativeCache cache = newCache("EVCACHE_NEGATIVE_MISS_TEST");
+        cache.put(cache.startRead("key"));
+        assertTrue(cache.isMiss("key"));
+        assertFalse(cache.isMiss("other"));
+
+        cache.invalidate("key");
+        assertFalse(cache.isMiss("key"));
+    }
+
+    @Test
+    public void doesNotRememberAFailedRead() {
+        final EVCacheNegativeCache cache = newCache("EVCACHE_NEGATIVE_FAILED_TEST");
+        final EVCacheNegativeCache.Read read = cache.startRead("key");
+        read.failed();
+        assertTrue(read.hasFailed());
+        cache.put(read);
+        assertFalse(cache.isMiss("key"));
+    }
+
+    @Test
+    public void doesNotRememberAMissReadBeforeAWrite() {
+        final EVCacheNegativeCache cache = newCache("EVCACHE_NEGATIVE_WRITE_TEST");
+        final EVCacheNegativeCache.Read read = cache.startRead("key");
+        // the write invalidates the key while the read is in flight
+        cache.invalidate("key");
+        cache.put(read);
+        assertFalse(cache.isMiss("key"));
+
+        // a read started after the write can be remembered
+        cache.put(cache.startRead("key"));
+        assertTrue(cache.isMiss("key"));
+    }
+
+    @Test
+    public void remembersThePartialMissOfACompleteBulkRead() throws Exception {
+        final String app = "EVCACHE_NEGATIVE_BULK_TEST";
+        final List<Collection<String>> fetched = new ArrayList<Collection<String>>();
+        final EVCacheImpl evcache = newEVCache(app, newClient(app, true, fetched));
+
+        Map<String, String> values = evcache.getBulk(Arrays.asList("hit", "miss"), null);
+        assertEquals(values.get("hit"), "value");
+        assertNull(values.get("miss"));
+
+        // only the hit is read again
+        values = evcache.getBulk(Arrays.asList("hit", "miss"), null);
+        assertEquals(values.get("hit"), "value");
+        assertNull(values.get("miss"));
+        assertEquals(fetched, Arrays.asList(Arrays.asList("hit", "miss"), Arrays.asList("hit")));
+    }
+
+    @Test
+    public void doesNotRememberTheMissOfAnIncompleteBulkRead() throws Exception {
+        final String app = "EVCACHE_NEGATIVE_INCOMPLETE_BULK_TEST";
+        final List<Collection<String>> fetched = new ArrayList<Collection<String>>();
+        final EVCacheImpl evcache = newEVCache(app, newClient(app, false, fetched));
+
+        evcache.getBulk(Arrays.asList("hit", "miss"), null);
+        evcache.getBulk(Arrays.asList("hit", "miss"), null);
+        assertEquals(fetched, Arrays.asList(Arrays.asList("hit", "miss"), Arrays.asList("hit", "miss")));
+    }
+
+    /*
+     * A client whose bulk reads return only the key "hit" and record the keys
+     * they were asked for.
+     */
+    private static EVCacheClient newClient(String app, boolean complete, List<Collection<String>> fetched) throws Exception {
+        final EVCacheClient client = mock(EVCacheClient.class);
+        when(client.getHotKeyTracker()).thenReturn(new EVCacheHotKeyTracker(app, "group"));
+        when(client.getBulk(anyCollectionOf(String.class), any(Transcoder.class), anyBoolean(), anyBoolean(), any(AtomicBoolean.class))).thenAnswer(new Answer<Map<String, String>>() {
+            @Override
+            public Map<String, String> answer(InvocationOnMock invocation) {
+                final Collection<String> keys = (Collection<String>) invocation.getArguments()[0];
+                fetched.add(new ArrayList<String>(keys));
+                ((AtomicBoolean) invocation.getArguments()[4]).set(complete);
+                final Map<String, String> values = new HashMap<String, String>();
+                if (keys.contains("hit")) values.put("hit", "value");
+                return values;
+            }
+        });
+        return client;
+    }
+
+    private static EVCacheImpl newEVCache(String app, EVCacheClient client) {
+        ConfigurationManager.getConfigInstance().setProperty(app + ".negative.cache.duration.ms", 60000);
+        final EVCacheClientPool pool = mock(EVCacheClientPool.class);
+        when(pool.getEVCacheClientForRead()).thenReturn(client);
+        final EVCacheClientPoolManager poolManager = mock(EVCacheClientPoolManager.class);
+        when(poolManager.getEVCacheClientPool(app)).thenReturn(pool);
+        return new EVCacheImpl(app, null, 60, null, false, false, poolManager);
+    }
+
+    private static EVCacheNegativeCache newCache(String app) {
+        ConfigurationManager.getConfigInstance().setProperty(app + ".negative.cache.duration.ms", 60000);
+        return new EVCacheNegativeCache(app);
+    }
+}
@@ -0,0 +1,102 @@
+package com.netflix.evcache;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.testng.annotations.Test;
+
+import com.netflix.config.ChainedDynamicProperty;
+import com.netflix.evcache.pool.ChunkChecksum;
+import com.netflix.evcache.pool.EVCacheClient;
+import com.netflix.evcache.pool.EVCacheClientPool;
+import com.netflix.evcache.pool.EVCacheClientPoolManager;
+import com.netflix.evcache.util.EVCacheConfig;
+
+import net.spy.memcached.internal.OperationFuture;
+
+public class EVCacheStreamingSetTest {
+
+    private static final String APP = "EVCACHE_STREAMING_SET_TEST";
+
+    @Test
+    public void aReplicaWithoutChunkingLeavesTheValueInPlace() throws Exception {
+        final EVCacheClient enabled = newClient(true);
+        final EVCacheClient disabled = newClient(false);
+        final EVCacheLatch latch = newCache(enabled, disabled).set("key", new InputStream() {
+            @Override
+            public int read() {
+                return 0;
+            }
+        }, 100, 60, null);
+
+        assertEquals(latch.getPendingCount(), 0);
+        verifyNothingWritten(enabled);
+        verifyNothingWritten(disabled);
+    }
+
+    @Test
+    public void aFailedFirstReadLeavesTheValueInPlace() throws Exception {
+        final EVCacheClient first = newClient(true);
+        final EVCacheClient second = newClient(true);
+        newCache(first, second).set("key", new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("read failed");
+            }
+        }, 100, 60, null);
+
+        verifyNothingWritten(first);
+        verifyNothingWritten(second);
+    }
+
+    @Test
+    public void aFailedChunkDeletesOnlyTheReplicasThatGotChunks() throws Exception {
+        final EVCacheClient written = newClient(true);
+        final EVCacheClient rejected = newClient(true);
+        when(written.setChunk(anyString(), anyInt(), any(byte[].class), anyInt())).thenReturn(mock(OperationFuture.class));
+        when(rejected.setChunk(anyString(), anyInt(), any(byte[].class), anyInt())).thenThrow(new EVCacheException("Write Queue Full"));
+        newCache(written, rejected).set("key", new InputStream() {
+            @Override
+            public int read() {
+                return 0;
+            }
+        }, 100, 60, null);
+
+        verify(written).delete("key");
+        verify(rejected, never()).delete(anyString());
+    }
+
+    private static void verifyNothingWritten(EVCacheClient client) throws Exception {
+        verify(client, never()).setChunk(anyString(), anyInt(), any(byte[].class), anyInt());
+        verify(client, never()).delete(anyString());
+    }
+
+    private static EVCacheClient newClient(boolean chunking) {
+        final EVCacheClient client = mock(EVCacheClient.class);
+        final String property = APP + "." + chunking + ".chunk.enabled";
+        final ChainedDynamicProperty.BooleanProperty enableChunking = EVCacheConfig.getInstance().getChainedBooleanProperty(property, property + ".default", Boolean.valueOf(chunking));
+        when(client.getEnableChunking()).thenReturn(enableChunking);
+        when(client.getChunkDataSize(anyString(), anyInt())).thenReturn(Integer.valueOf(40));
+        when(client.getServerGroupName()).thenReturn(chunking ? "enabled" : "disabled");
+        when(client.getChunkChecksumAlgorithm()).thenReturn(ChunkChecksum.CRC32);
+        return client;
+    }
+
+    private static EVCacheImpl newCache(EVCacheClient... clients) {
+        final EVCacheClientPool pool = mock(EVCacheClientPool.class);
+        when(pool.getEVCacheClientForWrite()).thenReturn(clients);
+        when(pool.getWriteOnlyEVCacheClients()).thenReturn(new EVCacheClient[0]);
+        final EVCacheClientPoolManager poolManager = mock(EVCacheClientPoolManager.class);
+        when(poolManager.getEVCacheClientPool(APP)).thenReturn(pool);
+        return new EVCacheImpl(APP, null, 60, null, false, false, poolManager);
+    }
+}
@@ -0,0 +1,189 @@
+package com.netflix.evcache.operation;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+import net.spy.memcached.internal.CheckedOperationTimeoutException;
+import net.spy.memcached.ops.OperationCallback;
+import net.spy.memcached.ops.OperationState;
+import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.ops.StatusCode;
+import net.spy.memcached.protocol.binary.EVCacheMultiTouchOperationImpl;
+
+public class EVCacheBulkTouchFutureTest {
+
+    private static final byte CMD_TOUCH = 0x1c;
+    private static final byte CMD_NOOP = 0x0a;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @AfterClass
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void touchesAllTheKeysOfANodeWithOneOperation() throws Exception {
+        final List<OperationStatus> statuses = new ArrayList<OperationStatus>();
+        final AtomicInteger completed = new AtomicInteger();
+        final EVCacheMultiTouchOperationImpl op = new EVCacheMultiTouchOperationImpl(Arrays.asList("key_00", "key_01", "key_02"), 60,
+                callback(statuses, completed, new CountDownLatch(1)));
+        op.initialize();
+
+        final Map<String, Integer> opaques = readTouches(op.getBuffer(), 60);
+        assertEquals(opaques.keySet(), new HashSet<String>(Arrays.asList("key_00", "key_01", "key_02", null)));
+
+        final ByteBuffer responses = ByteBuffer.allocate(1024);
+        response(responses, CMD_TOUCH, 0, opaques.get("key_00"));
+        response(responses, CMD_TOUCH, 1, opaques.get("key_01"));
+        response(responses, CMD_TOUCH, 0, opaques.get("key_02"));
+        response(responses, CMD_NOOP, 0, opaques.get(null));
+        responses.flip();
+        read(op, responses);
+
+        assertEquals(op.getState(), OperationState.COMPLETE);
+        assertEquals(completed.get(), 1);
+        assertEquals(statuses.size(), 3);
+        int failures = 0;
+        for (OperationStatus status : statuses) {
+            if (!status.isSuccess()) {
+                failures++;
+                assertEquals(status.getStatusCode(), StatusCode.ERR_NOT_FOUND);
+            }
+        }
+        assertEquals(failures, 1);
+    }
+
+    @Test
+    public void timesOutOnlyTheOperationsThatDidNotComplete() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(2);
+        final EVCacheBulkTouchFuture future = new EVCacheBulkTouchFuture("key_00", latch, new AtomicReference<Boolean>(null), 1000, executor);
+        final OperationCallback callback = callback(new ArrayList<OperationStatus>(), new AtomicInteger(), latch);
+        final EVCacheMultiTouchOperationImpl done = new EVCacheMultiTouchOperationImpl(Arrays.asList("key_00"), 60, callback);
+        final EVCacheMultiTouchOperationImpl pending = new EVCacheMultiTouchOperationImpl(Arrays.asList("key_01"), 60, callback);
+        future.setOperation(done);
+        future.setOperation(pending);
+        assertEquals(future.getOperations().size(), 2);
+
+        done.initialize();
+        final Map<String, Integer> opaques = readTouches(done.getBuffer(), 60);
+        final ByteBuffer responses = ByteBuffer.allocate(128);
+        response(responses, CMD_TOUCH, 0, opaques.get("key_00"));
+        response(responses, CMD_NOOP, 0, opaques.get(null));
+        responses.flip();
+        read(done, responses);
+        assertEquals(done.getState(), OperationState.COMPLETE);
+
+        assertFalse(future.isDone());
+        try {
+            future.get(10, TimeUnit.MILLISECONDS);
+            fail("the touch should have timed out");
+        } catch (CheckedOperationTimeoutException e) {
+            // expected
+        }
+        assertFalse(done.isTimedOut());
+        assertTrue(pending.isTimedOut());
+    }
+
+    @Test
+    public void cancelsAllTheOperations() {
+        final CountDownLatch latch = new CountDownLatch(2);
+        final EVCacheBulkTouchFuture future = new EVCacheBulkTouchFuture("key_00", latch, new AtomicReference<Boolean>(null), 1000, executor);
+        final OperationCallback callback = callback(new ArrayList<OperationStatus>(), new AtomicInteger(), latch);
+        final EVCacheMultiTouchOperationImpl first = new EVCacheMultiTouchOperationImpl(Arrays.asList("key_00"), 60, callback);
+        final EVCacheMultiTouchOperationImpl second = new EVCacheMultiTouchOperationImpl(Arrays.asList("key_01"), 60, callback);
+        future.setOperation(first);
+        future.setOperation(second);
+
+        future.cancel(true);
+        assertTrue(first.isCancelled());
+        assertTrue(second.isCancelled());
+        assertTrue(future.isCancelled());
+        assertTrue(future.isDone());
+    }
+
+    private static OperationCallback callback(List<OperationStatus> statuses, AtomicInteger completed, CountDownLatch latch) {
+        return new OperationCallback() {
+            @Override
+            public void receivedStatus(OperationStatus status) {
+                statuses.add(status);
+            }
+
+            @Override
+            public void complete() {
+                completed.incrementAndGet();
+                latch.countDown();
+            }
+        };
+    }
+
+    /*
+     * Returns the opaque of the touch of each key and of the terminating noop,
+     * which is mapped to the null key.
+     */
+    private static Map<String, Integer> readTouches(ByteBuffer buffer, int exp) {
+        final Map<String, Integer> opaques = new HashMap<String, Integer>();
+        while (buffer.hasRemaining()) {
+            assertEquals(buffer.get(), (byte) 0x80);
+            final byte cmd = buffer.get();
+            final int keyLength = buffer.getShort();
+            final int extraLength = buffer.get();
+            buffer.get();
+            buffer.getShort();
+            final int bodyLength = buffer.getInt();
+            final int opaque = buffer.getInt();
+            buffer.getLong();
+            if (cmd == CMD_NOOP) {
+                assertEquals(bodyLength, 0);
+                assertFalse(buffer.hasRemaining());
+                opaques.put(null, Integer.valueOf(opaque));
+            } else {
+                assertEquals(cmd, CMD_TOUCH);
+                assertEquals(extraLength, 4);
+                assertEquals(bodyLength, extraLength + keyLength);
+                assertEquals(buffer.getInt(), exp);
+                final byte[] key = new byte[keyLength];
+                buffer.get(key);
+                opaques.put(new String(key, StandardCharsets.US_ASCII), Integer.valueOf(opaque));
+            }
+        }
+        return opaques;
+    }
+
+    /*
+     * Reads the responses the way the connection does, one at a time until
+     * the operation is complete.
+     */
+    private static void read(EVCacheMultiTouchOperationImpl op, ByteBuffer responses) throws Exception {
+        while (responses.hasRemaining() && op.getState() != OperationState.COMPLETE) {
+            op.readFromBuffer(responses);
+        }
+        assertFalse(responses.hasRemaining());
+    }
+
+    private static void response(ByteBuffer buffer, byte cmd, int status, int opaque) {
+        final byte[] body = (status == 0) ? new byte[0] : "Not found".getBytes(StandardCharsets.US_ASCII);
+        buffer.put((byte) 0x81).put(cmd).putShort((short) 0).put((byte) 0).put((byte) 0).putShort((short) status)
+                .putInt(body.length).putInt(opaque).putLong(0).put(body);
+    }
+}
@@ -0,0 +1,127 @@
+package com.netflix.evcache.operation;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import com.netflix.config.ConfigurationManager;
+import com.netflix.evcache.EVCacheTranscoder;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.TranscodeService;
+import net.spy.memcached.transcoders.Transcoder;
+
+public class EVCacheDecodePolicyTest {
+
+    private static final TranscodeService TRANSCODE_SERVICE = new TranscodeService(true);
+
+    @Test
+    public void valuesAreDecodedByTheCallerOrThePool() throws Exception {
+        final EVCacheDecodePolicy policy = EVCacheDecodePolicy.getInstance("DECODE_TEST");
+        final ThreadRecordingTranscoder tc = new ThreadRecordingTranscoder();
+        final CachedData small = tc.encode("small");
+        final CachedData large = tc.encode(new String(new char[32 * 1024]).replace('\0', 'a'));
+
+        assertEquals(policy.getMode(), EVCacheDecodePolicy.Mode.DEFAULT);
+        assertFalse(policy.decode(TRANSCODE_SERVICE, tc, small) instanceof EVCacheDecodePolicy.Task);
+
+        ConfigurationManager.getConfigInstance().setProperty("DECODE_TEST.decode.mode", "caller");
+        Future<Object> future = policy.decode(TRANSCODE_SERVICE, tc, large);
+        assertTrue(future instanceof EVCacheDecodePolicy.Task);
+        assertFalse(future.isDone());
+        assertEquals(((String) future.get()).length(), 32 * 1024);
+        assertEquals(tc.thread, Thread.currentThread().getName());
+
+        // only the large values go to the pool
+        ConfigurationManager.getConfigInstance().setProperty("DECODE_TEST.decode.mode", "POOL");
+        assertEquals(policy.decode(TRANSCODE_SERVICE, tc, small).get(), "small");
+        assertEquals(tc.thread, Thread.currentThread().getName());
+        future = policy.decode(TRANSCODE_SERVICE, tc, large);
+        for (int i = 0; i < 100 && !future.isDone(); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(((String) future.get(1, TimeUnit.SECONDS)).length(), 32 * 1024);
+        assertTrue(tc.thread.startsWith("EVCacheDecoder-DECODE_TEST-"), tc.thread);
+    }
+
+    @Test
+    public void passThroughTranscodersAreNotWrapped() throws Exception {
+        final EVCacheDecodePolicy policy = EVCacheDecodePolicy.getInstance("DECODE_PASS_THROUGH_TEST");
+        ConfigurationManager.getConfigInstance().setProperty("DECODE_PASS_THROUGH_TEST.decode.mode", "POOL");
+        ConfigurationManager.getConfigInstance().setProperty("DECODE_PASS_THROUGH_TEST.decode.pool.min.size", "0");
+        final CachedData cd = new CachedData(0, new byte[1024], Integer.MAX_VALUE);
+
+        final Future<CachedData> future = policy.decode(TRANSCODE_SERVICE, new PassThroughTranscoder(), cd);
+        assertFalse(future instanceof EVCacheDecodePolicy.Task);
+        assertSame(future.get(), cd);
+    }
+
+    @Test
+    public void poolIsResizedAtRuntime() {
+        final EVCacheDecodePolicy policy = EVCacheDecodePolicy.getInstance("DECODE_RESIZE_TEST");
+        ConfigurationManager.getConfigInstance().setProperty("DECODE_RESIZE_TEST.decode.pool.size", "2");
+        ConfigurationManager.getConfigInstance().setProperty("DECODE_RESIZE_TEST.decode.pool.queue.size", "10");
+        final ThreadPoolExecutor pool = policy.getPool();
+        assertEquals(pool.getMaximumPoolSize(), 2);
+        assertEquals(pool.getQueue().remainingCapacity(), 10);
+
+        ConfigurationManager.getConfigInstance().setProperty("DECODE_RESIZE_TEST.decode.pool.size", "4");
+        assertSame(policy.getPool(), pool);
+        assertEquals(pool.getCorePoolSize(), 4);
+        assertEquals(pool.getMaximumPoolSize(), 4);
+        ConfigurationManager.getConfigInstance().setProperty("DECODE_RESIZE_TEST.decode.pool.size", "1");
+        assertEquals(pool.getCorePoolSize(), 1);
+        assertEquals(pool.getMaximumPoolSize(), 1);
+
+        ConfigurationManager.getConfigInstance().setProperty("DECODE_RESIZE_TEST.decode.pool.queue.size", "20");
+        final ThreadPoolExecutor resized = policy.getPool();
+        assertNotSame(resized, pool);
+        assertTrue(pool.isShutdown());
+        assertEquals(resized.getQueue().remainingCapacity(), 20);
+        assertEquals(resized.getMaximumPoolSize(), 1);
+    }
+
+    private static class PassThroughTranscoder implements Transcoder<CachedData>, EVCacheDecodePolicy.PassThrough {
+        @Override
+        public boolean asyncDecode(CachedData d) {
+            return false;
+        }
+
+        @Override
+        public CachedData encode(CachedData o) {
+            return o;
+        }
+
+        @Override
+        public CachedData decode(CachedData d) {
+            return d;
+        }
+
+        @Override
+        public int getMaxSize() {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    private static class ThreadRecordingTranscoder extends EVCacheTranscoder {
+        private volatile String thread;
+
+        ThreadRecordingTranscoder() {
+            super(Integer.MAX_VALUE, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public Object decode(CachedData d) {
+            thread = Thread.currentThread().getName();
+            return super.decode(d);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.netflix.evcache.operation;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+import com.netflix.evcache.pool.ServerGroup;
+
+import net.spy.memcached.internal.CheckedOperationTimeoutException;
+import net.spy.memcached.ops.Operation;
+import net.spy.memcached.ops.OperationStatus;
+import rx.schedulers.Schedulers;
+
+public class EVCacheOperationFutureTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @AfterClass
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void waitersGetTheValueOfTheOwnersOperation() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final EVCacheOperationFuture<String> future = newFuture(latch);
+        final Set<String> calls = recordCalls(future);
+
+        final List<Future<String>> waiters = new ArrayList<Future<String>>();
+        for (int i = 0; i < 8; i++) {
+            waiters.add(executor.submit(() -> future.await(1, TimeUnit.SECONDS, true)));
+        }
+        waiters.add(executor.submit(() -> future.await(1, TimeUnit.SECONDS, true, Schedulers.computation()).toBlocking().value()));
+        future.set("value", new OperationStatus(true, "END"));
+        latch.countDown();
+        future.signalComplete();
+        for (Future<String> waiter : waiters) {
+            assertEquals(waiter.get(1, TimeUnit.SECONDS), "value");
+        }
+        assertEquals(future.get(1, TimeUnit.SECONDS, true, false), "value");
+        assertFalse(calls.contains("timeOut"));
+    }
+
+    @Test
+    public void onlyTheOwnerTimesOutTheOperation() throws Exception {
+        final EVCacheOperationFuture<String> future = newFuture(new CountDownLatch(1));
+        final Set<String> calls = recordCalls(future);
+
+        assertNull(future.await(10, TimeUnit.MILLISECONDS, false));
+        try {
+            future.await(10, TimeUnit.MILLISECONDS, true);
+            fail("the wait should have timed out");
+        } catch (CheckedOperationTimeoutException e) {
+            // expected
+        }
+        assertNull(future.await(10, TimeUnit.MILLISECONDS, false, Schedulers.computation()).toBlocking().value());
+        assertFalse(calls.contains("timeOut"));
+
+        assertNull(future.get(10, TimeUnit.MILLISECONDS, false, true));
+        assertTrue(calls.contains("timeOut"));
+    }
+
+    private EVCacheOperationFuture<String> newFuture(CountDownLatch latch) {
+        return new EVCacheOperationFuture<String>("key", latch, new AtomicReference<String>(null), 1000, executor, "FUTURE_TEST", new ServerGroup("zone", "FUTURE_TEST"));
+    }
+
+    /*
+     * Sets an operation on the future that records the names of the methods
+     * called on it.
+     */
+    private static Set<String> recordCalls(EVCacheOperationFuture<String> future) {
+        final Set<String> calls = ConcurrentHashMap.newKeySet();
+        future.setOperation((Operation) Proxy.newProxyInstance(Operation.class.getClassLoader(), new Class<?>[] { Operation.class }, (proxy, method, args) -> {
+            calls.add(method.getName());
+            final Class<?> type = method.getReturnType();
+            if (type == boolean.class) return Boolean.FALSE;
+            if (type == int.class) return Integer.valueOf(0);
+            if (type == long.class) return Long.valueOf(0);
+            return null;
+        }));
+        return calls;
+    }
+}
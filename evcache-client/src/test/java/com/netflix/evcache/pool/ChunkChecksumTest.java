@@ -0,0 +1,43 @@
+package com.netflix.evcache.pool;
+
+import static org.testng.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Checksum;
+
+import org.testng.annotations.Test;
+
+public class ChunkChecksumTest {
+
+    @Test
+    public void knownValues() {
+        assertEquals(checksum(new ChunkChecksum.Crc32c(), "123456789"), 0xE3069283L);
+        assertEquals(checksum(ChunkChecksum.CRC32C.newChecksum(), "123456789"), 0xE3069283L);
+        assertEquals(checksum(ChunkChecksum.XXHASH64.newChecksum(), ""), 0xEF46DB3751D8E999L);
+        assertEquals(checksum(ChunkChecksum.XXHASH64.newChecksum(), "abc"), 0x44BC2CF5AD770999L);
+    }
+
+    @Test
+    public void streamingUpdatesMatchASingleUpdate() {
+        final byte[] data = new byte[1000];
+        new Random(1).nextBytes(data);
+        for (ChunkChecksum algorithm : ChunkChecksum.values()) {
+            final Checksum whole = algorithm.newChecksum();
+            whole.update(data, 0, data.length);
+
+            final Checksum parts = algorithm.newChecksum();
+            for (int i = 0; i < data.length; i += 7) {
+                parts.update(data, i, Math.min(7, data.length - i));
+            }
+            assertEquals(parts.getValue(), whole.getValue(), algorithm.name());
+            assertEquals(ChunkChecksum.fromId(algorithm.getId()), algorithm);
+        }
+    }
+
+    private static long checksum(Checksum checksum, String value) {
+        final byte[] data = value.getBytes(StandardCharsets.US_ASCII);
+        checksum.update(data, 0, data.length);
+        return checksum.getValue();
+    }
+}
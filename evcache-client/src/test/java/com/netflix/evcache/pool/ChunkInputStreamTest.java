@@ -0,0 +1,46 @@
+package com.netflix.evcache.pool;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.testng.annotations.Test;
+
+import com.netflix.evcache.EVCacheTranscoder;
+
+import net.spy.memcached.CachedData;
+
+public class ChunkInputStreamTest {
+
+    @Test
+    public void chunksAreReadAsOneStreamAndDecoded() {
+        final Random random = new Random(1);
+        final ArrayList<String> value = new ArrayList<String>();
+        for (int i = 0; i < 1000; i++) {
+            value.add("value_" + random.nextInt(100));
+        }
+        final EVCacheTranscoder transcoder = new EVCacheTranscoder();
+        final CachedData cd = transcoder.encode(value);
+        final byte[] data = cd.getData();
+
+        final ChunkInputStream in = new ChunkInputStream();
+        final int chunkSize = 100;
+        for (int i = 0; i < data.length; i += chunkSize) {
+            // chunks are padded to the chunk size
+            in.add(Arrays.copyOfRange(data, i, i + chunkSize), Math.min(chunkSize, data.length - i));
+        }
+
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        assertEquals(in.getChecksum(), crc.getValue());
+        assertEquals(in.getLength(), data.length);
+
+        in.mark(0);
+        assertEquals(in.toByteArray(), data);
+        in.reset();
+        assertEquals(transcoder.decode(cd.getFlags(), in, in.getLength()), value);
+    }
+}
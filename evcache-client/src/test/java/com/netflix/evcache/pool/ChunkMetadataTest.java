@@ -0,0 +1,127 @@
+package com.netflix.evcache.pool;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Checksum;
+
+import org.testng.annotations.Test;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+
+public class ChunkMetadataTest {
+
+    private static final int SPECIAL_BYTEARRAY = (8 << 8);
+
+    private final SerializingTranscoder transcoder = new SerializingTranscoder(Integer.MAX_VALUE);
+
+    @Test
+    public void stringMetadataRoundTrip() {
+        final CachedData metadata = EVCacheClient.encodeChunkInfo(3, 100, 40, 7, 12345L, new int[] { 1, 2 }, ChunkChecksum.CRC32, false, transcoder);
+        final EVCacheClient.ChunkInfo ci = EVCacheClient.getChunkInfo("key_00", metadata, transcoder);
+        assertChunkInfo(ci, 3, 100, 40, 7, 12345L);
+        assertNull(ci.getChunkChecksums());
+        assertEquals(ci.getChecksumAlgorithm(), ChunkChecksum.CRC32);
+    }
+
+    @Test
+    public void binaryMetadataRoundTrip() {
+        final CachedData metadata = EVCacheClient.encodeChunkInfo(3, 100, 40, 7, -1L, null, ChunkChecksum.CRC32, true, transcoder);
+        assertEquals(metadata.getFlags(), SPECIAL_BYTEARRAY);
+        assertEquals(metadata.getData()[0], 1);
+        final EVCacheClient.ChunkInfo ci = EVCacheClient.getChunkInfo("key_00", metadata, transcoder);
+        assertChunkInfo(ci, 3, 100, 40, 7, -1L);
+        assertNull(ci.getChunkChecksums());
+        assertEquals(ci.getChecksumAlgorithm(), ChunkChecksum.CRC32);
+    }
+
+    @Test
+    public void binaryMetadataWithChunkChecksumsRoundTrip() {
+        final int[] chunkChecksums = { 11, -22 };
+        final CachedData metadata = EVCacheClient.encodeChunkInfo(3, 100, 40, 7, 12345L, chunkChecksums, ChunkChecksum.CRC32, true, transcoder);
+        assertEquals(metadata.getData()[0], 2);
+        final EVCacheClient.ChunkInfo ci = EVCacheClient.getChunkInfo("key_00", metadata, transcoder);
+        assertChunkInfo(ci, 3, 100, 40, 7, 12345L);
+        assertEquals(ci.getChunkChecksums(), chunkChecksums);
+        assertEquals(ci.getChecksumAlgorithm(), ChunkChecksum.CRC32);
+    }
+
+    @Test
+    public void binaryMetadataWithAlgorithmRoundTrip() {
+        for (int[] chunkChecksums : Arrays.asList(null, new int[] { 11, -22 })) {
+            final CachedData metadata = EVCacheClient.encodeChunkInfo(3, 100, 40, 7, 12345L, chunkChecksums, ChunkChecksum.XXHASH64, true, transcoder);
+            assertEquals(metadata.getData()[0], 3);
+            final EVCacheClient.ChunkInfo ci = EVCacheClient.getChunkInfo("key_00", metadata, transcoder);
+            assertChunkInfo(ci, 3, 100, 40, 7, 12345L);
+            assertEquals(ci.getChunkChecksums(), chunkChecksums);
+            assertEquals(ci.getChecksumAlgorithm(), ChunkChecksum.XXHASH64);
+        }
+    }
+
+    @Test
+    public void truncatedMetadataIsIgnored() {
+        final CachedData metadata = EVCacheClient.encodeChunkInfo(3, 100, 40, 7, 12345L, new int[] { 11, -22 }, ChunkChecksum.CRC32, true, transcoder);
+        final byte[] truncated = Arrays.copyOf(metadata.getData(), metadata.getData().length - 1);
+        assertNull(EVCacheClient.getChunkInfo("key_00", new CachedData(SPECIAL_BYTEARRAY, truncated, Integer.MAX_VALUE), transcoder));
+    }
+
+    @Test
+    public void repairSplicesOnlyValidChunks() {
+        final Random random = new Random(1);
+        final byte[][] chunks = { new byte[100], new byte[100], new byte[40] };
+        final int[] chunkChecksums = new int[chunks.length];
+        for (int i = 0; i < chunks.length; i++) {
+            random.nextBytes(chunks[i]);
+            final Checksum checksum = ChunkChecksum.CRC32C.newChecksum();
+            checksum.update(chunks[i], 0, chunks[i].length);
+            chunkChecksums[i] = (int) checksum.getValue();
+        }
+        final EVCacheClient.ChunkInfo ci = new EVCacheClient.ChunkInfo(4, 100, 40, 0, "key", 0, chunkChecksums, ChunkChecksum.CRC32C);
+        final List<String> keys = Arrays.asList("key_01", "key_02", "key_03");
+
+        final byte[] corrupt = chunks[1].clone();
+        corrupt[0]++;
+        final Map<String, CachedData> dataMap = new HashMap<>();
+        dataMap.put("key_01", chunk(chunks[0]));
+        dataMap.put("key_02", chunk(corrupt));
+        List<Integer> badChunks = EVCacheClient.findBadChunks(ci, keys, dataMap);
+        assertEquals(badChunks, Arrays.asList(1, 2));
+
+        final Map<String, CachedData> fromOtherGroup = new HashMap<>();
+        fromOtherGroup.put("key_02", chunk(chunks[1]));
+        fromOtherGroup.put("key_03", chunk(corrupt));
+        badChunks = EVCacheClient.spliceChunks(ci, keys, dataMap, badChunks, fromOtherGroup);
+        assertEquals(badChunks, Collections.singletonList(2));
+        assertSame(dataMap.get("key_02"), fromOtherGroup.get("key_02"));
+        assertFalse(dataMap.containsKey("key_03"));
+
+        final CachedData lastChunk = chunk(Arrays.copyOf(chunks[2], 100));
+        badChunks = EVCacheClient.spliceChunks(ci, keys, dataMap, badChunks, Collections.singletonMap("key_03", lastChunk));
+        assertTrue(badChunks.isEmpty());
+        assertSame(dataMap.get("key_03"), lastChunk);
+        assertTrue(EVCacheClient.findBadChunks(ci, keys, dataMap).isEmpty());
+    }
+
+    private static CachedData chunk(byte[] data) {
+        return new CachedData(0, data, Integer.MAX_VALUE);
+    }
+
+    private static void assertChunkInfo(EVCacheClient.ChunkInfo ci, int chunks, int chunkSize, int lastChunk, int flags, long checksum) {
+        assertEquals(ci.getKey(), "key");
+        assertEquals(ci.getChunks(), chunks);
+        assertEquals(ci.getChunkSize(), chunkSize);
+        assertEquals(ci.getLastChunk(), lastChunk);
+        assertEquals(ci.getFlags(), flags);
+        assertEquals(ci.getChecksum(), checksum);
+    }
+}
@@ -0,0 +1,82 @@
+package com.netflix.evcache.pool;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+import com.netflix.config.ConfigurationManager;
+
+public class EVCacheHotKeyTrackerTest {
+
+    @Test
+    public void hotKeysArePromotedAfterTheInterval() throws Exception {
+        final EVCacheHotKeyTracker tracker = newTracker("EVCACHE_HOTKEY_TEST", 1);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                tracker.record("hot_key");
+                tracker.record("cold_key_" + i);
+            }
+            assertEquals(tracker.getTopKeys().keySet().iterator().next(), "hot_key");
+            assertTrue(tracker.getTopKeys().size() <= 5);
+            assertFalse(tracker.isHotKey("hot_key"));
+
+            tracker.report(1000);
+            assertTrue(tracker.isHotKey("hot_key"));
+            assertFalse(tracker.isHotKey("cold_key_1"));
+            assertTrue(tracker.getTopKeys().isEmpty());
+        } finally {
+            tracker.close();
+        }
+    }
+
+    @Test
+    public void hotKeysAreDroppedOnceTheTrafficStops() throws Exception {
+        final EVCacheHotKeyTracker tracker = newTracker("EVCACHE_HOTKEY_IDLE_TEST", 1);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                tracker.record("hot_key");
+            }
+            tracker.report(1000);
+            assertTrue(tracker.isHotKey("hot_key"));
+            assertEquals(tracker.getTopKeyRates().keySet().iterator().next(), "hot_key");
+            assertEquals(tracker.getTopKeyRates().get("hot_key").doubleValue(), 1000.0);
+
+            // no more reads in the next interval
+            tracker.report(1000);
+            assertFalse(tracker.isHotKey("hot_key"));
+            assertTrue(tracker.getTopKeyRates().isEmpty());
+        } finally {
+            tracker.close();
+        }
+    }
+
+    @Test
+    public void sampledReadsAreWeighedByTheSampleRate() throws Exception {
+        final EVCacheHotKeyTracker tracker = newTracker("EVCACHE_HOTKEY_SAMPLE_TEST", 4);
+        try {
+            for (int i = 0; i < 4000; i++) {
+                tracker.record("hot_key");
+            }
+            final int estimate = tracker.getTopKeys().get("hot_key").intValue();
+            assertEquals(estimate % 4, 0);
+            assertTrue(estimate > 3000 && estimate < 5000, "estimate " + estimate);
+        } finally {
+            tracker.close();
+        }
+    }
+
+    /*
+     * The interval is long enough for the background task not to end it, the
+     * tests end it with report().
+     */
+    private static EVCacheHotKeyTracker newTracker(String app, int sampleRate) {
+        ConfigurationManager.getConfigInstance().setProperty(app + ".hotkey.detection.enabled", true);
+        ConfigurationManager.getConfigInstance().setProperty(app + ".hotkey.topk", 5);
+        ConfigurationManager.getConfigInstance().setProperty(app + ".hotkey.report.interval.ms", 3600000);
+        ConfigurationManager.getConfigInstance().setProperty(app + ".hotkey.promote.rate", 100);
+        ConfigurationManager.getConfigInstance().setProperty(app + ".hotkey.sample.rate", sampleRate);
+        return new EVCacheHotKeyTracker(app, app + "-SG");
+    }
+}
@@ -0,0 +1,40 @@
+package com.netflix.evcache.pool;
+
+import static org.testng.Assert.assertEquals;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+public class EVCacheSlabClassesTest {
+
+    @Test
+    public void chunkSizeIsChosenFromTheSlabClasses() {
+        final EVCacheSlabClasses slabClasses = new EVCacheSlabClasses("test");
+        assertEquals(slabClasses.chooseChunkSize(100000, 100, 10), -1);
+
+        final Map<String, String> server1 = new HashMap<String, String>();
+        server1.put("1:chunk_size", "1184");
+        server1.put("1:used_chunks", "10");
+        server1.put("2:chunk_size", "4096");
+        server1.put("active_slabs", "2");
+        final Map<String, String> server2 = new HashMap<String, String>();
+        server2.put("3:chunk_size", "65536");
+        server2.put("4:chunk_size", "bad");
+        final Map<SocketAddress, Map<String, String>> stats = new HashMap<SocketAddress, Map<String, String>>();
+        stats.put(new InetSocketAddress("localhost", 11211), server1);
+        stats.put(new InetSocketAddress("localhost", 11212), server2);
+        slabClasses.update(stats);
+        assertEquals(slabClasses.getSizes(), new int[] { 1184, 4096, 65536 });
+
+        // 2 chunks of 65436 bytes waste too much, 26 chunks of 3996 bytes do not
+        assertEquals(slabClasses.chooseChunkSize(100000, 100, 10), 4096);
+        // fits in one chunk of the largest class
+        assertEquals(slabClasses.chooseChunkSize(63000, 100, 10), 65536);
+        // no class wastes less than 1%, so the one that uses the least memory
+        assertEquals(slabClasses.chooseChunkSize(5000, 100, 1), 1184);
+    }
+}